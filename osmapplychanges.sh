@@ -0,0 +1,3 @@
+# run mvn clean install first
+# applies an osmChange file to the output of osmjoin.sh and osmpostprocess.sh in the current directory
+java -cp target/osm2geojson-1.0-SNAPSHOT.jar:target/lib/* -Xmx1000M com.github.jillesvangurp.osm2geojson.OsmChangeApplier "$1" | tee osmapplychanges.log
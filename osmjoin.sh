@@ -8,7 +8,7 @@ if [ "x$JAVA_HOME" = "x" ]; then
 fi
 
 if [ "x$JAVA_OPTS" = "x" ]; then
- JAVA_OPTS="-server -Xmx1000m"
+ JAVA_OPTS="-server -Xmx1000m -XX:MaxDirectMemorySize=1000m"
 fi
 
-$JAVA -cp $APP_HOME/target/osm2geojson-1.0-SNAPSHOT.jar:$APP_HOME/target/lib/* $JAVA_OPTS com.github.jillesvangurp.osm2geojson.OsmJoin "$1" | tee osmjoin.log
\ No newline at end of file
+$JAVA -cp $APP_HOME/target/osm2geojson-1.0-SNAPSHOT.jar:$APP_HOME/target/lib/* $JAVA_OPTS com.github.jillesvangurp.osm2geojson.OsmJoin "$@" | tee osmjoin.log
\ No newline at end of file
@@ -0,0 +1,190 @@
+package com.github.jillesvangurp.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.jillesvangurp.iterables.LineIterable;
+
+/**
+ * Compression used for intermediate files. Files are read without knowing the codec they were written with, gzip is
+ * recognized by its header and anything else is read as is. So the codec can be chosen per stage without the next
+ * stage having to know.
+ *
+ * Compression costs cpu on write and read and saves disk io. For files that are written and read only once, like sort
+ * buckets, {@link #FAST} usually wins.
+ */
+public abstract class Codec {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Plain utf-8, no compression.
+     */
+    public static final Codec NONE = new Codec("none") {
+        @Override
+        OutputStream wrap(OutputStream out) {
+            return out;
+        }
+    };
+
+    /**
+     * Gzip at the default deflate level.
+     */
+    public static final Codec GZIP = gzip(Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * Gzip at the fastest deflate level, several times faster to write than the default for a slightly larger file.
+     */
+    public static final Codec FAST = gzip(Deflater.BEST_SPEED, "fast");
+
+    /**
+     * Gzip at the default deflate level, compressed on all processors, see {@link ParallelGzipOutputStream}. The
+     * output is a regular gzip file.
+     */
+    public static final Codec PARALLEL_GZIP = parallelGzip(Deflater.DEFAULT_COMPRESSION, 2 * Runtime.getRuntime()
+            .availableProcessors());
+
+    private static ExecutorService compressionExecutor = null;
+
+    private final String name;
+
+    private Codec(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param level deflate level from 1 to 9, or -1 for the default
+     * @return gzip codec
+     */
+    public static Codec gzip(int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("gzip level should be -1 or between 1 and 9 but was " + level);
+        }
+        return gzip(level, level == Deflater.DEFAULT_COMPRESSION ? "gzip" : "gzip:" + level);
+    }
+
+    private static Codec gzip(final int level, String name) {
+        return new Codec(name) {
+            @Override
+            OutputStream wrap(OutputStream out) throws IOException {
+                return new GZIPOutputStream(out, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @param level deflate level from 1 to 9, or -1 for the default
+     * @param maxInFlight number of blocks of a stream that may wait for or be in compression at the same time
+     * @return gzip codec that compresses on the {@link #compressionExecutor()}
+     */
+    public static Codec parallelGzip(final int level, final int maxInFlight) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("gzip level should be -1 or between 1 and 9 but was " + level);
+        }
+        return new Codec(level == Deflater.DEFAULT_COMPRESSION ? "pgzip" : "pgzip:" + level) {
+            @Override
+            OutputStream wrap(OutputStream out) throws IOException {
+                return new ParallelGzipOutputStream(out, level, compressionExecutor(), maxInFlight);
+            }
+        };
+    }
+
+    /**
+     * @return executor with a daemon thread for each processor that all parallel gzip streams share, so that many
+     *         open streams do not oversubscribe the processors
+     */
+    public static synchronized ExecutorService compressionExecutor() {
+        if (compressionExecutor == null) {
+            compressionExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "gzip-block-encoder");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return compressionExecutor;
+    }
+
+    /**
+     * @param name none, fast, gzip, gzip:level, pgzip or pgzip:level
+     * @return the codec
+     */
+    public static Codec parse(String name) {
+        switch (name) {
+        case "none":
+            return NONE;
+        case "fast":
+            return FAST;
+        case "gzip":
+            return GZIP;
+        case "pgzip":
+            return PARALLEL_GZIP;
+        default:
+            if (name.startsWith("gzip:")) {
+                return gzip(Integer.parseInt(name.substring(5)));
+            }
+            if (name.startsWith("pgzip:")) {
+                return parallelGzip(Integer.parseInt(name.substring(6)), 2 * Runtime.getRuntime()
+                        .availableProcessors());
+            }
+            throw new IllegalArgumentException("unknown codec " + name);
+        }
+    }
+
+    abstract OutputStream wrap(OutputStream out) throws IOException;
+
+    public BufferedOutputStream fileOutputStream(String file) throws IOException {
+        return new BufferedOutputStream(wrap(new FileOutputStream(file)), BUFFER_SIZE);
+    }
+
+    public BufferedWriter fileWriter(String file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(wrap(new FileOutputStream(file)), ResourceUtil.UTF8),
+                BUFFER_SIZE);
+    }
+
+    /**
+     * @return stream with the content of a file written by any codec
+     */
+    public static InputStream fileInputStream(String file) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        in.mark(2);
+        int magic = in.read() | in.read() << 8;
+        in.reset();
+        if (magic == GZIPInputStream.GZIP_MAGIC) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    /**
+     * @return lines of a file written by any codec
+     */
+    public static LineIterable lines(String file) throws IOException {
+        return new LineIterable(new InputStreamReader(fileInputStream(file), ResourceUtil.UTF8));
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
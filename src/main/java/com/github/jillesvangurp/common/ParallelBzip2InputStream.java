@@ -0,0 +1,393 @@
+package com.github.jillesvangurp.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Decompresses bzip2 data using multiple threads. Bzip2 compresses data in independent blocks that each start with a
+ * 48 bit magic number (and streams end with a different 48 bit magic number). This class scans the compressed bits
+ * for these markers, wraps each block in a small single block bzip2 stream of its own, and decompresses those on a
+ * thread pool with the regular commons-compress decoder. The output is returned in the original order.
+ *
+ * Concatenated streams, like the planet osm dumps, are supported. A magic number can in theory also occur by chance
+ * inside compressed data. When a block fails to decompress, it is merged with the following segment and decompressed
+ * again, which takes care of this.
+ */
+public class ParallelBzip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MASK48 = 0xffffffffffffL;
+    private static final int MAX_MERGES = 8;
+
+    private final InputStream in;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    // scanner state
+    private final byte[] readBuffer = new byte[64 * 1024];
+    private int readPos = 0;
+    private int readEnd = 0;
+    private byte[] pending = new byte[1024 * 1024];
+    private int pendingBytes = 0;
+    // bit offset in pending of the start of the current segment, -1 before the first block
+    private long segmentStart = -1;
+    private boolean segmentIsBlock = false;
+    private long window = 0;
+    private long bitsScanned = 0;
+    private boolean eof = false;
+
+    // output state
+    private byte[] current = new byte[0];
+    private int currentPos = 0;
+    private boolean closed = false;
+
+    /**
+     * @param in compressed input
+     * @param threads number of threads used for decompressing blocks
+     */
+    public ParallelBzip2InputStream(InputStream in, int threads) {
+        this.in = in;
+        this.maxInFlight = threads * 2;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bzip2-block-decoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            for (Segment segment : segments) {
+                if (segment.result != null) {
+                    segment.result.cancel(true);
+                }
+            }
+            segments.clear();
+            executor.shutdownNow();
+            in.close();
+        }
+    }
+
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        while (currentPos >= current.length) {
+            fill();
+            Segment segment = segments.poll();
+            if (segment == null) {
+                return false;
+            }
+            if (segment.isBlock) {
+                current = decode(segment);
+                currentPos = 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans ahead until enough blocks are being decompressed.
+     */
+    private void fill() throws IOException {
+        int inFlight = 0;
+        for (Segment segment : segments) {
+            if (segment.isBlock) {
+                inFlight++;
+            }
+        }
+        while (inFlight < maxInFlight) {
+            Segment segment = scan();
+            if (segment == null) {
+                break;
+            }
+            if (segment.isBlock) {
+                submit(segment);
+                inFlight++;
+            }
+            segments.add(segment);
+        }
+    }
+
+    private byte[] decode(Segment segment) throws IOException {
+        try {
+            return segment.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while decompressing", e);
+        } catch (ExecutionException e) {
+            // probably a false positive magic number; merge with the following segments until it decodes
+            Segment merged = segment;
+            for (int i = 0; i < MAX_MERGES; i++) {
+                if (segments.isEmpty()) {
+                    fillOne();
+                }
+                Segment next = segments.poll();
+                if (next == null) {
+                    break;
+                }
+                if (next.result != null) {
+                    next.result.cancel(true);
+                }
+                merged = merged.append(next);
+                try {
+                    return decompressBlock(merged);
+                } catch (IOException | RuntimeException retry) {
+                    // keep merging
+                }
+            }
+            throw new IOException("cannot decompress bzip2 block", e.getCause());
+        }
+    }
+
+    private void fillOne() throws IOException {
+        Segment segment = scan();
+        if (segment != null) {
+            segments.add(segment);
+        }
+    }
+
+    private void submit(final Segment segment) {
+        segment.result = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return decompressBlock(segment);
+            }
+        });
+    }
+
+    /**
+     * Reads input until the next block or end of stream magic number is found.
+     *
+     * @return the segment between the previous magic number and the one found, or null if there is no more input
+     */
+    private Segment scan() throws IOException {
+        while (true) {
+            if (readPos >= readEnd) {
+                if (eof) {
+                    break;
+                }
+                int read = in.read(readBuffer);
+                if (read < 0) {
+                    eof = true;
+                    break;
+                }
+                readPos = 0;
+                readEnd = read;
+            }
+            while (readPos < readEnd) {
+                Segment segment = scanByte(readBuffer[readPos++]);
+                if (segment != null) {
+                    return segment;
+                }
+            }
+        }
+        if (segmentStart >= 0 && segmentIsBlock) {
+            // truncated input; let the decoder report the problem
+            Segment segment = cut(pendingBytes * 8L);
+            segmentStart = -1;
+            return segment;
+        }
+        return null;
+    }
+
+    private Segment scanByte(byte b) {
+        if (pendingBytes == pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[pendingBytes++] = b;
+        window = (window << 8) | (b & 0xff);
+        bitsScanned += 8;
+        for (int shift = 7; shift >= 0; shift--) {
+            if (bitsScanned < 48 + shift) {
+                continue;
+            }
+            long candidate = (window >>> shift) & MASK48;
+            if (candidate == BLOCK_MAGIC || candidate == EOS_MAGIC) {
+                long magicStart = pendingBytes * 8L - shift - 48;
+                Segment segment = null;
+                if (segmentStart >= 0 && magicStart > segmentStart) {
+                    segment = cut(magicStart);
+                }
+                segmentStart = magicStart;
+                segmentIsBlock = candidate == BLOCK_MAGIC;
+                compact();
+                if (segment != null) {
+                    return segment;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Segment cut(long end) {
+        int bitLength = (int) (end - segmentStart);
+        return new Segment(copyBits(pending, segmentStart, bitLength), bitLength, segmentIsBlock);
+    }
+
+    /**
+     * Drops the whole bytes before the start of the current segment from the pending buffer.
+     */
+    private void compact() {
+        int dropBytes = (int) (segmentStart / 8);
+        if (dropBytes > 0) {
+            System.arraycopy(pending, dropBytes, pending, 0, pendingBytes - dropBytes);
+            pendingBytes -= dropBytes;
+            segmentStart -= dropBytes * 8L;
+        }
+    }
+
+    static byte[] copyBits(byte[] src, long srcBitOffset, int bitLength) {
+        byte[] result = new byte[(bitLength + 7) / 8];
+        int byteOffset = (int) (srcBitOffset / 8);
+        int shift = (int) (srcBitOffset % 8);
+        for (int i = 0; i < result.length; i++) {
+            int hi = (src[byteOffset + i] << shift) & 0xff;
+            int lo = byteOffset + i + 1 < src.length ? (src[byteOffset + i + 1] & 0xff) >>> (8 - shift) : 0;
+            result[i] = (byte) (hi | lo);
+        }
+        int trailing = result.length * 8 - bitLength;
+        if (trailing > 0) {
+            result[result.length - 1] &= (byte) (0xff << trailing);
+        }
+        return result;
+    }
+
+    /**
+     * Wraps the block in a single block stream and decompresses it.
+     */
+    static byte[] decompressBlock(Segment segment) throws IOException {
+        BitWriter writer = new BitWriter(segment.bits.length + 20);
+        writer.write('B', 8);
+        writer.write('Z', 8);
+        writer.write('h', 8);
+        // the largest block size; blocks compressed with smaller sizes decode fine with this
+        writer.write('9', 8);
+        writer.writeBits(segment.bits, segment.bitLength);
+        writer.write(EOS_MAGIC, 48);
+        // the combined crc of a single block stream is the crc of that block, which follows the block magic
+        long blockCrc = 0;
+        for (int i = 0; i < 4; i++) {
+            blockCrc = (blockCrc << 8) | (segment.bits[6 + i] & 0xff);
+        }
+        writer.write(blockCrc, 32);
+        try (InputStream is = new BZip2CompressorInputStream(new ByteArrayInputStream(writer.toByteArray()), false)) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+
+    static final class Segment {
+        final byte[] bits;
+        final int bitLength;
+        final boolean isBlock;
+        Future<byte[]> result;
+
+        Segment(byte[] bits, int bitLength, boolean isBlock) {
+            this.bits = bits;
+            this.bitLength = bitLength;
+            this.isBlock = isBlock;
+        }
+
+        Segment append(Segment next) {
+            BitWriter writer = new BitWriter(bits.length + next.bits.length);
+            writer.writeBits(bits, bitLength);
+            writer.writeBits(next.bits, next.bitLength);
+            return new Segment(writer.toByteArray(), bitLength + next.bitLength, isBlock);
+        }
+    }
+
+    private static final class BitWriter {
+        private byte[] buf;
+        private long bits = 0;
+
+        BitWriter(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        void write(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                writeBit((int) (value >>> i) & 1);
+            }
+        }
+
+        void writeBits(byte[] src, int count) {
+            if (bits % 8 == 0) {
+                int whole = count / 8;
+                ensure(whole + 1);
+                System.arraycopy(src, 0, buf, (int) (bits / 8), whole);
+                bits += whole * 8L;
+                for (int i = whole * 8; i < count; i++) {
+                    writeBit((src[i / 8] >>> (7 - i % 8)) & 1);
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    writeBit((src[i / 8] >>> (7 - i % 8)) & 1);
+                }
+            }
+        }
+
+        private void writeBit(int bit) {
+            ensure(1);
+            if (bit != 0) {
+                buf[(int) (bits / 8)] |= (byte) (0x80 >>> (bits % 8));
+            }
+            bits++;
+        }
+
+        private void ensure(int bytes) {
+            int needed = (int) (bits / 8) + bytes + 1;
+            if (needed > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(needed, buf.length * 2));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, (int) ((bits + 7) / 8));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.github.jillesvangurp.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses to gzip using multiple threads, like pigz. The input is cut into fixed size blocks that are deflated on a
+ * thread pool. Each block uses the last 32KB of the previous block as its dictionary, so the compression is close to
+ * that of a single deflater. Blocks end with a sync flush, which aligns them on a byte boundary, so the compressed
+ * blocks can simply be concatenated into one deflate stream. The result is a normal single member gzip file that any
+ * gzip reader can decompress.
+ *
+ * The crc of the uncompressed data is calculated on the writing thread, which is much cheaper than deflating.
+ *
+ * The blocks are deflated on an executor that is shared with other streams, usually
+ * {@link Codec#compressionExecutor()}, so that many open streams do not each start threads for all processors. Each
+ * stream only limits how many of its blocks are in flight.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final OutputStream out;
+    private final int level;
+    private final int blockSize;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final ArrayDeque<Future<byte[]>> blocks = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long totalBytes = 0;
+    private byte[] block;
+    private int blockBytes = 0;
+    private byte[] dictionary = null;
+    private boolean closed = false;
+
+    /**
+     * @param out compressed output
+     * @param level deflate level
+     * @param executor deflates the blocks, it is not shut down on close
+     * @param maxInFlight number of blocks that are submitted and not yet written before writing waits
+     * @param blockSize number of uncompressed bytes in each block
+     * @throws IOException
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, ExecutorService executor, int maxInFlight,
+            int blockSize) throws IOException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("at least one block should be in flight");
+        }
+        this.out = out;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        block = new byte[blockSize];
+        out.write(HEADER);
+    }
+
+    /**
+     * @param out compressed output
+     * @param level deflate level
+     * @param executor deflates the blocks, it is not shut down on close
+     * @param maxInFlight number of blocks that are submitted and not yet written before writing waits
+     * @throws IOException
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, ExecutorService executor, int maxInFlight)
+            throws IOException {
+        this(out, level, executor, maxInFlight, 128 * 1024);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockBytes++] = (byte) b;
+        if (blockBytes == blockSize) {
+            submit(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockBytes);
+            System.arraycopy(b, off, block, blockBytes, n);
+            blockBytes += n;
+            off += n;
+            len -= n;
+            if (blockBytes == blockSize) {
+                submit(false);
+            }
+        }
+    }
+
+    private void submit(final boolean last) throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        final byte[] data = block;
+        final int length = blockBytes;
+        final byte[] dict = dictionary;
+        crc.update(data, 0, length);
+        totalBytes += length;
+        if (length >= DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length);
+        } else if (length > 0) {
+            // short blocks only happen at the end, but keep the dictionary complete anyway
+            byte[] previous = dict == null ? new byte[0] : dict;
+            int keep = Math.min(previous.length, DICTIONARY_SIZE - length);
+            byte[] combined = Arrays.copyOfRange(previous, previous.length - keep, previous.length + length);
+            System.arraycopy(data, 0, combined, keep, length);
+            dictionary = combined;
+        }
+        block = new byte[blockSize];
+        blockBytes = 0;
+        blocks.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return deflate(data, length, dict, last, level);
+            }
+        }));
+        while (blocks.size() > maxInFlight) {
+            writeBlock();
+        }
+    }
+
+    private static byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        try {
+            out.write(blocks.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("cannot compress block", e.getCause());
+        }
+    }
+
+    /**
+     * Waits for the submitted blocks and writes them. A full flush of the deflate stream, as with
+     * GZIPOutputStream(out, true), is not supported, the current block is only compressed when it is full or on close.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!blocks.isEmpty()) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            try {
+                submit(true);
+                closed = true;
+                while (!blocks.isEmpty()) {
+                    writeBlock();
+                }
+                writeIntLE((int) crc.getValue());
+                writeIntLE((int) totalBytes);
+                out.close();
+            } finally {
+                closed = true;
+                for (Future<byte[]> future : blocks) {
+                    future.cancel(true);
+                }
+                blocks.clear();
+            }
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write(value >>> 8 & 0xff);
+        out.write(value >>> 16 & 0xff);
+        out.write(value >>> 24 & 0xff);
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.jillesvangurp.common;
+
+/**
+ * Minimal reader for the protocol buffers wire format. It reads directly from a byte array and creates sub readers
+ * for embedded messages and packed fields without copying. This is enough to decode simple, well known formats like
+ * the osm pbf format without having to depend on generated code.
+ */
+public final class ProtobufReader {
+    public static final int VARINT = 0;
+    public static final int FIXED64 = 1;
+    public static final int LENGTH_DELIMITED = 2;
+    public static final int FIXED32 = 5;
+
+    private final byte[] buf;
+    private final int limit;
+    private int pos;
+    private int tag;
+
+    public ProtobufReader(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    public ProtobufReader(byte[] buf, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buf.length) {
+            throw new IllegalArgumentException("invalid range " + offset + "," + length + " for buffer of " + buf.length);
+        }
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * @return true if there are more bytes to read.
+     */
+    public boolean hasNext() {
+        return pos < limit;
+    }
+
+    /**
+     * Reads the next field key. Use {@link #field()} and {@link #wireType()} to inspect it and then read or skip the
+     * value.
+     *
+     * @return false if the message has no more fields
+     */
+    public boolean nextField() {
+        if (pos >= limit) {
+            return false;
+        }
+        tag = (int) readVarint();
+        return true;
+    }
+
+    public int field() {
+        return tag >>> 3;
+    }
+
+    public int wireType() {
+        return tag & 7;
+    }
+
+    public long readVarint() {
+        long result = 0;
+        int shift = 0;
+        while (shift < 64) {
+            if (pos >= limit) {
+                throw new IllegalStateException("truncated varint");
+            }
+            byte b = buf[pos++];
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    public int readInt32() {
+        return (int) readVarint();
+    }
+
+    /**
+     * @return a zigzag encoded sint32 or sint64 value
+     */
+    public long readSignedVarint() {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public String readString() {
+        int length = readLength();
+        String result = new String(buf, pos, length, ResourceUtil.UTF8);
+        pos += length;
+        return result;
+    }
+
+    public byte[] readBytes() {
+        int length = readLength();
+        byte[] result = new byte[length];
+        System.arraycopy(buf, pos, result, 0, length);
+        pos += length;
+        return result;
+    }
+
+    /**
+     * @return a reader for an embedded message or the content of a packed repeated field.
+     */
+    public ProtobufReader readMessage() {
+        int length = readLength();
+        ProtobufReader reader = new ProtobufReader(buf, pos, length);
+        pos += length;
+        return reader;
+    }
+
+    /**
+     * Skips the value of the current field.
+     */
+    public void skip() {
+        switch (wireType()) {
+            case VARINT:
+                readVarint();
+                break;
+            case FIXED64:
+                advance(8);
+                break;
+            case LENGTH_DELIMITED:
+                advance(readLength());
+                break;
+            case FIXED32:
+                advance(4);
+                break;
+            default:
+                throw new IllegalStateException("unsupported wire type " + wireType() + " for field " + field());
+        }
+    }
+
+    private int readLength() {
+        long length = readVarint();
+        if (length < 0 || length > limit - pos) {
+            throw new IllegalStateException("invalid length " + length);
+        }
+        return (int) length;
+    }
+
+    private void advance(int bytes) {
+        if (bytes > limit - pos) {
+            throw new IllegalStateException("truncated message");
+        }
+        pos += bytes;
+    }
+}
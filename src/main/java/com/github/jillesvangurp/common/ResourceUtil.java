@@ -1,6 +1,8 @@
 package com.github.jillesvangurp.common;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -33,6 +35,17 @@ public class ResourceUtil {
         return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), Charset.forName("utf-8")),64*1024);
     }
 
+    public static BufferedOutputStream gzipFileOutputStream(String file) throws IOException {
+        return new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file)), 64 * 1024);
+    }
+
+    /**
+     * @return writer that compresses to gzip on all processors, see {@link ParallelGzipOutputStream}
+     */
+    public static BufferedWriter parallelGzipFileWriter(String file) throws IOException {
+        return Codec.PARALLEL_GZIP.fileWriter(file);
+    }
+
     public static BufferedReader gzipFileReader(String file) throws IOException {
         return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)),UTF8));
     }
@@ -58,7 +71,19 @@ public class ResourceUtil {
     }
 
     public static InputStreamReader bzip2Reader(String fileName) throws IOException, FileNotFoundException {
-        return new InputStreamReader(new BZip2CompressorInputStream(new FileInputStream(fileName),true), UTF8);
+        return bzip2Reader(fileName, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of threads used to decompress bzip2 blocks; 1 uses the single threaded commons-compress decoder.
+     */
+    public static InputStreamReader bzip2Reader(String fileName, int threads) throws IOException, FileNotFoundException {
+        InputStream is = new BufferedInputStream(new FileInputStream(fileName), 64*1024);
+        if(threads > 1) {
+            return new InputStreamReader(new ParallelBzip2InputStream(is, threads), UTF8);
+        } else {
+            return new InputStreamReader(new BZip2CompressorInputStream(is,true), UTF8);
+        }
     }
 
     public static BufferedReader resource(String resourcePath) throws IOException {
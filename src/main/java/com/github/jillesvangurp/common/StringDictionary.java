@@ -0,0 +1,100 @@
+package com.github.jillesvangurp.common;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock free dictionary of canonical string instances for the small set of strings that show up over and over
+ * again, like osm tag keys and common values. A lookup with a char range only allocates a string when it is not in the
+ * dictionary yet.
+ *
+ * Each string hashes to a single slot and a new string simply replaces whatever was in its slot. So the dictionary
+ * never grows beyond its capacity, frequent strings keep their slots most of the time, and concurrent callers at worst
+ * get equal but different instances.
+ */
+public final class StringDictionary {
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    private final int maxLength;
+
+    /**
+     * @param capacity
+     *            number of slots, rounded up to a power of two
+     * @param maxLength
+     *            longer strings are returned as is, these are unlikely to be repeated
+     */
+    public StringDictionary(int capacity, int maxLength) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity should be between 1 and 2^30 but was " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the dictionary instance that is equal to s, or s itself
+     */
+    public String intern(String s) {
+        if (s == null || s.length() > maxLength) {
+            return s;
+        }
+        int slot = spread(s.hashCode()) & mask;
+        String existing = slots.get(slot);
+        if (s.equals(existing)) {
+            return existing;
+        }
+        slots.lazySet(slot, s);
+        return s;
+    }
+
+    /**
+     * @return the dictionary instance for the chars between start and end, the string is only created if it is not in
+     *         the dictionary
+     */
+    public String intern(CharSequence chars, int start, int end) {
+        int length = end - start;
+        if (length > maxLength) {
+            return chars.subSequence(start, end).toString();
+        }
+        // same as String.hashCode
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        int slot = spread(hash) & mask;
+        String existing = slots.get(slot);
+        if (existing != null && contentEquals(existing, chars, start, end)) {
+            return existing;
+        }
+        String s = chars.subSequence(start, end).toString();
+        slots.lazySet(slot, s);
+        return s;
+    }
+
+    public String intern(CharSequence chars) {
+        return intern(chars, 0, chars.length());
+    }
+
+    private static boolean contentEquals(String s, CharSequence chars, int start, int end) {
+        if (s.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != chars.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        // mix the high bits in, the low bits of String.hashCode are poor for short strings with a common prefix
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        return hash ^ hash >>> 13;
+    }
+}
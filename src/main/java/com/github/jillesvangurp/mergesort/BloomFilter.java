@@ -0,0 +1,88 @@
+package com.github.jillesvangurp.mergesort;
+
+/**
+ * Bloom filter for long keys. Answers whether a key might have been added, with no false negatives and a false
+ * positive rate of about 1% at 10 bits per key.
+ */
+public class BloomFilter {
+    private final long[] bits;
+    private final int hashes;
+
+    /**
+     * @param keys number of keys that will be added
+     * @param bitsPerKey bits per key, more means less false positives
+     */
+    public BloomFilter(int keys, int bitsPerKey) {
+        this(new long[Math.max(1, (int) (((long) keys * bitsPerKey + 63) / 64))], Math.max(1, Math.min(30,
+                (int) Math.round(bitsPerKey * 0.69))));
+    }
+
+    private BloomFilter(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    public void add(long key) {
+        long h = mix(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(long key) {
+        long h = mix(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % size;
+            if ((bits[(int) (bit >>> 6)] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The finalizer of murmur3, spreads sequential ids over all bits.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * @return the number of hashes followed by the bits, see {@link #fromBytes(byte[])}
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[1 + bits.length * 8];
+        bytes[0] = (byte) hashes;
+        for (int i = 0; i < bits.length; i++) {
+            for (int j = 0; j < 8; j++) {
+                bytes[1 + i * 8 + j] = (byte) (bits[i] >>> j * 8);
+            }
+        }
+        return bytes;
+    }
+
+    public static BloomFilter fromBytes(byte[] bytes) {
+        if (bytes.length < 9 || (bytes.length - 1) % 8 != 0) {
+            throw new IllegalArgumentException("not a bloom filter of " + bytes.length + " bytes");
+        }
+        long[] bits = new long[(bytes.length - 1) / 8];
+        for (int i = 0; i < bits.length; i++) {
+            for (int j = 0; j < 8; j++) {
+                bits[i] |= (bytes[1 + i * 8 + j] & 0xffL) << j * 8;
+            }
+        }
+        return new BloomFilter(bits, bytes[0]);
+    }
+}
@@ -0,0 +1,320 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Looks up keys in a map written by {@link IndexedMapWriter} without reading all of it. The block index is kept in
+ * memory, the bloom filters and blocks are read when needed. A lookup reads the filter of the block that can hold the
+ * key and, unless the filter rules the key out, decompresses that block.
+ *
+ * Reads do not change any state, so one reader can be used from several threads.
+ */
+public class IndexedMapReader implements Closeable {
+    // for maps that were written without bloom filters
+    private static final BloomFilter ALL = allKeys();
+
+    private final FileChannel data;
+    private final FileChannel index;
+    private final long[] firstKeys;
+    private final long[] dataOffsets;
+    private final long[] filterOffsets;
+    private final long filtersEnd;
+    private final long entries;
+
+    public IndexedMapReader(String file) throws IOException {
+        data = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        try {
+            index = FileChannel.open(Paths.get(IndexedMapWriter.indexFile(file)), StandardOpenOption.READ);
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+        try {
+            byte[] magic = new byte[IndexedMapWriter.INDEX_MAGIC.length];
+            readFully(index, ByteBuffer.wrap(magic), 0);
+            if (!Arrays.equals(magic, IndexedMapWriter.INDEX_MAGIC)) {
+                throw new IOException("not an index: " + IndexedMapWriter.indexFile(file));
+            }
+            ByteBuffer footer = ByteBuffer.allocate(IndexedMapWriter.FOOTER_LENGTH);
+            readFully(index, footer, index.size() - IndexedMapWriter.FOOTER_LENGTH);
+            footer.flip();
+            filtersEnd = footer.getLong();
+            int blocks = footer.getInt();
+            entries = footer.getLong();
+            firstKeys = new long[blocks];
+            dataOffsets = new long[blocks];
+            filterOffsets = new long[blocks];
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new ChannelInputStream(index,
+                    filtersEnd), 64 * 1024))) {
+                for (int i = 0; i < blocks; i++) {
+                    firstKeys[i] = in.readLong();
+                    dataOffsets[i] = in.readLong();
+                    filterOffsets[i] = in.readLong();
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of entries in the map
+     */
+    public long size() {
+        return entries;
+    }
+
+    /**
+     * @return the values for key, in the order of the map; empty if there are none
+     */
+    public List<String> get(long key) throws IOException {
+        List<String> values = new ArrayList<>();
+        int block = firstBlock(key);
+        if (block < 0 || !mightContain(block, key)) {
+            return values;
+        }
+        try (LongEntryReader reader = readFrom(block)) {
+            for (LongEntry entry : reader) {
+                if (entry.getKey() > key) {
+                    break;
+                } else if (entry.getKey() == key) {
+                    values.add(entry.getValue());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return true if the bloom filters do not rule out key. Cheaper than {@link #get(long)} because no block is read.
+     */
+    public boolean mightContain(long key) throws IOException {
+        int block = firstBlock(key);
+        return block >= 0 && mightContain(block, key);
+    }
+
+    /**
+     * @param from first key
+     * @param to last key
+     * @return the entries with keys from from up to and including to. Close it when done.
+     */
+    public Range range(long from, long to) throws IOException {
+        int block = firstBlock(from);
+        if (block < 0 || from > to) {
+            return new Range(null, from, to);
+        }
+        return new Range(readFrom(block), from, to);
+    }
+
+    /**
+     * @return the first block that can hold key, or -1 if the map is empty
+     */
+    private int firstBlock(long key) {
+        if (entries == 0) {
+            return -1;
+        }
+        // the last block that starts before key, values for key may continue in the next blocks
+        int i = Arrays.binarySearch(firstKeys, key);
+        if (i < 0) {
+            i = -i - 2;
+        } else {
+            while (i > 0 && firstKeys[i - 1] == key) {
+                i--;
+            }
+            i--;
+        }
+        return Math.max(0, i);
+    }
+
+    /**
+     * Checks the filters of all blocks that can hold key.
+     */
+    private boolean mightContain(int block, long key) throws IOException {
+        for (int i = block; i < firstKeys.length && firstKeys[i] <= key; i++) {
+            if (filter(i).mightContain(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private BloomFilter filter(int block) throws IOException {
+        long end = block + 1 < filterOffsets.length ? filterOffsets[block + 1] : filtersEnd;
+        int length = (int) (end - filterOffsets[block]);
+        if (length == 0) {
+            return ALL;
+        }
+        byte[] bytes = new byte[length];
+        readFully(index, ByteBuffer.wrap(bytes), filterOffsets[block]);
+        return BloomFilter.fromBytes(bytes);
+    }
+
+    private static BloomFilter allKeys() {
+        byte[] bytes = new byte[9];
+        Arrays.fill(bytes, (byte) 0xff);
+        bytes[0] = 1;
+        return BloomFilter.fromBytes(bytes);
+    }
+
+    /**
+     * @return entries from the start of block to the end of the map
+     */
+    private LongEntryReader readFrom(int block) throws IOException {
+        // gzip continues with the next members, which are the next blocks
+        InputStream in = new GZIPInputStream(new BufferedInputStream(new ChannelInputStream(data,
+                dataOffsets[block]), 64 * 1024), 64 * 1024);
+        if (block == 0) {
+            for (int i = 0; i < RecordFormat.BINARY_MAGIC.length; i++) {
+                if (in.read() < 0) {
+                    throw new EOFException("missing header");
+                }
+            }
+        }
+        return new LongEntryReader(in, true);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            data.close();
+        } finally {
+            if (index != null) {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Entries within a range of keys, see {@link IndexedMapReader#range(long, long)}.
+     */
+    public static class Range implements Iterable<LongEntry>, Closeable {
+        private final LongEntryReader reader;
+        private final long from;
+        private final long to;
+
+        private Range(LongEntryReader reader, long from, long to) {
+            this.reader = reader;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Iterator<LongEntry> iterator() {
+            if (reader == null) {
+                return new ArrayList<LongEntry>().iterator();
+            }
+            final Iterator<LongEntry> it = reader.iterator();
+            return new Iterator<LongEntry>() {
+                private LongEntry next = null;
+                private boolean done = false;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && !done) {
+                        if (!it.hasNext()) {
+                            done = true;
+                        } else {
+                            LongEntry entry = it.next();
+                            if (entry.getKey() > to) {
+                                done = true;
+                            } else if (entry.getKey() >= from) {
+                                next = entry;
+                            }
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public LongEntry next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    LongEntry result = next;
+                    next = null;
+                    return result;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a channel from a position on, without moving the position of the channel, so several streams can read
+     * the same channel at the same time.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, channel.size() - position));
+        }
+
+        @Override
+        public void close() {
+            // the channel belongs to the reader
+        }
+    }
+}
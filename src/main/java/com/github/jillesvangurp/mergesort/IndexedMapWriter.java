@@ -0,0 +1,164 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a sorted map that can be searched by key with {@link IndexedMapReader}, like the sorted string tables of
+ * leveldb. Records are written in the {@link RecordFormat#BINARY} format and cut into blocks of about blockSize
+ * bytes. Each block is compressed as a gzip member of its own, so the file is a regular gzip file that
+ * {@link RecordFormat#read(String)} reads from start to end, while a reader can also start at any block.
+ *
+ * Next to the map, an index file holds the first key and the offset of each block, and a bloom filter of the keys in
+ * each block. Keys should be written in ascending order.
+ */
+public class IndexedMapWriter extends LongEntryWriter {
+    static final byte[] INDEX_MAGIC = { 0, 'L', 'E', 'I', 1 };
+    // index offset, number of blocks and number of entries
+    static final int FOOTER_LENGTH = 20;
+
+    private final int blockSize;
+    private final int bitsPerKey;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final LongEntryWriter records;
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    private final DataOutputStream index;
+    private long offset = 0;
+    private long indexOffset = INDEX_MAGIC.length;
+    private long entries = 0;
+    private long lastKey = Long.MIN_VALUE;
+    // keys of the current block, for its bloom filter
+    private long[] blockKeys = new long[1024];
+    private int blockKeyCount = 0;
+    private long[] firstKeys = new long[1024];
+    private long[] dataOffsets = new long[1024];
+    private long[] filterOffsets = new long[1024];
+    private int blocks = 0;
+
+    /**
+     * @param file the map
+     * @param blockSize uncompressed bytes per block. Smaller blocks make lookups faster and the index larger.
+     * @param bitsPerKey bits per key of the bloom filters, 0 to leave them out
+     */
+    public IndexedMapWriter(String file, int blockSize, int bitsPerKey) throws IOException {
+        super(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        this.blockSize = blockSize;
+        this.bitsPerKey = bitsPerKey;
+        records = RecordFormat.BINARY.writer(block);
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(file)), 64 * 1024));
+        index.write(INDEX_MAGIC);
+    }
+
+    /**
+     * Writes 64KB blocks with 10 bits per key.
+     */
+    public IndexedMapWriter(String file) throws IOException {
+        this(file, 64 * 1024, 10);
+    }
+
+    /**
+     * @return name of the index file that belongs to a map
+     */
+    public static String indexFile(String file) {
+        return file + ".idx";
+    }
+
+    @Override
+    public void write(long key, byte[] value, int offset, int length) throws IOException {
+        if (key < lastKey) {
+            throw new IllegalArgumentException("key " + key + " is written after " + lastKey);
+        }
+        if (blockKeyCount == 0) {
+            if (blocks == firstKeys.length) {
+                firstKeys = Arrays.copyOf(firstKeys, blocks * 2);
+                dataOffsets = Arrays.copyOf(dataOffsets, blocks * 2);
+                filterOffsets = Arrays.copyOf(filterOffsets, blocks * 2);
+            }
+            firstKeys[blocks] = key;
+        }
+        if (blockKeyCount == 0 || key != lastKey) {
+            if (blockKeyCount == blockKeys.length) {
+                blockKeys = Arrays.copyOf(blockKeys, blockKeyCount * 2);
+            }
+            blockKeys[blockKeyCount++] = key;
+        }
+        lastKey = key;
+        entries++;
+        records.write(key, value, offset, length);
+        if (block.size() >= blockSize) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        compressed.reset();
+        try (GzipMember gzip = new GzipMember(compressed)) {
+            block.writeTo(gzip);
+        }
+        compressed.writeTo(out);
+        dataOffsets[blocks] = offset;
+        offset += compressed.size();
+        block.reset();
+
+        filterOffsets[blocks] = indexOffset;
+        if (bitsPerKey > 0) {
+            BloomFilter filter = new BloomFilter(blockKeyCount, bitsPerKey);
+            for (int i = 0; i < blockKeyCount; i++) {
+                filter.add(blockKeys[i]);
+            }
+            byte[] bytes = filter.toBytes();
+            index.write(bytes);
+            indexOffset += bytes.length;
+        }
+        blockKeyCount = 0;
+        blocks++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (blockKeyCount > 0 || blocks == 0) {
+                if (blocks == 0 && blockKeyCount == 0) {
+                    // an empty block with only the header, so the map is still a valid gzip file
+                    firstKeys[0] = Long.MAX_VALUE;
+                }
+                writeBlock();
+            }
+            for (int i = 0; i < blocks; i++) {
+                index.writeLong(firstKeys[i]);
+                index.writeLong(dataOffsets[i]);
+                index.writeLong(filterOffsets[i]);
+            }
+            index.writeLong(indexOffset);
+            index.writeInt(blocks);
+            index.writeLong(entries);
+        } finally {
+            try {
+                index.close();
+            } finally {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Gzip member that releases its deflater without closing the stream it writes to.
+     */
+    private static final class GzipMember extends GZIPOutputStream {
+        GzipMember(OutputStream out) throws IOException {
+            super(out, 8 * 1024);
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.jillesvangurp.mergesort;
+
+/**
+ * Key value pair with a primitive long key, as used by {@link LongSortingWriter}.
+ */
+public final class LongEntry {
+    private final long key;
+    private final String value;
+
+    public LongEntry(long key, String value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof LongEntry)) {
+            return false;
+        }
+        LongEntry other = (LongEntry) obj;
+        return key == other.key && (value == null ? other.value == null : value.equals(other.value));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (key ^ key >>> 32) + (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return key + ";" + value;
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.jillesvangurp.mergesort;
+
+import com.jillesvangurp.iterables.Processor;
+
+/**
+ * Parses key;value lines with a numeric key. The key is read straight from the line, without a substring.
+ */
+public class LongEntryParsingProcessor implements Processor<String, LongEntry> {
+
+    @Override
+    public LongEntry process(String line) {
+        int idx = line.indexOf(';');
+        if (idx < 0)
+            throw new IllegalStateException("line does not contain semicolon! " + line);
+
+        return new LongEntry(parseLong(line, 0, idx), line.substring(idx + 1));
+    }
+
+    /**
+     * @return the decimal number between start and end, without creating a string for it
+     */
+    public static long parseLong(CharSequence chars, int start, int end) {
+        int i = start;
+        boolean negative = i < end && chars.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            throw new IllegalStateException("not a number: " + chars.subSequence(start, end));
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalStateException("not a number: " + chars.subSequence(start, end));
+            }
+            result = result * 10 + c - '0';
+        }
+        return negative ? -result : result;
+    }
+}
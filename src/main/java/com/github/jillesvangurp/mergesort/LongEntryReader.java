@@ -0,0 +1,114 @@
+package com.github.jillesvangurp.mergesort;
+
+import static com.jillesvangurp.iterables.Iterables.map;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.jillesvangurp.iterables.LineIterable;
+
+/**
+ * Reads the records of a file in either {@link RecordFormat}. Like LineIterable, it can be iterated only once.
+ * Binary records are read straight into a key and a value, without splitting strings.
+ */
+public class LongEntryReader implements Iterable<LongEntry>, Closeable {
+    private final InputStream in;
+    private final boolean binary;
+
+    LongEntryReader(InputStream in, boolean binary) {
+        this.in = in;
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public Iterator<LongEntry> iterator() {
+        if (!binary) {
+            LineIterable lines = new LineIterable(new InputStreamReader(in, ResourceUtil.UTF8));
+            return map(lines, new LongEntryParsingProcessor()).iterator();
+        }
+        return new Iterator<LongEntry>() {
+            private LongEntry next = null;
+            private byte[] buffer = new byte[1024];
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = readRecord();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            private LongEntry readRecord() throws IOException {
+                int first = in.read();
+                if (first < 0) {
+                    return null;
+                }
+                long zigzag = readVarint(first);
+                long key = zigzag >>> 1 ^ -(zigzag & 1);
+                int length = (int) readVarint(in.read());
+                if (buffer.length < length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                int read = 0;
+                while (read < length) {
+                    int n = in.read(buffer, read, length - read);
+                    if (n < 0) {
+                        throw new EOFException("truncated record for key " + key);
+                    }
+                    read += n;
+                }
+                return new LongEntry(key, new String(buffer, 0, length, ResourceUtil.UTF8));
+            }
+
+            private long readVarint(int b) throws IOException {
+                long value = 0;
+                int shift = 0;
+                while (true) {
+                    if (b < 0) {
+                        throw new EOFException("truncated record");
+                    }
+                    value |= (long) (b & 0x7f) << shift;
+                    if ((b & 0x80) == 0) {
+                        return value;
+                    }
+                    shift += 7;
+                    b = in.read();
+                }
+            }
+
+            @Override
+            public LongEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                LongEntry result = next;
+                next = null;
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+
+/**
+ * Writes {@link LongEntry} records in one of the {@link RecordFormat}s.
+ */
+public abstract class LongEntryWriter implements Closeable {
+    protected final OutputStream out;
+    protected final byte[] scratch = new byte[20];
+
+    protected LongEntryWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void write(long key, String value) throws IOException {
+        byte[] bytes = value.getBytes(ResourceUtil.UTF8);
+        write(key, bytes, 0, bytes.length);
+    }
+
+    public void write(LongEntry entry) throws IOException {
+        write(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * @param key the key
+     * @param value utf-8 encoded value
+     * @param offset start of the value in the array
+     * @param length length of the value
+     */
+    public abstract void write(long key, byte[] value, int offset, int length) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    static final class Text extends LongEntryWriter {
+        Text(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(long key, byte[] value, int offset, int length) throws IOException {
+            int digits = formatLong(key, scratch);
+            out.write(scratch, scratch.length - digits, digits);
+            out.write(';');
+            out.write(value, offset, length);
+            out.write('\n');
+        }
+
+        /**
+         * @return the number of digits written to the end of buf
+         */
+        private static int formatLong(long value, byte[] buf) {
+            int i = buf.length;
+            boolean negative = value < 0;
+            // work with negative numbers so that Long.MIN_VALUE works as well
+            long v = negative ? value : -value;
+            do {
+                buf[--i] = (byte) ('0' - v % 10);
+                v /= 10;
+            } while (v != 0);
+            if (negative) {
+                buf[--i] = '-';
+            }
+            return buf.length - i;
+        }
+    }
+
+    static final class Binary extends LongEntryWriter {
+        Binary(OutputStream out) throws IOException {
+            super(out);
+            out.write(RecordFormat.BINARY_MAGIC);
+        }
+
+        @Override
+        public void write(long key, byte[] value, int offset, int length) throws IOException {
+            // zig zag, so that negative ids stay short as well
+            int n = writeVarint(key << 1 ^ key >> 63, scratch, 0);
+            n = writeVarint(length, scratch, n);
+            out.write(scratch, 0, n);
+            out.write(value, offset, length);
+        }
+
+        private static int writeVarint(long value, byte[] buf, int offset) {
+            while ((value & ~0x7fL) != 0) {
+                buf[offset++] = (byte) (value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            buf[offset++] = (byte) value;
+            return offset;
+        }
+    }
+}
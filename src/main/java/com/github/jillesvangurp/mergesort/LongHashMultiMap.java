@@ -0,0 +1,139 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Multi map from long keys to string values that is compact enough to hold one side of a hash join in memory. Keys
+ * and offsets are kept in primitive arrays and the values as utf-8 in large byte arrays, so an entry costs about 30
+ * bytes plus its value instead of several objects.
+ *
+ * Not thread safe while entries are put. Once filled, {@link #get(long)} can be called from several threads.
+ */
+public class LongHashMultiMap {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int PAGE_SIZE = 1 << 20;
+    // key, next entry, value page, offset and length, and a slot in the table
+    private static final int ENTRY_OVERHEAD = 8 + 4 + 4 + 4 + 4 + 8;
+
+    private int[] table = new int[1024];
+    private long[] keys = new long[512];
+    // previous entry with the same hash, -1 for the last one
+    private int[] next = new int[512];
+    private int[] pages = new int[512];
+    private int[] offsets = new int[512];
+    private int[] lengths = new int[512];
+    private int size = 0;
+
+    private final List<byte[]> values = new ArrayList<>();
+    private byte[] page = new byte[0];
+    private int pagePosition = 0;
+    private long bytes = 0;
+
+    public LongHashMultiMap() {
+        Arrays.fill(table, -1);
+    }
+
+    /**
+     * @return estimate of the memory an entry takes
+     */
+    public static long entryBytes(String value) {
+        return ENTRY_OVERHEAD + value.length();
+    }
+
+    public void put(long key, String value) {
+        byte[] bytesOfValue = value.getBytes(UTF8);
+        if (size == keys.length) {
+            int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            next = Arrays.copyOf(next, capacity);
+            pages = Arrays.copyOf(pages, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        if (size * 2 >= table.length) {
+            rehash(table.length * 2);
+        }
+        if (bytesOfValue.length > page.length - pagePosition) {
+            // large values get a page of their own
+            page = new byte[Math.max(PAGE_SIZE, bytesOfValue.length)];
+            pagePosition = 0;
+            values.add(page);
+        }
+        System.arraycopy(bytesOfValue, 0, page, pagePosition, bytesOfValue.length);
+        keys[size] = key;
+        pages[size] = values.size() - 1;
+        offsets[size] = pagePosition;
+        lengths[size] = bytesOfValue.length;
+        pagePosition += bytesOfValue.length;
+        int slot = slot(key, table.length);
+        next[size] = table[slot];
+        table[slot] = size;
+        size++;
+        bytes += ENTRY_OVERHEAD + bytesOfValue.length;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        Arrays.fill(table, -1);
+        for (int i = 0; i < size; i++) {
+            int slot = slot(keys[i], capacity);
+            next[i] = table[slot];
+            table[slot] = i;
+        }
+    }
+
+    /**
+     * @return the values for key in the order they were put; empty if there are none
+     */
+    public List<String> get(long key) {
+        List<String> result = null;
+        for (int i = table[slot(key, table.length)]; i >= 0; i = next[i]) {
+            if (keys[i] == key) {
+                if (result == null) {
+                    result = new ArrayList<>(2);
+                }
+                result.add(new String(values.get(pages[i]), offsets[i], lengths[i], UTF8));
+            }
+        }
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        // the chain holds the last entry first
+        Collections.reverse(result);
+        return result;
+    }
+
+    public boolean containsKey(long key) {
+        for (int i = table[slot(key, table.length)]; i >= 0; i = next[i]) {
+            if (keys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return estimate of the memory used by the entries
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return slot of key in a table of capacity slots, capacity being a power of two
+     */
+    private static int slot(long key, int capacity) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 32) & capacity - 1;
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.jillesvangurp.mergesort;
+
+import static com.jillesvangurp.iterables.Iterables.map;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Same as {@link MergingEntryIterable} for iterables that are sorted on a numeric key, see {@link LongSortingWriter}.
+ *
+ * Uses a tournament tree of losers rather than a priority queue. The keys of the current entries are cached in an
+ * array and replacing the winner only replays its path to the root, so each entry costs log2(k) comparisons for k
+ * iterables and no objects besides the entry itself.
+ */
+public class LongMergingEntryIterable implements Iterable<LongEntry> {
+
+    private final List<? extends Iterable<?>> iterables;
+    private final boolean lines;
+
+    /**
+     * @param iterables key;value lines
+     */
+    public LongMergingEntryIterable(List<? extends Iterable<String>> iterables) {
+        this(iterables, true);
+    }
+
+    private LongMergingEntryIterable(List<? extends Iterable<?>> iterables, boolean lines) {
+        this.iterables = iterables;
+        this.lines = lines;
+    }
+
+    /**
+     * @param iterables entries, like those of a {@link LongEntryReader}
+     * @return merged entries
+     */
+    public static LongMergingEntryIterable ofEntries(List<? extends Iterable<LongEntry>> iterables) {
+        return new LongMergingEntryIterable(iterables, false);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<LongEntry> iterator() {
+        List<Iterator<LongEntry>> sources = new ArrayList<>();
+        for (Iterable<?> iterable : iterables) {
+            if (lines) {
+                sources.add(map((Iterable<String>) iterable, new LongEntryParsingProcessor()).iterator());
+            } else {
+                sources.add((Iterator<LongEntry>) iterable.iterator());
+            }
+        }
+        return new LoserTreeIterator(sources);
+    }
+
+    private static final class LoserTreeIterator implements Iterator<LongEntry> {
+        private final int size;
+        private final Iterator<LongEntry>[] sources;
+        // current entry of each source, null when it is exhausted
+        private final LongEntry[] heads;
+        private final long[] keys;
+        // tree[0] is the source with the next entry, tree[1..size-1] are the losers of each match
+        private final int[] tree;
+
+        @SuppressWarnings("unchecked")
+        LoserTreeIterator(List<Iterator<LongEntry>> iterators) {
+            size = iterators.size();
+            sources = iterators.toArray(new Iterator[size]);
+            heads = new LongEntry[size];
+            keys = new long[size];
+            tree = new int[Math.max(1, size)];
+            for (int i = 0; i < size; i++) {
+                advance(i);
+            }
+            if (size > 0) {
+                tree[0] = build(1);
+            }
+        }
+
+        /**
+         * Plays the matches below node. Nodes of size and up are the sources.
+         *
+         * @return the winner
+         */
+        private int build(int node) {
+            if (node >= size) {
+                return node - size;
+            }
+            int left = build(2 * node);
+            int right = build(2 * node + 1);
+            if (beats(left, right)) {
+                tree[node] = right;
+                return left;
+            } else {
+                tree[node] = left;
+                return right;
+            }
+        }
+
+        private void advance(int source) {
+            if (sources[source].hasNext()) {
+                LongEntry entry = sources[source].next();
+                heads[source] = entry;
+                keys[source] = entry.getKey();
+            } else {
+                heads[source] = null;
+            }
+        }
+
+        /**
+         * Orders on key and then value, so same keys do not depend on how entries were spread over the sources.
+         */
+        private boolean beats(int a, int b) {
+            if (heads[b] == null) {
+                return true;
+            }
+            if (heads[a] == null) {
+                return false;
+            }
+            if (keys[a] != keys[b]) {
+                return keys[a] < keys[b];
+            }
+            int c = heads[a].getValue().compareTo(heads[b].getValue());
+            return c != 0 ? c < 0 : a < b;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return size > 0 && heads[tree[0]] != null;
+        }
+
+        @Override
+        public LongEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int winner = tree[0];
+            LongEntry result = heads[winner];
+            advance(winner);
+            // replay the matches on the path of the winner, the loser stays behind at each node
+            for (int node = (winner + size) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = winner;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
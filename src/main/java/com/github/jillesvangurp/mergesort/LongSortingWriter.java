@@ -0,0 +1,405 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.Codec;
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.metrics.LoggingCounter;
+
+/**
+ * Variant of {@link SortingWriter} for numeric keys, like osm ids. The output has the same key;value lines, but sorted
+ * on the numeric value of the key and then on the value. Buckets are limited by a number of bytes rather than entries
+ * and keep their values outside the heap, see {@link OffHeapBucket}.
+ *
+ * By default all threads share one bucket. With per thread buckets, each producer thread fills and writes its own
+ * bucket, so put does not need a shared lock at all. This produces more and smaller bucket files, which are all merged
+ * at close.
+ *
+ * Full buckets are sorted and written by background threads, while producers continue with an empty bucket. Only when
+ * the maximum number of buckets is being written does put block until one of them is done, so the memory used stays
+ * bounded.
+ */
+public class LongSortingWriter implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LongSortingWriter.class);
+
+    private final String output;
+    private final long bucketBytes;
+    private final MemoryGovernor governor;
+    private final AtomicInteger currentBucket = new AtomicInteger();
+    private final Queue<String> bucketFiles = new ConcurrentLinkedQueue<>();
+    private OffHeapBucket bucket;
+    // holds the bucket of the current thread, which is replaced when it is full
+    private final ThreadLocal<OffHeapBucket[]> threadBucket;
+    // all per thread bucket holders, so that close can flush them
+    private final Queue<OffHeapBucket[]> threadBuckets = new ConcurrentLinkedQueue<>();
+    private int maxBucketsInFlight = 2;
+    private int maxMergeFanIn = 64;
+    private Codec bucketCodec = Codec.FAST;
+    private Codec outputCodec = Codec.GZIP;
+    private RecordFormat recordFormat = RecordFormat.BINARY;
+    private boolean indexed = false;
+    private ExecutorService flusher;
+    private Semaphore inFlight;
+    private final AtomicReference<Throwable> flushFailure = new AtomicReference<>();
+    // buckets that have been written and can be filled again, so their buffers are allocated only once
+    private final Queue<OffHeapBucket> freeBuckets = new ConcurrentLinkedQueue<>();
+    private final String tempDir;
+    private final LoggingCounter loggingCounter;
+    private int logCount = 1000000;
+
+    /**
+     * @param tempDir this directory is used for bucket files. Note. this class
+     * will blindly overwrite any pre-existing bucket files.
+     * @param output the file with the sorted output.
+     * @param bucketBytes the size of a bucket in bytes of utf-8 encoded values plus 20 bytes per entry. Each bucket is
+     * sorted in memory before being written to disk. Buckets are allocated as direct memory, so
+     * -XX:MaxDirectMemorySize should allow for two buckets per writer.
+     * @throws IOException
+     */
+    public LongSortingWriter(String tempDir, String output, long bucketBytes) throws IOException {
+        this(tempDir, output, bucketBytes, false);
+    }
+
+    /**
+     * @param tempDir this directory is used for bucket files. Note. this class
+     * will blindly overwrite any pre-existing bucket files.
+     * @param output the file with the sorted output.
+     * @param bucketBytes the size of a bucket, see above. With per thread buckets, this is the size for each thread.
+     * @param perThreadBuckets if true, every thread that calls put gets its own bucket. Threads must be done with put
+     * before close is called.
+     * @throws IOException
+     */
+    public LongSortingWriter(String tempDir, String output, long bucketBytes, boolean perThreadBuckets) throws IOException {
+        this(tempDir, output, bucketBytes, perThreadBuckets, null);
+    }
+
+    /**
+     * @param tempDir this directory is used for bucket files. Note. this class
+     * will blindly overwrite any pre-existing bucket files.
+     * @param output the file with the sorted output.
+     * @param bucketBytes the maximum size of a bucket, see above.
+     * @param perThreadBuckets if true, every thread that calls put gets its own bucket.
+     * @param governor memory budget shared with other writers that are open at the same time, may be null. Buckets
+     * are flushed before they reach bucketBytes when the governor runs out.
+     * @throws IOException
+     */
+    public LongSortingWriter(String tempDir, String output, long bucketBytes, boolean perThreadBuckets,
+            MemoryGovernor governor) throws IOException {
+        this.tempDir = tempDir;
+        this.output = output;
+        this.bucketBytes = bucketBytes;
+        this.governor = governor;
+        if (perThreadBuckets) {
+            threadBucket = new ThreadLocal<OffHeapBucket[]>() {
+                @Override
+                protected OffHeapBucket[] initialValue() {
+                    OffHeapBucket[] holder = { freeBucket() };
+                    threadBuckets.offer(holder);
+                    return holder;
+                }
+            };
+        } else {
+            threadBucket = null;
+            bucket = new OffHeapBucket(bucketBytes, governor);
+        }
+        if (StringUtils.isNotEmpty(tempDir)) {
+            FileUtils.forceMkdir(new File(tempDir));
+        }
+        loggingCounter = LoggingCounter.counter(LOG, "sort buckets " + output, "lines", logCount);
+    }
+
+    /**
+     * @param maxBucketsInFlight number of full buckets that can be written at the same time, each on its own thread.
+     * Producers wait when this many are being written. Must be set before the first put.
+     * @return the writer
+     */
+    public LongSortingWriter setMaxBucketsInFlight(int maxBucketsInFlight) {
+        this.maxBucketsInFlight = maxBucketsInFlight;
+        return this;
+    }
+
+    /**
+     * @param maxMergeFanIn maximum number of bucket files that are merged at once. With more buckets, some of them are
+     * first merged into intermediate files.
+     * @return the writer
+     */
+    public LongSortingWriter setMaxMergeFanIn(int maxMergeFanIn) {
+        this.maxMergeFanIn = maxMergeFanIn;
+        return this;
+    }
+
+    /**
+     * @param bucketCodec compression of the bucket files and intermediate merges, which are written and read once.
+     * Defaults to {@link Codec#FAST}.
+     * @return the writer
+     */
+    public LongSortingWriter setBucketCodec(Codec bucketCodec) {
+        this.bucketCodec = bucketCodec;
+        return this;
+    }
+
+    /**
+     * @param outputCodec compression of the sorted output, defaults to {@link Codec#GZIP}.
+     * @return the writer
+     */
+    public LongSortingWriter setOutputCodec(Codec outputCodec) {
+        this.outputCodec = outputCodec;
+        return this;
+    }
+
+    /**
+     * @param recordFormat format of the bucket files and the output, defaults to {@link RecordFormat#BINARY}. Use
+     * {@link RecordFormat#TEXT} to inspect the output. Read the output with {@link RecordFormat#read(String)}, which
+     * handles both.
+     * @return the writer
+     */
+    public LongSortingWriter setRecordFormat(RecordFormat recordFormat) {
+        this.recordFormat = recordFormat;
+        return this;
+    }
+
+    /**
+     * @param indexed if true, the output is written by an {@link IndexedMapWriter}, so that keys can be looked up with
+     * an {@link IndexedMapReader}. The output is then binary, compressed in blocks with gzip, whatever the output codec
+     * and record format are. It can still be read from start to end with {@link RecordFormat#read(String)}.
+     * @return the writer
+     */
+    public LongSortingWriter setIndexed(boolean indexed) {
+        this.indexed = indexed;
+        return this;
+    }
+
+    /**
+     * Add an element to the sorted file.
+     *
+     * @param key the key to sort on
+     * @param value the value
+     */
+    public void put(long key, String value) {
+        byte[] bytes = value.getBytes(ResourceUtil.UTF8);
+        if (threadBucket != null) {
+            // only this thread uses its bucket, so it can be filled and swapped without locking
+            OffHeapBucket[] holder = threadBucket.get();
+            holder[0].add(key, bytes);
+            loggingCounter.inc();
+            if (holder[0].isFull()) {
+                Semaphore permits = inFlight();
+                permits.acquireUninterruptibly();
+                OffHeapBucket full = holder[0];
+                holder[0] = freeBucket();
+                flush(full, permits);
+            }
+            return;
+        }
+        OffHeapBucket full = null;
+        Semaphore permits = null;
+        synchronized (this) {
+            bucket.add(key, bytes);
+            if (bucket.isFull()) {
+                // wait for a free slot before switching over, so at most one bucket more than in flight exists
+                permits = inFlight();
+                permits.acquireUninterruptibly();
+                full = bucket;
+                bucket = freeBucket();
+            }
+        }
+        loggingCounter.inc();
+        if (full != null) {
+            flush(full, permits);
+        }
+    }
+
+    private synchronized Semaphore inFlight() {
+        if (inFlight == null) {
+            inFlight = new Semaphore(maxBucketsInFlight);
+            flusher = Executors.newFixedThreadPool(maxBucketsInFlight, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "sort-bucket-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return inFlight;
+    }
+
+    /**
+     * Writes the bucket in the background. The caller must hold a permit, which is released when the bucket is written.
+     */
+    private void flush(final OffHeapBucket full, final Semaphore permits) {
+        Throwable failure = flushFailure.get();
+        if (failure != null) {
+            permits.release();
+            throw new IllegalStateException("cannot write bucket", failure);
+        }
+        final String file = nextBucketFile();
+        flusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeBucket(full, file);
+                } catch (Throwable e) {
+                    flushFailure.compareAndSet(null, e);
+                } finally {
+                    full.clear();
+                    freeBuckets.offer(full);
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    private OffHeapBucket freeBucket() {
+        OffHeapBucket free = freeBuckets.poll();
+        return free != null ? free : new OffHeapBucket(bucketBytes, governor);
+    }
+
+    private String nextBucketFile() {
+        String file = new File(tempDir, "bucket-" + currentBucket.getAndIncrement() + ".gz").getAbsolutePath();
+        bucketFiles.add(file);
+        return file;
+    }
+
+    private void writeBucket(OffHeapBucket bucket, String file) {
+        try (LongEntryWriter out = recordFormat.writer(file, bucketCodec)) {
+            bucket.writeSorted(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            // flush any remaining entries
+            List<OffHeapBucket> remaining = new ArrayList<>();
+            if (bucket != null) {
+                remaining.add(bucket);
+            }
+            for (OffHeapBucket[] holder : threadBuckets) {
+                remaining.add(holder[0]);
+                // the thread locals may outlive this writer, so the holder should not keep the buffers
+                holder[0] = new OffHeapBucket(0);
+            }
+            threadBuckets.clear();
+            for (OffHeapBucket last : remaining) {
+                if (last.size() > 0) {
+                    Semaphore permits = inFlight();
+                    permits.acquireUninterruptibly();
+                    flush(last, permits);
+                } else {
+                    last.release();
+                }
+            }
+            if (flusher != null) {
+                flusher.shutdown();
+                try {
+                    flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while writing buckets", e);
+                }
+            }
+            // leave the direct buffers to the garbage collector
+            bucket = new OffHeapBucket(0);
+            for (OffHeapBucket free : freeBuckets) {
+                free.release();
+            }
+            freeBuckets.clear();
+        }
+        if (flushFailure.get() != null) {
+            throw new IllegalStateException("cannot write bucket", flushFailure.get());
+        }
+        loggingCounter.close();
+        LoggingCounter mergeCounter = LoggingCounter.counter(LOG, "merge buckets into " + output, " lines", logCount);
+        try {
+            List<MergePlanner.Run> runs = new ArrayList<>();
+            for (String file : bucketFiles) {
+                runs.add(new MergePlanner.Run(file, new File(file).length(), 0));
+            }
+            List<MergePlanner.Merge> merges = MergePlanner.plan(runs, maxMergeFanIn, tempDir);
+            MergePlanner.Merge last = merges.get(merges.size() - 1);
+            LOG.info("merging " + runs.size() + " buckets into " + output + " in " + last.output.pass + " passes, "
+                    + (merges.size() - 1) + " intermediate merges rewrite " + MergePlanner.rewrittenBytes(merges)
+                    + " bytes");
+            long[] passMillis = new long[last.output.pass + 1];
+            long[] passBytes = new long[last.output.pass + 1];
+            int[] passMerges = new int[last.output.pass + 1];
+            for (MergePlanner.Merge merge : merges) {
+                long start = System.currentTimeMillis();
+                String target = merge.isFinal() ? output : merge.output.file;
+                try (LongEntryWriter out = merge.isFinal() ? outputWriter()
+                        : recordFormat.writer(target, bucketCodec)) {
+                    merge(merge.inputs, out, merge.isFinal() ? mergeCounter : null);
+                }
+                int pass = merge.output.pass;
+                passMillis[pass] += System.currentTimeMillis() - start;
+                passBytes[pass] += new File(target).length();
+                passMerges[pass]++;
+                for (MergePlanner.Run input : merge.inputs) {
+                    // free the disk space as soon as possible
+                    FileUtils.deleteQuietly(new File(input.file));
+                }
+            }
+            for (int pass = 1; pass < passMillis.length; pass++) {
+                LOG.info("merge pass " + pass + " of " + output + ": " + passMerges[pass] + " merges wrote "
+                        + passBytes[pass] + " bytes in " + passMillis[pass] + " ms");
+            }
+        } finally {
+            mergeCounter.close();
+            FileUtils.deleteDirectory(new File(tempDir));
+        }
+    }
+
+    private LongEntryWriter outputWriter() throws IOException {
+        if (indexed) {
+            return new IndexedMapWriter(output);
+        }
+        return recordFormat.writer(output, outputCodec);
+    }
+
+    private static void merge(List<MergePlanner.Run> inputs, LongEntryWriter out, LoggingCounter counter)
+            throws IOException {
+        List<LongEntryReader> readers = new ArrayList<>();
+        try {
+            // at most maxMergeFanIn files are open at the same time
+            for (MergePlanner.Run input : inputs) {
+                readers.add(RecordFormat.read(input.file));
+            }
+            for (LongEntry entry : LongMergingEntryIterable.ofEntries(readers)) {
+                out.write(entry);
+                if (counter != null) {
+                    counter.inc();
+                }
+            }
+        } finally {
+            for (LongEntryReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    LOG.error("cannot close file", e);
+                }
+            }
+        }
+    }
+}
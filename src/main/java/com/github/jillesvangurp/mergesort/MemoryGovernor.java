@@ -0,0 +1,66 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the buckets of all {@link LongSortingWriter}s that share it within one memory budget. Buckets report the bytes
+ * they hold in steps, so that filling them does not contend on the governor. When the total goes over the budget, any
+ * bucket that holds at least its fair share of the budget counts as full and is flushed, even if it is below its own
+ * size. Buckets with small values therefore keep filling, while the big ones make room.
+ */
+public class MemoryGovernor {
+    private final long budget;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicInteger buckets = new AtomicInteger();
+
+    /**
+     * @param budget total number of bytes for all buckets
+     */
+    public MemoryGovernor(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @param fraction of the maximum heap size, which is also the default limit for direct memory
+     * @return governor with that budget
+     */
+    public static MemoryGovernor fractionOfMaxMemory(double fraction) {
+        return new MemoryGovernor((long) (Runtime.getRuntime().maxMemory() * fraction));
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return bytes currently reported by all buckets
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    void register() {
+        buckets.incrementAndGet();
+    }
+
+    void unregister() {
+        buckets.decrementAndGet();
+    }
+
+    void reserve(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    boolean isExhausted() {
+        return used.get() >= budget;
+    }
+
+    long fairShare() {
+        return budget / Math.max(1, buckets.get());
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Plans the merge of sorted runs when there are more runs than can be opened at once. Each merge combines at most
+ * maxFanIn runs. Intermediate merges always take the smallest runs, and the first one takes just enough runs that every
+ * later merge, including the final one, can be full. This is the optimal merge pattern, it rewrites the least bytes.
+ */
+final class MergePlanner {
+
+    static final class Run {
+        final String file;
+        final long bytes;
+        // number of merges this run went through, 0 for buckets
+        final int pass;
+
+        Run(String file, long bytes, int pass) {
+            this.file = file;
+            this.bytes = bytes;
+            this.pass = pass;
+        }
+    }
+
+    static final class Merge {
+        final List<Run> inputs;
+        // the file of the final merge is null, it is written to the output
+        final Run output;
+
+        Merge(List<Run> inputs, Run output) {
+            this.inputs = inputs;
+            this.output = output;
+        }
+
+        boolean isFinal() {
+            return output.file == null;
+        }
+    }
+
+    private MergePlanner() {
+    }
+
+    /**
+     * @param runs the sorted runs
+     * @param maxFanIn maximum number of runs in a merge, at least 2
+     * @param tempDir directory for the intermediate runs
+     * @return merges in the order they must be done, the last one is the final merge
+     */
+    static List<Merge> plan(List<Run> runs, int maxFanIn, String tempDir) {
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("fan in must be at least 2 but was " + maxFanIn);
+        }
+        PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<Run>() {
+            @Override
+            public int compare(Run o1, Run o2) {
+                int c = Long.compare(o1.bytes, o2.bytes);
+                // on ties, merge runs that went through fewer passes first, which keeps the number of passes down
+                return c != 0 ? c : Integer.compare(o1.pass, o2.pass);
+            }
+        });
+        queue.addAll(runs);
+        List<Merge> merges = new ArrayList<>();
+        int n = queue.size();
+        if (n > maxFanIn) {
+            // same as padding with empty runs until every merge can take maxFanIn runs
+            int first = (n - 2) % (maxFanIn - 1) + 2;
+            merges.add(merge(queue, first, new File(tempDir, "merge-0.gz").getAbsolutePath()));
+        }
+        while (queue.size() > maxFanIn) {
+            String file = new File(tempDir, "merge-" + merges.size() + ".gz").getAbsolutePath();
+            merges.add(merge(queue, maxFanIn, file));
+        }
+        merges.add(merge(queue, queue.size(), null));
+        return merges;
+    }
+
+    private static Merge merge(PriorityQueue<Run> queue, int count, String file) {
+        List<Run> inputs = new ArrayList<>();
+        long bytes = 0;
+        int pass = 0;
+        for (int i = 0; i < count; i++) {
+            Run run = queue.poll();
+            inputs.add(run);
+            bytes += run.bytes;
+            pass = Math.max(pass, run.pass);
+        }
+        Run output = new Run(file, bytes, pass + 1);
+        if (file != null) {
+            queue.offer(output);
+        }
+        return new Merge(Collections.unmodifiableList(inputs), output);
+    }
+
+    /**
+     * @return bytes read by the intermediate merges, which are also written again
+     */
+    static long rewrittenBytes(List<Merge> merges) {
+        long bytes = 0;
+        for (Merge merge : merges) {
+            if (!merge.isFinal()) {
+                bytes += merge.output.bytes;
+            }
+        }
+        return bytes;
+    }
+}
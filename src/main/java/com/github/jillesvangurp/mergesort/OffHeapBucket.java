@@ -0,0 +1,263 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bucket for {@link LongSortingWriter} that keeps the values as utf-8 records in direct byte buffers, outside the
+ * heap. Only an index of keys and record offsets is kept on the heap, as primitive arrays, and that index is what gets
+ * sorted. So an entry costs 16 bytes of heap and no objects, which means far more entries fit in a bucket and the
+ * garbage collector has nothing to trace.
+ *
+ * Buffers are allocated in chunks on first use and kept when the bucket is cleared, so a bucket can be reused for the
+ * next run. Not thread safe.
+ *
+ * With a {@link MemoryGovernor}, the bucket reports its bytes to the governor and also counts as full when the
+ * governor is out of memory and the bucket holds at least its share.
+ */
+final class OffHeapBucket {
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int REPORT_STEP = 256 * 1024;
+
+    private final long budget;
+    private final int chunkSize;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private int currentChunk = 0;
+    private long[] keys = new long[1024];
+    // chunk index in the high and position in the low 32 bits
+    private long[] offsets = new long[1024];
+    private int size = 0;
+    private long usedBytes = 0;
+    private final MemoryGovernor governor;
+    // bytes reported to the governor
+    private long reported = 0;
+    private boolean registered = false;
+
+    /**
+     * @param budget number of bytes for records and index after which the bucket is full
+     */
+    OffHeapBucket(long budget) {
+        this(budget, null);
+    }
+
+    /**
+     * @param budget number of bytes for records and index after which the bucket is full
+     * @param governor shared memory budget, may be null
+     */
+    OffHeapBucket(long budget, MemoryGovernor governor) {
+        this.budget = budget;
+        this.governor = governor;
+        chunkSize = (int) Math.max(4096, Math.min(budget, 8 * 1024 * 1024));
+        if (governor != null) {
+            governor.register();
+            registered = true;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        if (usedBytes >= budget) {
+            return true;
+        }
+        return governor != null && governor.isExhausted() && usedBytes >= governor.fairShare();
+    }
+
+    void add(long key, byte[] value) {
+        int recordSize = 4 + value.length;
+        ByteBuffer chunk = chunkFor(recordSize);
+        int position = chunk.position();
+        chunk.putInt(value.length);
+        chunk.put(value);
+        if (size == keys.length) {
+            int newLength = Math.max(1024, size * 2);
+            long[] newKeys = new long[newLength];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            keys = newKeys;
+            long[] newOffsets = new long[newLength];
+            System.arraycopy(offsets, 0, newOffsets, 0, size);
+            offsets = newOffsets;
+        }
+        keys[size] = key;
+        offsets[size] = (long) currentChunk << 32 | position;
+        size++;
+        usedBytes += recordSize + INDEX_ENTRY_BYTES;
+        if (governor != null && usedBytes - reported >= REPORT_STEP) {
+            governor.reserve(usedBytes - reported);
+            reported = usedBytes;
+        }
+    }
+
+    private ByteBuffer chunkFor(int recordSize) {
+        while (currentChunk < chunks.size()) {
+            ByteBuffer chunk = chunks.get(currentChunk);
+            if (chunk.remaining() >= recordSize) {
+                return chunk;
+            }
+            currentChunk++;
+        }
+        // records that are larger than a chunk get a chunk of their own
+        ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, recordSize));
+        chunks.add(chunk);
+        currentChunk = chunks.size() - 1;
+        return chunk;
+    }
+
+    /**
+     * Empties the bucket, keeping the regular sized chunks for the next run.
+     */
+    void clear() {
+        List<ByteBuffer> keep = new ArrayList<>();
+        for (ByteBuffer chunk : chunks) {
+            if (chunk.capacity() == chunkSize) {
+                chunk.clear();
+                keep.add(chunk);
+            }
+        }
+        chunks.clear();
+        chunks.addAll(keep);
+        currentChunk = 0;
+        size = 0;
+        usedBytes = 0;
+        if (governor != null) {
+            governor.release(reported);
+        }
+        reported = 0;
+    }
+
+    /**
+     * Empties the bucket and drops all chunks and the index, so their memory can be reclaimed even if the bucket
+     * itself is still referenced.
+     */
+    void release() {
+        clear();
+        chunks.clear();
+        keys = new long[0];
+        offsets = new long[0];
+        if (registered) {
+            // a released bucket no longer counts for the fair share
+            governor.unregister();
+            registered = false;
+        }
+    }
+
+    /**
+     * Sorts the index on key and then value and writes the entries. Same entries are written once.
+     */
+    void writeSorted(LongEntryWriter out) throws IOException {
+        sort(0, size - 1);
+        byte[] value = new byte[256];
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && compare(i, i - 1) == 0) {
+                continue;
+            }
+            ByteBuffer chunk = chunks.get((int) (offsets[i] >>> 32));
+            int position = (int) offsets[i];
+            int length = chunk.getInt(position);
+            if (value.length < length) {
+                value = new byte[Math.max(length, value.length * 2)];
+            }
+            for (int j = 0; j < length; j++) {
+                value[j] = chunk.get(position + 4 + j);
+            }
+            out.write(keys[i], value, 0, length);
+        }
+    }
+
+    private void sort(int low, int high) {
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            // median of three as the pivot avoids the worst case for input that is already sorted
+            if (compare(mid, low) < 0) {
+                swap(mid, low);
+            }
+            if (compare(high, low) < 0) {
+                swap(high, low);
+            }
+            if (compare(high, mid) < 0) {
+                swap(high, mid);
+            }
+            long pivotKey = keys[mid];
+            long pivotOffset = offsets[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(keys[i], offsets[i], pivotKey, pivotOffset) < 0) {
+                    i++;
+                }
+                while (compare(keys[j], offsets[j], pivotKey, pivotOffset) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // recurse into the smaller half to bound the stack depth
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(j, j - 1) < 0; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private int compare(int i, int j) {
+        return compare(keys[i], offsets[i], keys[j], offsets[j]);
+    }
+
+    private int compare(long key1, long offset1, long key2, long offset2) {
+        int c = Long.compare(key1, key2);
+        if (c != 0 || offset1 == offset2) {
+            return c;
+        }
+        ByteBuffer chunk1 = chunks.get((int) (offset1 >>> 32));
+        ByteBuffer chunk2 = chunks.get((int) (offset2 >>> 32));
+        int position1 = (int) offset1;
+        int position2 = (int) offset2;
+        int length1 = chunk1.getInt(position1);
+        int length2 = chunk2.getInt(position2);
+        int length = Math.min(length1, length2);
+        for (int i = 4; i < length + 4; i++) {
+            int b1 = chunk1.get(position1 + i) & 0xff;
+            int b2 = chunk2.get(position2 + i) & 0xff;
+            if (b1 != b2) {
+                return utf16Order(b1) - utf16Order(b2);
+            }
+        }
+        return length1 - length2;
+    }
+
+    /**
+     * utf-8 bytes sort in code point order, String.compareTo sorts on utf-16 chars. The only difference is that
+     * characters above U+FFFF, with lead bytes 0xF0 to 0xF4, come before U+E000 to U+FFFF, with lead bytes 0xEE and
+     * 0xEF, in utf-16. Since the values are equal up to the differing byte, both bytes are at the same position in a
+     * character. Lead bytes 0xF0 to 0xF4 are ranked between 0xED and 0xEE in their own order, so that different
+     * characters never compare as equal.
+     */
+    private static int utf16Order(int b) {
+        if (b >= 0xf0) {
+            return 0xed * 8 + 1 + (b - 0xf0);
+        }
+        return b * 8;
+    }
+
+    private void swap(int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        long offset = offsets[i];
+        offsets[i] = offsets[j];
+        offsets[j] = offset;
+    }
+}
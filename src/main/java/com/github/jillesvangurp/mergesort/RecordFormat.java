@@ -0,0 +1,72 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.github.jillesvangurp.common.Codec;
+
+/**
+ * How {@link LongEntry} records are stored in the bucket files and sorted maps.
+ *
+ * Text is a key;value line per record, which is easy to inspect with zcat but has to be split on read and cannot
+ * contain new lines. Binary is a varint key, a varint value length and the utf-8 value bytes, after a short header.
+ * Readers recognize the header, so files of both formats can be read without knowing which one was used.
+ */
+public enum RecordFormat {
+    TEXT {
+        @Override
+        public LongEntryWriter writer(OutputStream out) {
+            return new LongEntryWriter.Text(out);
+        }
+    },
+    BINARY {
+        @Override
+        public LongEntryWriter writer(OutputStream out) throws IOException {
+            return new LongEntryWriter.Binary(out);
+        }
+    };
+
+    // starts with a zero byte, which a text record can never start with
+    static final byte[] BINARY_MAGIC = { 0, 'L', 'E', 1 };
+
+    /**
+     * @param out uncompressed output, closed when the writer is closed
+     * @return writer for this format
+     */
+    public abstract LongEntryWriter writer(OutputStream out) throws IOException;
+
+    /**
+     * @return writer for this format that writes a file with the codec
+     */
+    public LongEntryWriter writer(String file, Codec codec) throws IOException {
+        return writer(codec.fileOutputStream(file));
+    }
+
+    /**
+     * @return the records in a file of either format, written with any codec
+     */
+    public static LongEntryReader read(String file) throws IOException {
+        return read(Codec.fileInputStream(file));
+    }
+
+    /**
+     * @return the records in a stream of either format
+     */
+    public static LongEntryReader read(InputStream in) throws IOException {
+        InputStream buffered = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 64 * 1024);
+        buffered.mark(BINARY_MAGIC.length);
+        boolean binary = true;
+        for (byte b : BINARY_MAGIC) {
+            if (buffered.read() != b) {
+                binary = false;
+                break;
+            }
+        }
+        if (!binary) {
+            buffered.reset();
+        }
+        return new LongEntryReader(buffered, binary);
+    }
+}
@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import org.apache.commons.lang.StringUtils;
+import com.github.jillesvangurp.common.Codec;
 import com.github.jillesvangurp.osm2geojson.EntryJoiningIterable.JoinedEntries;
 import com.jillesvangurp.iterables.ConcurrentProcessingIterable;
 import static com.jillesvangurp.iterables.Iterables.processConcurrently;
@@ -32,8 +33,8 @@ public class EntryJoiningIterable implements Iterable<JoinedEntries> {
     public static void join(String leftMapFile, String rightMapFile, Processor<JoinedEntries, Boolean> processor,
             int readBlockSize, int threadPoolSize, int queueSize) {
         try {
-            try (LineIterable l = LineIterable.openGzipFile(leftMapFile)) {
-                try (LineIterable r = LineIterable.openGzipFile(rightMapFile)) {
+            try (LineIterable l = Codec.lines(leftMapFile)) {
+                try (LineIterable r = Codec.lines(rightMapFile)) {
                     EntryJoiningIterable iterable = new EntryJoiningIterable(l, r);
                     try (ConcurrentProcessingIterable<JoinedEntries, Boolean> concIt
                             = processConcurrently(iterable, processor, readBlockSize, threadPoolSize, queueSize)) {
@@ -0,0 +1,168 @@
+package com.github.jillesvangurp.osm2geojson;
+
+/**
+ * Coordinates are handled as longs in units of 1e-7 degrees, which is the precision used by osm itself. This avoids
+ * parsing to and formatting from doubles in every step of the join. The intermediate json uses these fixed point
+ * values and only the final geojson is formatted as decimal degrees.
+ *
+ * Instances of this class are used as the number value of json primitives in the geojson output so that they are
+ * serialized with {@link #format(StringBuilder, long)} rather than Double.toString.
+ */
+public final class FixedPoint extends Number implements Comparable<FixedPoint> {
+    private static final long serialVersionUID = 1L;
+    public static final int DECIMALS = 7;
+    public static final long SCALE = 10000000;
+
+    private final long value;
+
+    public FixedPoint(long value) {
+        this.value = value;
+    }
+
+    /**
+     * Parses a decimal number of the form -?[0-9]+(\.[0-9]+)? into fixed point. Decimals beyond the seventh are
+     * rounded.
+     *
+     * @throws NumberFormatException if the input is not a decimal number
+     */
+    public static long parse(CharSequence input, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && input.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+        long integer = 0;
+        int digits = 0;
+        while (i < end && isDigit(input.charAt(i))) {
+            integer = integer * 10 + (input.charAt(i) - '0');
+            if (integer > Integer.MAX_VALUE) {
+                throw new NumberFormatException("out of range " + input.subSequence(start, end));
+            }
+            i++;
+            digits++;
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("not a number " + input.subSequence(start, end));
+        }
+        long fraction = 0;
+        if (i < end) {
+            if (input.charAt(i) != '.') {
+                throw new NumberFormatException("not a number " + input.subSequence(start, end));
+            }
+            i++;
+            int decimals = 0;
+            boolean roundUp = false;
+            while (i < end && isDigit(input.charAt(i))) {
+                if (decimals < DECIMALS) {
+                    fraction = fraction * 10 + (input.charAt(i) - '0');
+                } else if (decimals == DECIMALS) {
+                    roundUp = input.charAt(i) >= '5';
+                }
+                decimals++;
+                i++;
+            }
+            if (decimals == 0 || i < end) {
+                throw new NumberFormatException("not a number " + input.subSequence(start, end));
+            }
+            for (int d = decimals; d < DECIMALS; d++) {
+                fraction *= 10;
+            }
+            if (roundUp) {
+                fraction++;
+            }
+        }
+        long result = integer * SCALE + fraction;
+        return negative ? -result : result;
+    }
+
+    public static long parse(CharSequence input) {
+        return parse(input, 0, input.length());
+    }
+
+    /**
+     * @return the fixed point value for a coordinate in nano degrees, as used in osm pbf files
+     */
+    public static long fromNanoDegrees(long nanoDegrees) {
+        return (nanoDegrees + (nanoDegrees < 0 ? -50 : 50)) / 100;
+    }
+
+    /**
+     * Appends the value as a decimal number without trailing zeros.
+     */
+    public static void format(StringBuilder buf, long value) {
+        if (value < 0) {
+            buf.append('-');
+            value = -value;
+        }
+        buf.append(value / SCALE);
+        long fraction = value % SCALE;
+        if (fraction != 0) {
+            buf.append('.');
+            int digits = DECIMALS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            String f = Long.toString(fraction);
+            for (int i = f.length(); i < digits; i++) {
+                buf.append('0');
+            }
+            buf.append(f);
+        }
+    }
+
+    public static String format(long value) {
+        StringBuilder buf = new StringBuilder(12);
+        format(buf, value);
+        return buf.toString();
+    }
+
+    public long fixedPointValue() {
+        return value;
+    }
+
+    @Override
+    public int intValue() {
+        return (int) (value / SCALE);
+    }
+
+    @Override
+    public long longValue() {
+        return value / SCALE;
+    }
+
+    @Override
+    public float floatValue() {
+        return (float) doubleValue();
+    }
+
+    @Override
+    public double doubleValue() {
+        return value / (double) SCALE;
+    }
+
+    @Override
+    public int compareTo(FixedPoint o) {
+        return value < o.value ? -1 : value == o.value ? 0 : 1;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof FixedPoint && ((FixedPoint) obj).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return format(value);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,325 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static com.jillesvangurp.iterables.Iterables.consume;
+import static com.jillesvangurp.iterables.Iterables.processConcurrently;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.Codec;
+import com.github.jillesvangurp.mergesort.LongEntry;
+import com.github.jillesvangurp.mergesort.LongEntryReader;
+import com.github.jillesvangurp.mergesort.LongEntryWriter;
+import com.github.jillesvangurp.mergesort.LongHashMultiMap;
+import com.github.jillesvangurp.mergesort.RecordFormat;
+import com.github.jillesvangurp.osm2geojson.LongEntryJoiningIterable.JoinedEntries;
+import com.jillesvangurp.iterables.ConcurrentProcessingIterable;
+import com.jillesvangurp.iterables.PeekableIterator;
+import com.jillesvangurp.iterables.Processor;
+
+/**
+ * Same as {@link EntryJoiningIterable} for maps that are sorted on numeric keys by
+ * {@link com.github.jillesvangurp.mergesort.LongSortingWriter}.
+ */
+public class LongEntryJoiningIterable implements Iterable<JoinedEntries> {
+
+    private static final Logger logger = LoggerFactory.getLogger(LongEntryJoiningIterable.class);
+    // bounds the number of files that are open while partitioning
+    private static final int MAX_PARTITIONS = 256;
+
+    private final PeekableIterator<LongEntry> left;
+    private final PeekableIterator<LongEntry> right;
+
+    LongEntryJoiningIterable(Iterable<String> l, Iterable<String> r) {
+        this(OsmJoin.peekableLongEntryIterable(l), OsmJoin.peekableLongEntryIterable(r));
+    }
+
+    private LongEntryJoiningIterable(PeekableIterator<LongEntry> left, PeekableIterator<LongEntry> right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    static LongEntryJoiningIterable ofEntries(Iterable<LongEntry> l, Iterable<LongEntry> r) {
+        return new LongEntryJoiningIterable(new PeekableIterator<LongEntry>(l), new PeekableIterator<LongEntry>(r));
+    }
+
+    public static void join(String leftMapFile, String rightMapFile, Processor<JoinedEntries, Boolean> processor,
+            int readBlockSize, int threadPoolSize, int queueSize) {
+        try {
+            try (LongEntryReader l = RecordFormat.read(leftMapFile)) {
+                try (LongEntryReader r = RecordFormat.read(rightMapFile)) {
+                    LongEntryJoiningIterable iterable = ofEntries(l, r);
+                    try (ConcurrentProcessingIterable<JoinedEntries, Boolean> concIt
+                            = processConcurrently(iterable, processor, readBlockSize, threadPoolSize, queueSize)) {
+                        consume(concIt);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Problem in LongEntryJoiningIterable.join", e);
+        }
+    }
+
+    /**
+     * Joins two maps by putting one side, the build side, in a {@link LongHashMultiMap} and streaming the other side
+     * past it. Unlike {@link #join(String, String, Processor, int, int, int)} the streamed side does not have to be
+     * sorted, but its entries with the same key are only joined together when they are next to each other. Joined
+     * entries come in the order of the streamed side.
+     *
+     * If the build side takes more than memoryBytes, both sides are first split on their keys into partitions in
+     * tempDir that are joined one at a time.
+     *
+     * @param buildLeft true to put the left map in memory, false for the right map
+     */
+    public static void hashJoin(String leftMapFile, String rightMapFile, boolean buildLeft, long memoryBytes,
+            String tempDir, Processor<JoinedEntries, Boolean> processor, int readBlockSize, int threadPoolSize,
+            int queueSize) {
+        String buildFile = buildLeft ? leftMapFile : rightMapFile;
+        String probeFile = buildLeft ? rightMapFile : leftMapFile;
+        try {
+            LongHashMultiMap build = new LongHashMultiMap();
+            long buildBytes = 0;
+            try (LongEntryReader reader = RecordFormat.read(buildFile)) {
+                for (LongEntry entry : reader) {
+                    buildBytes += LongHashMultiMap.entryBytes(entry.getValue());
+                    if (build != null) {
+                        build.put(entry.getKey(), entry.getValue());
+                        if (build.bytes() > memoryBytes) {
+                            // keep counting, to know how many partitions are needed
+                            build = null;
+                        }
+                    }
+                }
+            }
+            if (build != null) {
+                try (LongEntryReader probe = RecordFormat.read(probeFile)) {
+                    probe(build, probe, buildLeft, processor, readBlockSize, threadPoolSize, queueSize);
+                }
+            } else {
+                int partitions = (int) Math.min(MAX_PARTITIONS, 2 * buildBytes / Math.max(1, memoryBytes) + 1);
+                logger.info("hash joining " + buildFile + " in " + partitions + " partitions, it takes about "
+                        + buildBytes + " bytes");
+                partitionedHashJoin(buildFile, probeFile, buildLeft, partitions, tempDir, processor, readBlockSize,
+                        threadPoolSize, queueSize);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot join " + leftMapFile + " and " + rightMapFile, e);
+        }
+    }
+
+    private static void partitionedHashJoin(String buildFile, String probeFile, boolean buildLeft, int partitions,
+            String tempDir, Processor<JoinedEntries, Boolean> processor, int readBlockSize, int threadPoolSize,
+            int queueSize) throws IOException {
+        FileUtils.forceMkdir(new File(tempDir));
+        String[] buildPartitions = partition(buildFile, partitions, tempDir, "build");
+        String[] probePartitions = partition(probeFile, partitions, tempDir, "probe");
+        try {
+            for (int i = 0; i < partitions; i++) {
+                LongHashMultiMap build = new LongHashMultiMap();
+                try (LongEntryReader reader = RecordFormat.read(buildPartitions[i])) {
+                    for (LongEntry entry : reader) {
+                        build.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                try (LongEntryReader probe = RecordFormat.read(probePartitions[i])) {
+                    probe(build, probe, buildLeft, processor, readBlockSize, threadPoolSize, queueSize);
+                }
+                new File(buildPartitions[i]).delete();
+                new File(probePartitions[i]).delete();
+            }
+        } finally {
+            for (int i = 0; i < partitions; i++) {
+                new File(buildPartitions[i]).delete();
+                new File(probePartitions[i]).delete();
+            }
+        }
+    }
+
+    /**
+     * Splits a map on the hash of its keys. Each partition keeps the order of the map.
+     *
+     * @return the partition files
+     */
+    private static String[] partition(String mapFile, int partitions, String tempDir, String name)
+            throws IOException {
+        String[] files = new String[partitions];
+        LongEntryWriter[] writers = new LongEntryWriter[partitions];
+        try {
+            for (int i = 0; i < partitions; i++) {
+                files[i] = new File(tempDir, name + "-" + i + ".gz").getPath();
+                writers[i] = RecordFormat.BINARY.writer(files[i], Codec.FAST);
+            }
+            try (LongEntryReader reader = RecordFormat.read(mapFile)) {
+                for (LongEntry entry : reader) {
+                    writers[partition(entry.getKey(), partitions)].write(entry);
+                }
+            }
+        } finally {
+            for (LongEntryWriter writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+        return files;
+    }
+
+    static int partition(long key, int partitions) {
+        // a different hash than LongHashMultiMap, so a partition still spreads over the whole table
+        long h = key ^ key >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) ((h & Long.MAX_VALUE) % partitions);
+    }
+
+    private static void probe(LongHashMultiMap build, Iterable<LongEntry> probe, boolean buildLeft,
+            Processor<JoinedEntries, Boolean> processor, int readBlockSize, int threadPoolSize, int queueSize) {
+        try (ConcurrentProcessingIterable<JoinedEntries, Boolean> concIt = processConcurrently(new HashJoiningIterable(
+                build, probe, buildLeft), processor, readBlockSize, threadPoolSize, queueSize)) {
+            consume(concIt);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Iterator<JoinedEntries> iterator() {
+        return new Iterator<JoinedEntries>() {
+            JoinedEntries next = null;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null) {
+                    return true;
+                } else {
+                    while (left.hasNext() && right.hasNext()) {
+                        next = new JoinedEntries();
+                        LongEntry leftEntry = left.next();
+                        long leftKey = leftEntry.getKey();
+
+                        while (right.hasNext() && right.peek().getKey() < leftKey) {
+                            // skip right entries until we find a matching row
+                            right.next();
+                        }
+                        while (right.hasNext() && right.peek().getKey() == leftKey) {
+                            next.right.add(right.next());
+                        }
+                        if (next.right.size() > 0) {
+                            next.left.add(leftEntry);
+                            // add any left entries with same id
+                            while (left.hasNext() && left.peek().getKey() == leftKey) {
+                                next.left.add(left.next());
+                            }
+                            // we found a valid joined entry!
+                            return true;
+                        }
+                    }
+                }
+                next = null;
+                return false;
+            }
+
+            @Override
+            public JoinedEntries next() {
+                if (hasNext()) {
+                    JoinedEntries result = next;
+                    next = null;
+                    return result;
+                } else {
+                    throw new NoSuchElementException();
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Joins the entries of a stream with the entries for the same key in a multi map, see
+     * {@link LongEntryJoiningIterable#hashJoin(String, String, boolean, long, String, Processor, int, int, int)}.
+     */
+    static class HashJoiningIterable implements Iterable<JoinedEntries> {
+        private final LongHashMultiMap build;
+        private final Iterable<LongEntry> probe;
+        private final boolean buildLeft;
+
+        HashJoiningIterable(LongHashMultiMap build, Iterable<LongEntry> probe, boolean buildLeft) {
+            this.build = build;
+            this.probe = probe;
+            this.buildLeft = buildLeft;
+        }
+
+        @Override
+        public Iterator<JoinedEntries> iterator() {
+            final PeekableIterator<LongEntry> entries = new PeekableIterator<LongEntry>(probe);
+            return new Iterator<JoinedEntries>() {
+                JoinedEntries next = null;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && entries.hasNext()) {
+                        LongEntry entry = entries.next();
+                        long key = entry.getKey();
+                        List<String> values = build.get(key);
+                        if (values.isEmpty()) {
+                            continue;
+                        }
+                        JoinedEntries joined = new JoinedEntries();
+                        List<LongEntry> built = buildLeft ? joined.left : joined.right;
+                        List<LongEntry> probed = buildLeft ? joined.right : joined.left;
+                        for (String value : values) {
+                            built.add(new LongEntry(key, value));
+                        }
+                        probed.add(entry);
+                        while (entries.hasNext() && entries.peek().getKey() == key) {
+                            probed.add(entries.next());
+                        }
+                        next = joined;
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public JoinedEntries next() {
+                    if (hasNext()) {
+                        JoinedEntries result = next;
+                        next = null;
+                        return result;
+                    } else {
+                        throw new NoSuchElementException();
+                    }
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    public static class JoinedEntries {
+
+        List<LongEntry> left = new ArrayList<>();
+        List<LongEntry> right = new ArrayList<>();
+
+        @Override
+        public String toString() {
+            return "left:\n\t" + StringUtils.join(left, "\n\t") + "\nright:\n\t" + StringUtils.join(right, "\n\t");
+        }
+    }
+}
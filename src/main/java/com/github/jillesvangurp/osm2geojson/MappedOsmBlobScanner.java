@@ -0,0 +1,227 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.jillesvangurp.iterables.Processor;
+
+/**
+ * Scans an uncompressed osm xml file using multiple threads. The file is memory mapped and cut into byte ranges.
+ * Each split point is moved forward to the start of the next node, way, or relation element. Each range is then
+ * scanned by its own thread, which passes the node, way, and relation blobs that start in its range directly to a
+ * processor. The blobs are the same as the ones produced by {@link OsmBlobIterable}, except that the whitespace
+ * between child elements is preserved.
+ */
+public class MappedOsmBlobScanner {
+    // ranges are mapped separately because a single mapping cannot exceed 2GB
+    private static final long MAX_RANGE_SIZE = 1024L * 1024 * 1024;
+    // blobs that start near the end of a range are read from the mapped overhang
+    private static final int MAX_BLOB_SIZE = 64 * 1024 * 1024;
+    private static final int SPLIT_SEARCH_WINDOW = 1024 * 1024;
+
+    private static final byte[] NODE = bytes("node");
+    private static final byte[] WAY = bytes("way");
+    private static final byte[] RELATION = bytes("relation");
+    private static final byte[] NODE_END = bytes("</node>");
+    private static final byte[] WAY_END = bytes("</way>");
+    private static final byte[] RELATION_END = bytes("</relation>");
+
+    private final String file;
+
+    public MappedOsmBlobScanner(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Scans the file and calls the processor for every node, way, and relation blob.
+     *
+     * @param processor called concurrently from the scanning threads
+     * @param threads number of scanning threads; the file is cut into at least this many ranges
+     * @return the number of blobs processed
+     */
+    public long scan(final Processor<String, Boolean> processor, int threads) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); final FileChannel channel = raf.getChannel()) {
+            final long size = channel.size();
+            int ranges = (int) Math.max(threads, (size + MAX_RANGE_SIZE - 1) / MAX_RANGE_SIZE);
+            long[] splits = splitPoints(channel, size, ranges);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Long>> results = new ArrayList<>();
+                for (int i = 0; i < ranges; i++) {
+                    final long start = splits[i];
+                    final long end = splits[i + 1];
+                    if (end > start) {
+                        results.add(executor.submit(new Callable<Long>() {
+                            @Override
+                            public Long call() throws Exception {
+                                return scanRange(channel, size, start, end, processor);
+                            }
+                        }));
+                    }
+                }
+                long blobs = 0;
+                for (Future<Long> result : results) {
+                    blobs += result.get();
+                }
+                return blobs;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while scanning " + file, e);
+            } catch (ExecutionException e) {
+                throw new IOException("error scanning " + file, e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return ranges + 1 offsets; range i runs from offset i to offset i + 1 and starts with a blob.
+     */
+    static long[] splitPoints(FileChannel channel, long size, int ranges) throws IOException {
+        long[] splits = new long[ranges + 1];
+        splits[ranges] = size;
+        for (int i = 1; i < ranges; i++) {
+            long candidate = Math.max(splits[i - 1], size * i / ranges);
+            splits[i] = nextBlobStart(channel, size, candidate);
+        }
+        return splits;
+    }
+
+    private static long nextBlobStart(FileChannel channel, long size, long from) throws IOException {
+        long offset = from;
+        while (offset < size) {
+            // overlap the windows a bit so that element names crossing a window boundary are found
+            int length = (int) Math.min(SPLIT_SEARCH_WINDOW + 16, size - offset);
+            MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, offset, length);
+            int limit = Math.min(SPLIT_SEARCH_WINDOW, length);
+            for (int i = 0; i < limit; i++) {
+                if (buf.get(i) == '<' && blobType(buf, i) != null) {
+                    return offset + i;
+                }
+            }
+            offset += limit;
+        }
+        return size;
+    }
+
+    private static long scanRange(FileChannel channel, long size, long start, long end, Processor<String, Boolean> processor)
+            throws IOException {
+        int rangeLength = (int) (end - start);
+        int mappedLength = (int) Math.min(size - start, (long) rangeLength + MAX_BLOB_SIZE);
+        MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, start, mappedLength);
+        long blobs = 0;
+        int pos = 0;
+        while (pos < rangeLength) {
+            if (buf.get(pos) != '<') {
+                pos++;
+                continue;
+            }
+            byte[] endTag = blobType(buf, pos);
+            if (endTag == null) {
+                pos++;
+                continue;
+            }
+            int blobEnd = blobEnd(buf, pos, mappedLength, endTag);
+            if (blobEnd < 0) {
+                throw new IllegalStateException("cannot find end of blob at offset " + (start + pos));
+            }
+            byte[] bytes = new byte[blobEnd - pos];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(pos);
+            dup.get(bytes);
+            processor.process(new String(bytes, ResourceUtil.UTF8));
+            blobs++;
+            pos = blobEnd;
+        }
+        return blobs;
+    }
+
+    /**
+     * @return the end tag if a node, way, or relation start tag begins at pos, null otherwise
+     */
+    private static byte[] blobType(ByteBuffer buf, int pos) {
+        if (matchesElement(buf, pos + 1, NODE)) {
+            return NODE_END;
+        } else if (matchesElement(buf, pos + 1, WAY)) {
+            return WAY_END;
+        } else if (matchesElement(buf, pos + 1, RELATION)) {
+            return RELATION_END;
+        }
+        return null;
+    }
+
+    private static boolean matchesElement(ByteBuffer buf, int pos, byte[] name) {
+        if (pos + name.length >= buf.limit()) {
+            return false;
+        }
+        if (!matches(buf, pos, name)) {
+            return false;
+        }
+        byte next = buf.get(pos + name.length);
+        return next == ' ' || next == '\t' || next == '\n' || next == '\r' || next == '>' || next == '/';
+    }
+
+    private static boolean matches(ByteBuffer buf, int pos, byte[] pattern) {
+        if (pos + pattern.length > buf.limit()) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (buf.get(pos + i) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the offset just after the blob that starts at pos, or -1 if it does not end before limit.
+     */
+    private static int blobEnd(ByteBuffer buf, int pos, int limit, byte[] endTag) {
+        // find the end of the start tag, skipping quoted attribute values that may contain '>'
+        int i = pos + 1;
+        byte quote = 0;
+        while (i < limit) {
+            byte b = buf.get(i);
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                break;
+            }
+            i++;
+        }
+        if (i >= limit) {
+            return -1;
+        }
+        if (buf.get(i - 1) == '/') {
+            return i + 1;
+        }
+        for (int j = i + 1; j + endTag.length <= limit; j++) {
+            if (buf.get(j) == '<' && matches(buf, j, endTag)) {
+                return j + endTag.length;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(ResourceUtil.UTF8);
+    }
+}
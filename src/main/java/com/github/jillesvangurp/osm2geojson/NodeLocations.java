@@ -0,0 +1,295 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates of nodes by id, so ways can look up the location of their nodes directly instead of joining sorted
+ * maps. A location is the fixed point longitude and latitude packed into one long, see {@link FixedPoint}.
+ *
+ * Small extracts use a sparse store: sorted arrays of ids and locations on the heap, 16 bytes per node. The arrays
+ * never grow beyond a heap budget, counting the old and the new arrays that are both live while they grow. When the
+ * budget is reached, the locations move to a dense store: a memory mapped file with 8 bytes for every id, indexed
+ * directly by id, which needs no heap. The file is sparse on disk, so unused ranges of ids take no space, and an
+ * extract with few of the ids takes little more disk than it has nodes. Negative ids, which osm editors use for new
+ * entities, always stay in the sparse store.
+ *
+ * Locations can be put from several threads. Call {@link #seal()} after the last put and before the first get.
+ */
+public class NodeLocations implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeLocations.class);
+
+    /**
+     * Returned by {@link #get(long)} for unknown nodes. Its latitude is out of range, so it is not a valid location.
+     */
+    public static final long MISSING = Long.MIN_VALUE;
+
+    // 128M nodes or 1GB per mapped chunk
+    private static final int CHUNK_BITS = 27;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private final File file;
+    // most nodes that fit in the heap budget of the sparse store
+    private final long sparseLimit;
+    private final AtomicLong count = new AtomicLong();
+
+    private long[] ids;
+    private long[] locations;
+    private int size = 0;
+    private volatile boolean sealed = false;
+
+    private volatile boolean dense = false;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    /**
+     * @param file file for the dense store, only created when it is needed
+     * @param heapBytes heap that the sparse store may use, including while it grows
+     */
+    public NodeLocations(File file, long heapBytes) {
+        this.file = file;
+        sparseLimit = Math.min(Integer.MAX_VALUE - 8, Math.max(1, heapBytes / 16));
+        int capacity = (int) Math.min(1024, Math.max(1, sparseLimit / 3));
+        ids = new long[capacity];
+        locations = new long[capacity];
+    }
+
+    /**
+     * Uses {@link #defaultHeapBytes()} for the sparse store.
+     */
+    public NodeLocations(File file) {
+        this(file, defaultHeapBytes());
+    }
+
+    /**
+     * @return an eighth of the maximum heap
+     */
+    public static long defaultHeapBytes() {
+        return Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    /**
+     * @return location for a longitude and latitude in fixed point
+     */
+    public static long location(long longitude, long latitude) {
+        return latitude << 32 | longitude & 0xffffffffL;
+    }
+
+    public static long longitude(long location) {
+        return (int) location;
+    }
+
+    public static long latitude(long location) {
+        return location >> 32;
+    }
+
+    public void put(long id, long longitude, long latitude) {
+        long location = location(longitude, latitude);
+        count.incrementAndGet();
+        if (dense && id >= 0) {
+            putDense(id, location);
+            return;
+        }
+        synchronized (this) {
+            if (sealed) {
+                throw new IllegalStateException("cannot put after seal");
+            }
+            if (dense && id >= 0) {
+                putDense(id, location);
+                return;
+            }
+            if (size == ids.length && !dense) {
+                // the old and the new arrays are both live while copying
+                long capacity = Math.min(size * 2L, sparseLimit - size);
+                if (capacity > size) {
+                    grow((int) capacity);
+                } else {
+                    toDense();
+                    if (id >= 0) {
+                        putDense(id, location);
+                        return;
+                    }
+                }
+            }
+            if (size == ids.length) {
+                // only negative ids once dense, which are few
+                grow(Math.max(16, size * 2));
+            }
+            ids[size] = id;
+            locations[size] = location;
+            size++;
+        }
+    }
+
+    private void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        locations = Arrays.copyOf(locations, capacity);
+    }
+
+    /**
+     * Moves the sparse locations with positive ids to the file.
+     */
+    private void toDense() {
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot create " + file, e);
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (ids[i] >= 0) {
+                putDense(ids[i], locations[i]);
+            } else {
+                ids[kept] = ids[i];
+                locations[kept] = locations[i];
+                kept++;
+            }
+        }
+        LOG.info("moved " + (size - kept) + " node locations to " + file
+                + ", the heap budget of the sparse store is used up");
+        size = kept;
+        grow(Math.max(16, kept));
+        dense = true;
+    }
+
+    private void putDense(long id, long location) {
+        // zero bytes in the file read as missing
+        chunk(id, true).putLong((int) ((id & CHUNK_MASK) << 3), location ^ MISSING);
+    }
+
+    private MappedByteBuffer chunk(long id, boolean create) {
+        int index = (int) (id >>> CHUNK_BITS);
+        MappedByteBuffer[] current = chunks;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        if (!create) {
+            return null;
+        }
+        synchronized (this) {
+            // a copy, so readers never see a chunk before it is published
+            current = Arrays.copyOf(chunks, Math.max(chunks.length, index + 1));
+            if (current[index] == null) {
+                try {
+                    // maps beyond the end of the file grow it, without writing the gap on file systems that support
+                    // sparse files
+                    current[index] = channel.map(MapMode.READ_WRITE, (long) index << (CHUNK_BITS + 3),
+                            8L << CHUNK_BITS);
+                } catch (IOException e) {
+                    throw new IllegalStateException("cannot map " + file, e);
+                }
+            }
+            chunks = current;
+            return current[index];
+        }
+    }
+
+    /**
+     * Sorts the sparse store. Locations can be read once it is sealed.
+     */
+    public synchronized void seal() {
+        if (!sealed) {
+            sort(0, size - 1);
+            sealed = true;
+            LOG.info("stored " + count.get() + " node locations, " + (dense ? "dense in " + file : "sparse"));
+        }
+    }
+
+    /**
+     * @return the location, or {@link #MISSING}
+     */
+    public long get(long id) {
+        if (!sealed) {
+            throw new IllegalStateException("seal before reading locations");
+        }
+        if (dense && id >= 0) {
+            MappedByteBuffer chunk = chunk(id, false);
+            return chunk == null ? MISSING : chunk.getLong((int) ((id & CHUNK_MASK) << 3)) ^ MISSING;
+        }
+        int i = Arrays.binarySearch(ids, 0, size, id);
+        return i < 0 ? MISSING : locations[i];
+    }
+
+    /**
+     * @return number of locations that were put
+     */
+    public long size() {
+        return count.get();
+    }
+
+    public boolean isDense() {
+        return dense;
+    }
+
+    private void sort(int low, int high) {
+        while (high - low > 16) {
+            long pivot = ids[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (ids[i] < pivot) {
+                    i++;
+                }
+                while (ids[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // recurse into the smaller part to bound the stack
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && ids[j - 1] > ids[j]; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        long location = locations[i];
+        locations[i] = locations[j];
+        locations[j] = location;
+    }
+
+    /**
+     * Deletes the file of the dense store. The mapped memory is released when the garbage collector gets to it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        chunks = new MappedByteBuffer[0];
+        ids = new long[0];
+        locations = new long[0];
+        size = 0;
+        if (raf != null) {
+            raf.close();
+            raf = null;
+            channel = null;
+            if (!file.delete()) {
+                LOG.warn("cannot delete " + file);
+            }
+        }
+    }
+}
@@ -57,40 +57,7 @@ public final class OsmBlobIterable implements Iterable<String> {
                     String line;
                     while (it.hasNext() && next == null) {
                         line = it.next();
-                        if (line.length() > 0) {
-                            String stripped = StringUtils.strip(line);
-                            if (stripped.startsWith("<node")) {
-                                buf.setLength(0);
-                                buf.append(line);
-                                if (!fastEndsWith(stripped, "/>")) {
-                                    while (!fastEndsWith(StringUtils.strip(line), "</node>")) {
-                                        line = it.next();
-                                        buf.append(line);
-                                    }
-                                }
-                                next = StringUtils.strip(buf.toString());
-                            } else if (stripped.startsWith("<way")) {
-                                buf.setLength(0);
-                                buf.append(line);
-                                if (!fastEndsWith(line, "/>")) {
-                                    while (!fastEndsWith(StringUtils.strip(line), "</way>")) {
-                                        line = it.next();
-                                        buf.append(line);
-                                    }
-                                }
-                                next = StringUtils.strip(buf.toString());
-                            } else if (stripped.startsWith("<relation")) {
-                                buf.setLength(0);
-                                buf.append(line);
-                                if (!fastEndsWith(line, "/>")) {
-                                    while (!fastEndsWith(StringUtils.strip(line), "</relation>")) {
-                                        line = it.next();
-                                        buf.append(line);
-                                    }
-                                }
-                                next = StringUtils.strip(buf.toString());
-                            }
-                        }
+                        next = readBlob(line, it, buf);
                     }
                     return next != null;
                 }
@@ -114,6 +81,37 @@ public final class OsmBlobIterable implements Iterable<String> {
         };
     }
 
+    /**
+     * If line starts a node, way, or relation, reads the remaining lines of that element from it.
+     *
+     * @return the stripped xml blob or null if line does not start an element
+     */
+    static String readBlob(String line, Iterator<String> it, StringBuilder buf) {
+        if (line.length() == 0) {
+            return null;
+        }
+        String stripped = StringUtils.strip(line);
+        String endTag;
+        if (stripped.startsWith("<node")) {
+            endTag = "</node>";
+        } else if (stripped.startsWith("<way")) {
+            endTag = "</way>";
+        } else if (stripped.startsWith("<relation")) {
+            endTag = "</relation>";
+        } else {
+            return null;
+        }
+        buf.setLength(0);
+        buf.append(line);
+        if (!fastEndsWith(stripped, "/>")) {
+            while (!fastEndsWith(StringUtils.strip(line), endTag)) {
+                line = it.next();
+                buf.append(line);
+            }
+        }
+        return StringUtils.strip(buf.toString());
+    }
+
     static boolean fastEndsWith(CharSequence buf, String postFix) {
         // String.endsWith is very slow and creating extra String objects
         // every time we want to check the CharSequence content is
@@ -0,0 +1,560 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.Codec;
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.mergesort.IndexedMapWriter;
+import com.github.jillesvangurp.mergesort.LongEntry;
+import com.github.jillesvangurp.mergesort.LongEntryReader;
+import com.github.jillesvangurp.mergesort.LongEntryWriter;
+import com.github.jillesvangurp.mergesort.LongSortingWriter;
+import com.github.jillesvangurp.mergesort.RecordFormat;
+import com.github.jillesvangurp.metrics.StopWatch;
+import com.github.jillesvangurp.osm2geojson.OsmPostProcessor.JsonWriter;
+import com.github.jillesvangurp.osm2geojson.OsmPostProcessor.OsmType;
+import com.github.jillesvangurp.osm2geojson.OsmXmlTokenizer.Token;
+import com.github.jsonj.JsonArray;
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.tools.JsonParser;
+import com.jillesvangurp.iterables.LineIterable;
+import com.jillesvangurp.iterables.PeekableIterator;
+
+/**
+ * Applies an osmChange (.osc or .osc.gz) file to the output of an earlier OsmJoin and OsmPostProcessor run instead of
+ * running the whole pipeline again.
+ *
+ * Changed entities are kept in memory, together with the ways and relations that refer to changed nodes or ways, so
+ * this is intended for diffs that touch a small part of the data. Each sorted map is patched by merging it with the
+ * changes in a single streaming pass. The intermediate maps that only feed the join steps (relid2nodejson,
+ * relid2jsonwithnodes, relid2wayjson) are not patched; processAll recreates them when needed.
+ */
+public class OsmChangeApplier {
+    private static final Logger LOG = LoggerFactory.getLogger(OsmChangeApplier.class);
+    private static final Set<String> NONE = Collections.emptySet();
+    // the sorted maps are in numeric id order
+    private static final Comparator<String> ID_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return Long.compare(Long.parseLong(o1), Long.parseLong(o2));
+        }
+    };
+
+    private final JsonParser parser;
+    private final OsmJoin join;
+    private final String dir;
+    private OsmFilter filter;
+
+    /**
+     * Changes are filtered with the filter that the maps in dir were split with, so that a diff does not add entities
+     * that a full run would leave out.
+     *
+     * @param dir directory with the output of OsmJoin and OsmPostProcessor
+     */
+    public OsmChangeApplier(String dir, JsonParser parser) {
+        this.parser = parser;
+        join = new OsmJoin(null, parser).setOutputDirectory(dir);
+        this.dir = dir;
+        OsmFilter recorded = join.recordedFilter();
+        if (recorded == null) {
+            LOG.warn("no stage manifest in " + dir + ", changes are not filtered");
+            recorded = new OsmFilter();
+        }
+        setFilter(recorded);
+    }
+
+    /**
+     * @param filter overrides the filter that the maps were split with
+     * @return the applier
+     */
+    public OsmChangeApplier setFilter(OsmFilter filter) {
+        this.filter = filter;
+        join.setFilter(filter);
+        return this;
+    }
+
+    public void apply(String changeFile) {
+        StopWatch timer = StopWatch.time(LOG, "apply " + changeFile);
+        // values are null for deleted entities
+        Map<String, String> nodes = new HashMap<>();
+        Map<String, String> ways = new HashMap<>();
+        Map<String, String> relations = new HashMap<>();
+        readChanges(changeFile, nodes, ways, relations);
+        if (filter.prunesWays()) {
+            pruneWays(ways, relations);
+        }
+        LOG.info("changed " + nodes.size() + " nodes, " + ways.size() + " ways, " + relations.size() + " relations");
+
+        TreeMap<String, TreeSet<String>> nodeId2WayIds = idMap();
+        for (Entry<String, String> e : ways.entrySet()) {
+            if (e.getValue() != null) {
+                for (long nodeId : parser.parse(e.getValue()).asObject().getArray("ns").longs()) {
+                    add(nodeId2WayIds, "" + nodeId, e.getKey());
+                }
+            }
+        }
+        TreeMap<String, TreeSet<String>> nodeId2RelIds = idMap();
+        TreeMap<String, TreeSet<String>> wayId2RelIds = idMap();
+        for (Entry<String, String> e : relations.entrySet()) {
+            if (e.getValue() != null) {
+                for (JsonObject member : parser.parse(e.getValue()).asObject().getArray("members").objects()) {
+                    if ("node".equalsIgnoreCase(member.getString("type"))) {
+                        add(nodeId2RelIds, member.getString("id"), e.getKey());
+                    } else {
+                        add(wayId2RelIds, member.getString("id"), e.getKey());
+                    }
+                }
+            }
+        }
+
+        // patch the reference maps and use them to find the ways and relations that refer to changed entities
+        Set<String> affectedWays = new HashSet<>(ways.keySet());
+        Map<String, List<String>> nodeWays = patch(OsmJoin.NODE_ID_WAY_ID_MAP, NONE, ways.keySet(), nodeId2WayIds,
+                nodes.keySet());
+        for (List<String> wayIds : nodeWays.values()) {
+            affectedWays.addAll(wayIds);
+        }
+        Set<String> affectedRelations = new HashSet<>(relations.keySet());
+        Map<String, List<String>> nodeRelations = patch(OsmJoin.NODE_ID_REL_ID_MAP, NONE, relations.keySet(),
+                nodeId2RelIds, nodes.keySet());
+        for (List<String> relIds : nodeRelations.values()) {
+            affectedRelations.addAll(relIds);
+        }
+        for (List<String> relIds : patch(OsmJoin.WAY_ID_REL_ID_MAP, NONE, relations.keySet(), wayId2RelIds,
+                affectedWays).values()) {
+            affectedRelations.addAll(relIds);
+        }
+        LOG.info("joining " + affectedWays.size() + " ways and " + affectedRelations.size() + " relations again");
+
+        Map<String, List<String>> wayJsons = patch(OsmJoin.WAY_ID_WAYJSON_MAP, ways.keySet(), NONE, changed(ways),
+                affectedWays);
+        Map<String, List<String>> relationJsons = patch(OsmJoin.REL_ID_RELJSON_MAP, relations.keySet(), NONE,
+                changed(relations), affectedRelations);
+
+        Set<String> nodeIds = new HashSet<>(nodes.keySet());
+        Set<String> wayIds = new HashSet<>(affectedWays);
+        for (List<String> wayJson : wayJsons.values()) {
+            for (long nodeId : parser.parse(wayJson.get(0)).asObject().getArray("ns").longs()) {
+                nodeIds.add("" + nodeId);
+            }
+        }
+        for (List<String> relationJson : relationJsons.values()) {
+            for (JsonObject member : parser.parse(relationJson.get(0)).asObject().getArray("members").objects()) {
+                if ("node".equalsIgnoreCase(member.getString("type"))) {
+                    nodeIds.add(member.getString("id"));
+                } else {
+                    wayIds.add(member.getString("id"));
+                }
+            }
+        }
+        if (filter.prunesNodes()) {
+            pruneNodes(nodes, nodeWays, nodeRelations);
+        }
+        Map<String, List<String>> nodeJsons = patch(OsmJoin.NODE_ID_NODEJSON_MAP, nodes.keySet(), NONE,
+                changed(nodes), nodeIds);
+
+        // same as stage 2 of OsmJoin.processAll, only ways with at least one known node are kept
+        TreeMap<String, TreeSet<String>> completeWays = idMap();
+        for (Entry<String, List<String>> e : wayJsons.entrySet()) {
+            String wayJson = e.getValue().get(0);
+            TreeSet<String> wayNodes = new TreeSet<>();
+            for (long nodeId : parser.parse(wayJson).asObject().getArray("ns").longs()) {
+                addAll(wayNodes, nodeJsons.get("" + nodeId));
+            }
+            if (!wayNodes.isEmpty()) {
+                add(completeWays, e.getKey(), join.completeWay(wayJson, wayNodes).toString());
+            }
+        }
+        Map<String, List<String>> completeWayJsons = patch(OsmJoin.WAY_ID_COMPLETE_JSON, affectedWays, NONE,
+                completeWays, wayIds);
+
+        // same as stages 3 to 6, only relations with at least one known node and one known way are kept
+        TreeMap<String, TreeSet<String>> completeRelations = idMap();
+        for (Entry<String, List<String>> e : relationJsons.entrySet()) {
+            JsonObject relation = parser.parse(e.getValue().get(0)).asObject();
+            TreeSet<String> relationNodes = new TreeSet<>();
+            TreeSet<String> relationWays = new TreeSet<>();
+            for (JsonObject member : relation.getArray("members").objects()) {
+                if ("node".equalsIgnoreCase(member.getString("type"))) {
+                    addAll(relationNodes, nodeJsons.get(member.getString("id")));
+                } else {
+                    addAll(relationWays, completeWayJsons.get(member.getString("id")));
+                }
+            }
+            if (!relationNodes.isEmpty() && !relationWays.isEmpty()) {
+                relation.put("nodes", parseAll(relationNodes));
+                relation.put("ways", parseAll(relationWays));
+                add(completeRelations, e.getKey(), relation.toString());
+            }
+        }
+        Map<String, List<String>> completeRelationJsons = patch(OsmJoin.REL_ID_COMPLETE_JSON, affectedRelations,
+                NONE, completeRelations, affectedRelations);
+
+        postProcess(OsmType.POI, nodes.keySet(), nodeJsons);
+        postProcess(OsmType.WAY, affectedWays, completeWayJsons);
+        postProcess(OsmType.RELATION, affectedRelations, completeRelationJsons);
+        timer.stop();
+    }
+
+    private void readChanges(String changeFile, Map<String, String> nodes, Map<String, String> ways,
+            Map<String, String> relations) {
+        LongSortingWriter nodesWriter = mapWriter(nodes);
+        LongSortingWriter waysWriter = mapWriter(ways);
+        LongSortingWriter relationsWriter = mapWriter(relations);
+        // the references are derived from the parsed ways and relations instead
+        LongSortingWriter ignored = mapWriter(new HashMap<String, String>());
+        try (LineIterable lines = changeFile.endsWith(".gz") ? LineIterable.openGzipFile(changeFile)
+                : new LineIterable(ResourceUtil.fileReader(changeFile));
+                BufferedWriter problems = ResourceUtil.gzipFileWriter(join.file("problemChanges.gz"))) {
+            for (Entry<String, String> change : new OsmChangeIterable(lines)) {
+                String blob = change.getValue();
+                String id = entityId(blob);
+                if (id == null) {
+                    problems.write(blob + '\n');
+                    continue;
+                }
+                boolean delete = OsmChangeIterable.DELETE.equals(change.getKey());
+                // entities that cannot be parsed are removed, like a full run would skip them
+                if (blob.startsWith("<node")) {
+                    nodes.put(id, null);
+                    if (!delete) {
+                        join.parseNode(nodesWriter, problems, blob);
+                    }
+                } else if (blob.startsWith("<way")) {
+                    ways.put(id, null);
+                    if (!delete) {
+                        join.parseWay(waysWriter, problems, ignored, blob);
+                    }
+                } else {
+                    relations.put(id, null);
+                    if (!delete) {
+                        join.parseRelation(relationsWriter, problems, ignored, ignored, blob);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot read changes from " + changeFile, e);
+        }
+    }
+
+    /**
+     * Like the split of a full run, drops the changed ways that the filter does not accept and that are not a member
+     * of a relation once the changes are applied. Unlike the split, ways are not checked against the area of the
+     * filter, the locations of their nodes are not known yet. The post processor leaves them out of its output.
+     */
+    private void pruneWays(Map<String, String> ways, Map<String, String> relations) {
+        Set<String> members = new HashSet<>();
+        for (String relation : relations.values()) {
+            if (relation != null) {
+                for (JsonObject member : parser.parse(relation).asObject().getArray("members").objects()) {
+                    if ("way".equalsIgnoreCase(member.getString("type"))) {
+                        members.add(member.getString("id"));
+                    }
+                }
+            }
+        }
+        Map<String, List<String>> existing = lookup(OsmJoin.WAY_ID_REL_ID_MAP, ways.keySet());
+        for (Entry<String, String> e : ways.entrySet()) {
+            String way = e.getValue();
+            if (way == null || members.contains(e.getKey())
+                    || filter.acceptsWay(OsmFilter.tagsFragment(way))) {
+                continue;
+            }
+            boolean member = false;
+            List<String> relIds = existing.get(e.getKey());
+            if (relIds != null) {
+                for (String relId : relIds) {
+                    // changed relations were handled above
+                    member |= !relations.containsKey(relId);
+                }
+            }
+            if (!member) {
+                e.setValue(null);
+            }
+        }
+    }
+
+    /**
+     * Like the split of a full run, drops the changed nodes that the filter does not accept and that no way or
+     * relation refers to once the changes are applied.
+     */
+    private void pruneNodes(Map<String, String> nodes, Map<String, List<String>> nodeWays,
+            Map<String, List<String>> nodeRelations) {
+        for (Entry<String, String> e : nodes.entrySet()) {
+            String node = e.getValue();
+            if (node != null && !nodeWays.containsKey(e.getKey()) && !nodeRelations.containsKey(e.getKey())
+                    && !filter.acceptsNodeJson(node)) {
+                e.setValue(null);
+            }
+        }
+    }
+
+    /**
+     * @return the values of the map for each key in keys that is present
+     */
+    private Map<String, List<String>> lookup(String name, Set<String> keys) {
+        Map<String, List<String>> found = new HashMap<>();
+        File file = new File(join.file(name));
+        if (!file.exists()) {
+            return found;
+        }
+        try (LongEntryReader entries = RecordFormat.read(file.getPath())) {
+            for (LongEntry entry : entries) {
+                String key = Long.toString(entry.getKey());
+                if (keys.contains(key)) {
+                    List<String> values = found.get(key);
+                    if (values == null) {
+                        values = new ArrayList<>();
+                        found.put(key, values);
+                    }
+                    values.add(entry.getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot read " + file, e);
+        }
+        return found;
+    }
+
+    private static String entityId(String blob) {
+        OsmXmlTokenizer tokenizer = new OsmXmlTokenizer(blob);
+        Token token = tokenizer.next();
+        if (token == Token.ELEMENT) {
+            token = tokenizer.next();
+        }
+        while (token == Token.ATTRIBUTE) {
+            if (tokenizer.nameIs("id")) {
+                try {
+                    return "" + tokenizer.longValue();
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            token = tokenizer.next();
+        }
+        return null;
+    }
+
+    /**
+     * Merges changes into a sorted map file in one pass. Entries are kept sorted by key and then by value, like
+     * LongSortingWriter does.
+     *
+     * @param dropKeys keys for which existing entries are removed
+     * @param dropValues values for which existing entries are removed
+     * @param inserts entries that are added
+     * @param lookupKeys keys for which the entries of the patched file are returned
+     * @return the values of the patched file for each key in lookupKeys that is present
+     */
+    private Map<String, List<String>> patch(String name, Set<String> dropKeys, Set<String> dropValues,
+            TreeMap<String, TreeSet<String>> inserts, Set<String> lookupKeys) {
+        File file = new File(join.file(name));
+        File patched = new File(file.getPath() + ".patch");
+        Map<String, List<String>> found = new HashMap<>();
+        PeekableIterator<Entry<String, TreeSet<String>>> pending = new PeekableIterator<Entry<String, TreeSet<String>>>(
+                inserts.entrySet());
+        // keep the index of indexed maps up to date
+        File index = new File(IndexedMapWriter.indexFile(file.getPath()));
+        try (LongEntryWriter out = index.exists() ? new IndexedMapWriter(patched.getPath()) : join.getRecordFormat()
+                .writer(patched.getPath(), join.getMapCodec())) {
+            if (file.exists()) {
+                try (LongEntryReader entries = RecordFormat.read(file.getPath())) {
+                    PeekableIterator<LongEntry> it = new PeekableIterator<LongEntry>(entries);
+                    while (it.hasNext()) {
+                        long id = it.peek().getKey();
+                        String key = Long.toString(id);
+                        TreeSet<String> values = new TreeSet<>();
+                        while (it.hasNext() && it.peek().getKey() == id) {
+                            String value = it.next().getValue();
+                            if (!dropKeys.contains(key) && !dropValues.contains(value)) {
+                                values.add(value);
+                            }
+                        }
+                        while (pending.hasNext() && ID_ORDER.compare(pending.peek().getKey(), key) <= 0) {
+                            Entry<String, TreeSet<String>> insert = pending.next();
+                            if (insert.getKey().equals(key)) {
+                                values.addAll(insert.getValue());
+                            } else {
+                                write(out, insert.getKey(), insert.getValue(), lookupKeys, found);
+                            }
+                        }
+                        write(out, key, values, lookupKeys, found);
+                    }
+                }
+            }
+            while (pending.hasNext()) {
+                Entry<String, TreeSet<String>> insert = pending.next();
+                write(out, insert.getKey(), insert.getValue(), lookupKeys, found);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot patch " + file, e);
+        }
+        OsmJoin.replaceFile(patched, file);
+        if (index.exists()) {
+            OsmJoin.replaceFile(new File(IndexedMapWriter.indexFile(patched.getPath())), index);
+        }
+        return found;
+    }
+
+    private static void write(LongEntryWriter out, String key, Set<String> values, Set<String> lookupKeys,
+            Map<String, List<String>> found) throws IOException {
+        if (values.isEmpty()) {
+            return;
+        }
+        long id = Long.parseLong(key);
+        for (String value : values) {
+            out.write(id, value);
+        }
+        if (lookupKeys.contains(key)) {
+            found.put(key, new ArrayList<>(values));
+        }
+    }
+
+    /**
+     * Runs the post processor over the new joined json of the changed entities and patches the existing geojson file
+     * with its output: the lines of the changed entities are filtered out and the new lines are appended. The post
+     * processor writes the geojson files in no particular order, as it processes concurrently, so the patched files
+     * are not ordered either.
+     */
+    private void postProcess(OsmType type, Set<String> ids, Map<String, List<String>> joinedJsons) {
+        StringBuilder lines = new StringBuilder();
+        TreeSet<String> sortedIds = new TreeSet<>(ID_ORDER);
+        sortedIds.addAll(ids);
+        for (String id : sortedIds) {
+            List<String> json = joinedJsons.get(id);
+            if (json != null) {
+                lines.append(id).append(';').append(json.get(0)).append('\n');
+            }
+        }
+        final TreeMap<String, String> geoJsons = new TreeMap<>(ID_ORDER);
+        OsmPostProcessor postProcessor = new OsmPostProcessor(parser) {
+            @Override
+            protected JsonWriter createJsonWriter(OsmType osmType) throws IOException {
+                return new JsonWriter() {
+                    @Override
+                    public void add(JsonObject json) throws IOException {
+                        String line = json.toString();
+                        geoJsons.put(geoJsonId(line), line);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                    }
+                };
+            }
+        }.setDirectory(dir).setFilter(filter);
+        LineIterable lineIterable = new LineIterable(new StringReader(lines.toString()));
+        switch (type) {
+            case POI:
+                postProcessor.processNodes(lineIterable, 100000);
+                break;
+            case WAY:
+                postProcessor.processWays(lineIterable, 100000);
+                break;
+            case RELATION:
+                postProcessor.processRelations(lineIterable, 100000);
+                break;
+            default:
+                throw new IllegalArgumentException("cannot happen");
+        }
+
+        File file = new File(postProcessor.outputFile(type));
+        File patched = new File(file.getPath() + ".patch");
+        try (BufferedWriter out = postProcessor.getOutputCodec().fileWriter(patched.getPath())) {
+            if (file.exists()) {
+                try (LineIterable existing = Codec.lines(file.getPath())) {
+                    for (String line : existing) {
+                        if (!ids.contains(geoJsonId(line))) {
+                            out.write(line + '\n');
+                        }
+                    }
+                }
+            }
+            for (String line : geoJsons.values()) {
+                out.write(line + '\n');
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot patch " + file, e);
+        }
+        OsmJoin.replaceFile(patched, file);
+    }
+
+    /**
+     * @return the osm id in the leading id field of a geojson line, e.g. 42 for {"id":"osmway/42",...
+     */
+    private static String geoJsonId(String line) {
+        int start = line.indexOf('/') + 1;
+        return line.substring(start, line.indexOf('"', start));
+    }
+
+    private static TreeMap<String, TreeSet<String>> idMap() {
+        return new TreeMap<>(ID_ORDER);
+    }
+
+    private static TreeMap<String, TreeSet<String>> changed(Map<String, String> entities) {
+        TreeMap<String, TreeSet<String>> result = idMap();
+        for (Entry<String, String> e : entities.entrySet()) {
+            if (e.getValue() != null) {
+                add(result, e.getKey(), e.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static void add(TreeMap<String, TreeSet<String>> map, String key, String value) {
+        TreeSet<String> values = map.get(key);
+        if (values == null) {
+            values = new TreeSet<>();
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static void addAll(Set<String> set, List<String> values) {
+        if (values != null) {
+            set.addAll(values);
+        }
+    }
+
+    private JsonArray parseAll(Set<String> jsons) {
+        JsonArray array = new JsonArray();
+        for (String json : jsons) {
+            array.add(parser.parse(json).asObject());
+        }
+        return array;
+    }
+
+    private static LongSortingWriter mapWriter(final Map<String, String> map) {
+        try {
+            return new LongSortingWriter(null, null, 0) {
+                @Override
+                public void put(long key, String value) {
+                    map.put(Long.toString(key), value);
+                }
+            };
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) {
+        String dir = args.length > 1 ? args[1] : "./";
+        new OsmChangeApplier(dir, new JsonParser()).apply(args[0]);
+    }
+}
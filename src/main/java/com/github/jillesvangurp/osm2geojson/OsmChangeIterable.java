@@ -0,0 +1,77 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.github.jillesvangurp.common.ImmutableEntry;
+import com.jillesvangurp.iterables.LineIterable;
+
+/**
+ * Iterates over an osmChange (.osc) file and yields entries of the action (create, modify, or delete) and the node,
+ * way, or relation xml blob it applies to. Entries are yielded in file order, so later changes to the same entity
+ * override earlier ones.
+ */
+public final class OsmChangeIterable implements Iterable<Entry<String, String>> {
+    public static final String CREATE = "create";
+    public static final String MODIFY = "modify";
+    public static final String DELETE = "delete";
+
+    private final LineIterable lineIterable;
+
+    public OsmChangeIterable(LineIterable lineIterable) {
+        this.lineIterable = lineIterable;
+    }
+
+    @Override
+    public Iterator<Entry<String, String>> iterator() {
+        final Iterator<String> it = lineIterable.iterator();
+        return new Iterator<Entry<String, String>>() {
+            String action = null;
+            Entry<String, String> next = null;
+            StringBuilder buf = new StringBuilder();
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && it.hasNext()) {
+                    String line = it.next();
+                    String stripped = StringUtils.strip(line);
+                    if (stripped.startsWith("<" + CREATE)) {
+                        action = CREATE;
+                    } else if (stripped.startsWith("<" + MODIFY)) {
+                        action = MODIFY;
+                    } else if (stripped.startsWith("<" + DELETE)) {
+                        action = DELETE;
+                    } else {
+                        String blob = OsmBlobIterable.readBlob(line, it, buf);
+                        if (blob != null) {
+                            if (action == null) {
+                                throw new IllegalStateException("element outside of create, modify, or delete " + blob);
+                            }
+                            next = new ImmutableEntry<String, String>(action, blob);
+                        }
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Entry<String, String> next() {
+                if (hasNext()) {
+                    Entry<String, String> result = next;
+                    next = null;
+                    return result;
+                } else {
+                    throw new NoSuchElementException();
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Remove is not supported");
+            }
+        };
+    }
+}
@@ -0,0 +1,368 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.github.jillesvangurp.osm2geojson.OsmPostProcessor.OsmType;
+import com.github.jsonj.JsonArray;
+import com.github.jsonj.JsonObject;
+
+/**
+ * Declarative filter that is applied while splitting the osm input so that the join only carries what the output can
+ * use. Ways and relations must be of one of the configured types and have all of the required tags, and have at least
+ * one node in the area. Nodes that are not part of the output themselves, including nodes outside the area, are kept
+ * only if a remaining way or relation refers to them, so ways and relations that cross the edge of the area are
+ * complete rather than clipped. The same is done for ways when relations are part of the output. The post processor
+ * applies the filter again so that those are left out of its output.
+ *
+ * Filters can be created with the fluent methods or parsed from a spec like
+ * <code>types=poi,way;tags=name,amenity=cafe;bbox=13.0,52.3,13.8,52.7</code>.
+ */
+public class OsmFilter {
+    private final EnumSet<OsmType> types = EnumSet.allOf(OsmType.class);
+    // json encoded "key": or "key":"value" needles to look for in the tags of an entity
+    private final List<String> requiredTags = new ArrayList<>();
+    private final List<String> requiredKeys = new ArrayList<>();
+    private final List<String> requiredValues = new ArrayList<>();
+    private long[] bbox = null;
+    private long[] polygon = null;
+
+    /**
+     * @param types the types of entities in the output
+     */
+    public OsmFilter types(OsmType... types) {
+        this.types.clear();
+        for (OsmType type : types) {
+            this.types.add(type);
+        }
+        return this;
+    }
+
+    /**
+     * Entities must have this tag, with any value.
+     */
+    public OsmFilter requireTag(String key) {
+        StringBuilder needle = new StringBuilder();
+        appendJsonString(needle, key);
+        needle.append(':');
+        requiredTags.add(needle.toString());
+        requiredKeys.add(key);
+        requiredValues.add(null);
+        return this;
+    }
+
+    /**
+     * Entities must have this tag with this value.
+     */
+    public OsmFilter requireTag(String key, String value) {
+        StringBuilder needle = new StringBuilder();
+        appendJsonString(needle, key);
+        needle.append(':');
+        appendJsonString(needle, value);
+        requiredTags.add(needle.toString());
+        requiredKeys.add(key);
+        requiredValues.add(value);
+        return this;
+    }
+
+    public OsmFilter boundingBox(double minLon, double minLat, double maxLon, double maxLat) {
+        bbox = new long[] { fixedPoint(minLon), fixedPoint(minLat), fixedPoint(maxLon), fixedPoint(maxLat) };
+        return this;
+    }
+
+    /**
+     * @param lonLats longitude and latitude pairs of the polygon outline
+     */
+    public OsmFilter polygon(double... lonLats) {
+        if (lonLats.length < 6 || lonLats.length % 2 != 0) {
+            throw new IllegalArgumentException("a polygon needs at least three longitude, latitude pairs");
+        }
+        long[] points = new long[lonLats.length];
+        long[] box = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE };
+        for (int i = 0; i < lonLats.length; i++) {
+            points[i] = fixedPoint(lonLats[i]);
+            box[i % 2] = Math.min(box[i % 2], points[i]);
+            box[2 + i % 2] = Math.max(box[2 + i % 2], points[i]);
+        }
+        polygon = points;
+        // the bounding box of the polygon is checked first
+        bbox = box;
+        return this;
+    }
+
+    /**
+     * @param spec semicolon separated types, tags, bbox, and polygon settings; tags are comma separated keys or
+     *            key=value pairs, bbox is minLon,minLat,maxLon,maxLat, polygon is lon,lat,lon,lat,...
+     */
+    public static OsmFilter parse(String spec) {
+        OsmFilter filter = new OsmFilter();
+        for (String setting : StringUtils.split(spec, ';')) {
+            int eq = setting.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("expected name=value but was " + setting);
+            }
+            String name = setting.substring(0, eq).trim();
+            String[] values = StringUtils.split(setting.substring(eq + 1), ',');
+            if ("types".equals(name)) {
+                OsmType[] types = new OsmType[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    types[i] = OsmType.valueOf(values[i].trim().toUpperCase());
+                }
+                filter.types(types);
+            } else if ("tags".equals(name)) {
+                for (String tag : values) {
+                    int tagEq = tag.indexOf('=');
+                    if (tagEq < 0) {
+                        filter.requireTag(tag.trim());
+                    } else {
+                        filter.requireTag(tag.substring(0, tagEq).trim(), tag.substring(tagEq + 1).trim());
+                    }
+                }
+            } else if ("bbox".equals(name)) {
+                double[] box = doubles(values);
+                if (box.length != 4) {
+                    throw new IllegalArgumentException("bbox needs minLon,minLat,maxLon,maxLat");
+                }
+                filter.boundingBox(box[0], box[1], box[2], box[3]);
+            } else if ("polygon".equals(name)) {
+                filter.polygon(doubles(values));
+            } else {
+                throw new IllegalArgumentException("unknown filter setting " + name);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * @return true if a node at this fixed point location, see {@link FixedPoint}, should be kept.
+     */
+    public boolean acceptsLocation(long lon, long lat) {
+        if (bbox == null) {
+            return true;
+        }
+        if (lon < bbox[0] || lat < bbox[1] || lon > bbox[2] || lat > bbox[3]) {
+            return false;
+        }
+        return polygon == null || insidePolygon(lon, lat);
+    }
+
+    private boolean insidePolygon(long lon, long lat) {
+        // ray casting; doubles avoid overflowing the products of fixed point values
+        boolean inside = false;
+        int n = polygon.length / 2;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            double xi = polygon[2 * i], yi = polygon[2 * i + 1];
+            double xj = polygon[2 * j], yj = polygon[2 * j + 1];
+            if ((yi > lat) != (yj > lat) && lon < (xj - xi) * (lat - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * @param tags the json fields of the tags object without the braces, as produced by the parsers
+     * @return true if all required tags are present
+     */
+    public boolean acceptsTags(CharSequence tags) {
+        String json = tags.toString();
+        for (int i = 0; i < requiredTags.size(); i++) {
+            if (!containsTag(json, requiredTags.get(i), requiredValues.get(i) != null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsTag(String json, String needle, boolean hasValue) {
+        int index = json.indexOf(needle);
+        while (index >= 0) {
+            // quotes in keys and values are escaped, so a quote after a comma always starts a key
+            boolean keyStart = index == 0 || json.charAt(index - 1) == ',';
+            int end = index + needle.length();
+            boolean valueEnd = !hasValue || end == json.length() || json.charAt(end) == ',';
+            if (keyStart && valueEnd) {
+                return true;
+            }
+            index = json.indexOf(needle, index + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Applies the type and tag requirements to parsed json, as done by the post processor for the entities that were
+     * only kept for the join.
+     *
+     * @param tags the tags object of an entity or null
+     */
+    public boolean accepts(OsmType type, JsonObject tags) {
+        if (!types.contains(type)) {
+            return false;
+        }
+        for (int i = 0; i < requiredKeys.size(); i++) {
+            String value = tags == null ? null : tags.getString(requiredKeys.get(i));
+            if (value == null || requiredValues.get(i) != null && !requiredValues.get(i).equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean acceptsNode(CharSequence tags) {
+        return types.contains(OsmType.POI) && acceptsTags(tags);
+    }
+
+    public boolean acceptsWay(CharSequence tags) {
+        return types.contains(OsmType.WAY) && acceptsTags(tags);
+    }
+
+    public boolean acceptsRelation(CharSequence tags) {
+        return types.contains(OsmType.RELATION) && acceptsTags(tags);
+    }
+
+    /**
+     * @param json a node as produced by the parsers
+     * @return true if the node is part of the output itself: it has the required tags and is in the area
+     */
+    public boolean acceptsNodeJson(String json) {
+        if (!acceptsNode(tagsFragment(json))) {
+            return false;
+        }
+        if (bbox == null) {
+            return true;
+        }
+        int start = json.indexOf("\"l\":[") + 5;
+        int comma = json.indexOf(',', start);
+        return acceptsLocation(Long.parseLong(json.substring(start, comma)), Long.parseLong(json.substring(comma + 1,
+                json.indexOf(']', comma))));
+    }
+
+    /**
+     * @param nodes joined json of nodes, with an "l" location
+     * @return true if there is no area or if at least one of the nodes is in it
+     */
+    public boolean touches(Iterable<JsonObject> nodes) {
+        if (bbox == null) {
+            return true;
+        }
+        for (JsonObject node : nodes) {
+            JsonArray location = node.getArray("l");
+            if (location != null && acceptsLocation(location.get(0).asLong(), location.get(1).asLong())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if nodes that are not accepted themselves have to be kept until it is known which ways and
+     *         relations refer to them. Nodes outside the area are kept as well, so that ways that cross its edge
+     *         are complete.
+     */
+    public boolean prunesNodes() {
+        return !types.contains(OsmType.POI) || !requiredTags.isEmpty() || bbox != null;
+    }
+
+    /**
+     * @return true if ways that are not accepted themselves have to be kept until it is known which relations refer to
+     *         them, or until the locations of their nodes are known. In this case the node references of ways are
+     *         only written when pruning.
+     */
+    public boolean prunesWays() {
+        return types.contains(OsmType.RELATION) && (!types.contains(OsmType.WAY) || !requiredTags.isEmpty())
+                || bbox != null && (types.contains(OsmType.WAY) || types.contains(OsmType.RELATION));
+    }
+
+    /**
+     * @return true if relations have to be kept until the locations of their members are known
+     */
+    public boolean prunesRelations() {
+        return bbox != null && types.contains(OsmType.RELATION);
+    }
+
+    /**
+     * @return the fields of the tags object in an entity json produced by the parsers, or an empty string.
+     */
+    static String tagsFragment(String json) {
+        int start = json.indexOf("\"tags\":{");
+        if (start < 0) {
+            return "";
+        }
+        start += 8;
+        boolean inString = false;
+        for (int i = start; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '}') {
+                return json.substring(start, i);
+            }
+        }
+        throw new IllegalArgumentException("unterminated tags in " + json);
+    }
+
+    private static void appendJsonString(StringBuilder buf, String value) {
+        buf.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            OsmXmlTokenizer.appendJsonChar(buf, value.charAt(i));
+        }
+        buf.append('"');
+    }
+
+    private static long fixedPoint(double degrees) {
+        return Math.round(degrees * FixedPoint.SCALE);
+    }
+
+    private static double[] doubles(String[] values) {
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Double.parseDouble(values[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * @return the filter as a spec that {@link #parse(String)} accepts
+     */
+    @Override
+    public String toString() {
+        StringBuilder spec = new StringBuilder("types=");
+        spec.append(StringUtils.join(types, ',').toLowerCase());
+        if (!requiredKeys.isEmpty()) {
+            spec.append(";tags=");
+            for (int i = 0; i < requiredKeys.size(); i++) {
+                if (i > 0) {
+                    spec.append(',');
+                }
+                spec.append(requiredKeys.get(i));
+                if (requiredValues.get(i) != null) {
+                    spec.append('=').append(requiredValues.get(i));
+                }
+            }
+        }
+        if (polygon != null) {
+            appendPoints(spec.append(";polygon="), polygon);
+        } else if (bbox != null) {
+            appendPoints(spec.append(";bbox="), bbox);
+        }
+        return spec.toString();
+    }
+
+    private static void appendPoints(StringBuilder spec, long[] points) {
+        for (int i = 0; i < points.length; i++) {
+            if (i > 0) {
+                spec.append(',');
+            }
+            FixedPoint.format(spec, points[i]);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.github.jillesvangurp.osm2geojson;
 
 import static com.github.jsonj.tools.JsonBuilder.array;
-import static com.github.jsonj.tools.JsonBuilder.object;
 import static com.github.jsonj.tools.JsonBuilder.primitive;
 import static com.jillesvangurp.iterables.Iterables.consume;
 import static com.jillesvangurp.iterables.Iterables.map;
@@ -10,21 +9,43 @@ import static com.jillesvangurp.iterables.Iterables.processConcurrently;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.jillesvangurp.common.Codec;
 import com.github.jillesvangurp.common.ResourceUtil;
 import com.github.jillesvangurp.mergesort.EntryParsingProcessor;
-import com.github.jillesvangurp.mergesort.SortingWriter;
+import com.github.jillesvangurp.mergesort.IndexedMapWriter;
+import com.github.jillesvangurp.mergesort.LongEntry;
+import com.github.jillesvangurp.mergesort.LongEntryParsingProcessor;
+import com.github.jillesvangurp.mergesort.LongEntryReader;
+import com.github.jillesvangurp.mergesort.LongEntryWriter;
+import com.github.jillesvangurp.mergesort.LongHashMultiMap;
+import com.github.jillesvangurp.mergesort.LongSortingWriter;
+import com.github.jillesvangurp.mergesort.MemoryGovernor;
+import com.github.jillesvangurp.mergesort.RecordFormat;
 import com.github.jillesvangurp.metrics.StopWatch;
-import com.github.jillesvangurp.osm2geojson.EntryJoiningIterable.JoinedEntries;
+import com.github.jillesvangurp.osm2geojson.LongEntryJoiningIterable.JoinedEntries;
+import com.github.jillesvangurp.osm2geojson.OsmXmlTokenizer.Token;
 import com.github.jsonj.JsonArray;
 import com.github.jsonj.JsonObject;
 import com.github.jsonj.tools.JsonParser;
@@ -32,7 +53,6 @@ import com.jillesvangurp.iterables.ConcurrentProcessingIterable;
 import com.jillesvangurp.iterables.LineIterable;
 import com.jillesvangurp.iterables.PeekableIterator;
 import com.jillesvangurp.iterables.Processor;
-import org.apache.commons.lang.StringEscapeUtils;
 
 public class OsmJoin {
 
@@ -43,22 +63,45 @@ public class OsmJoin {
     static final String NODE_ID_WAY_ID_MAP = "nodeid2wayid.gz";
     static final String NODE_ID_REL_ID_MAP = "nodeid2relid.gz";
     static final String WAY_ID_REL_ID_MAP = "wayid2relid.gz";
-    static final String WAY_ID_NODE_JSON_MAP = "wayid2nodejson.gz";
     static final String WAY_ID_COMPLETE_JSON = "wayid2completejson.gz";
     static final String REL_ID_NODE_JSON_MAP = "relid2nodejson.gz";
     static final String REL_ID_JSON_WITH_NODES = "relid2jsonwithnodes.gz";
     static final String REL_ID_WAY_JSON_MAP = "relid2wayjson.gz";
-    static final String REL_ID_COMPLETE_JSON = "relid2completejson.gz";    
-    static final Pattern idPattern = Pattern.compile("id=\"([0-9]+)");
-    static final Pattern latPattern = Pattern.compile("lat=\"(-?[0-9]+(\\.[0-9]+)?)");
-    static final Pattern lonPattern = Pattern.compile("lon=\"(-?[0-9]+(\\.[0-9]+)?)");
-    static final Pattern kvPattern = Pattern.compile("k=\"(.*?)\"\\s+v=\"(.*?)\"");
-    static final Pattern ndPattern = Pattern.compile("nd ref=\"([0-9]+)");
-    static final Pattern memberPattern = Pattern.compile("member type=\"(.*?)\" ref=\"([0-9]+)\" role=\"(.*?)\"");
+    static final String REL_ID_COMPLETE_JSON = "relid2completejson.gz";
+    static final int HASH_JOIN_RATIO = 10;
+    // stages of processAll
+    static final int STAGES = 6;
+    // rough size of a map in memory compared to the file
+    private static final int COMPRESSION_RATIO = 5;    
+    // the last stage manifest parameter, so that the filter spec can be read back by OsmChangeApplier
+    private static final String FILTER_PARAMETER = ",filter=";
     private final String workDirectory;
+    private String outputDirectory = "./";
+    private OsmFilter filter = new OsmFilter();
     private final JsonParser parser;
-    // choose a bucket size that will fit in memory. Larger means less bucket files and more ram are used.
-    private int bucketSize = 500000;
+    // bytes per bucket, allocated outside the heap. Larger means less bucket files and more ram are used. Up to two
+    // buckets per writer are in memory and the split step has six writers. Writers that are filled concurrently split
+    // this over a bucket per thread.
+    private long bucketBytes = 64L * 1024 * 1024;
+    // shared by all writers that are open at the same time, buckets are flushed early when it runs out
+    private double memoryFraction = 0.5;
+    private MemoryGovernor memoryGovernor = MemoryGovernor.fractionOfMaxMemory(memoryFraction);
+    private Codec bucketCodec = Codec.FAST;
+    // the final merge of each map runs on one thread, so its compression is spread over all processors
+    private Codec mapCodec = Codec.PARALLEL_GZIP;
+    private RecordFormat recordFormat = RecordFormat.BINARY;
+    private boolean indexedMaps = false;
+    // memory for the smaller map of a join step, see join
+    private long hashJoinBytes = Runtime.getRuntime().maxMemory() / 4;
+    private boolean hashJoinBytesSet = false;
+    // filled while splitting, see createWayId2CompleteJsonMap
+    private NodeLocations nodeLocations;
+    // outputs of the stages of processAll that are running
+    private final Set<String> staged = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // shared by the stages of processAll that run at the same time
+    private int stageThreads = Runtime.getRuntime().availableProcessors() + 2;
+    private long stageMemoryBytes = Runtime.getRuntime().maxMemory() / 2;
+    private boolean stageBudgetSet = false;
     private int blockSize = 1000;
     private int threadPoolSize = 8;    
     private int queueSize = 10000;
@@ -75,251 +118,1082 @@ public class OsmJoin {
         }
     }
 
+    /**
+     * @param dir directory for the sorted map files; defaults to the current directory.
+     */
+    public OsmJoin setOutputDirectory(String dir) {
+        try {
+            FileUtils.forceMkdir(new File(dir));
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot create dir " + dir);
+        }
+        this.outputDirectory = dir;
+        if (!this.outputDirectory.endsWith(File.separator)) {
+            this.outputDirectory += File.separator;
+        }
+        return this;
+    }
+
+    /**
+     * @param filter applied while splitting, see {@link OsmFilter}. By default everything is kept.
+     */
+    public OsmJoin setFilter(OsmFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * @param fraction of the maximum memory that all sort buckets together may use. Buckets are allocated as direct
+     * memory, which by default may be as large as the heap.
+     * @return the join
+     */
+    public OsmJoin setMemoryFraction(double fraction) {
+        memoryFraction = fraction;
+        memoryGovernor = MemoryGovernor.fractionOfMaxMemory(fraction);
+        return this;
+    }
+
+    /**
+     * @param bucketCodec compression of the sort buckets, which are written and read once. Defaults to
+     * {@link Codec#FAST}.
+     * @return the join
+     */
+    public OsmJoin setBucketCodec(Codec bucketCodec) {
+        this.bucketCodec = bucketCodec;
+        return this;
+    }
+
+    /**
+     * @param mapCodec compression of the sorted maps that are written by each step and read by the next ones,
+     * including the files for {@link OsmPostProcessor}. Defaults to {@link Codec#PARALLEL_GZIP}.
+     * @return the join
+     */
+    public OsmJoin setMapCodec(Codec mapCodec) {
+        this.mapCodec = mapCodec;
+        return this;
+    }
+
+    /**
+     * @param recordFormat format of the sort buckets and the sorted maps. Defaults to {@link RecordFormat#BINARY}, use
+     * {@link RecordFormat#TEXT} to inspect the maps with zcat.
+     * @return the join
+     */
+    public OsmJoin setRecordFormat(RecordFormat recordFormat) {
+        this.recordFormat = recordFormat;
+        return this;
+    }
+
+    /**
+     * @param indexedMaps if true, {@value #WAY_ID_COMPLETE_JSON} and {@value #REL_ID_COMPLETE_JSON} get an index, so
+     * that ways and relations can be looked up by id with a
+     * {@link com.github.jillesvangurp.mergesort.IndexedMapReader}.
+     * @return the join
+     */
+    public OsmJoin setIndexedMaps(boolean indexedMaps) {
+        this.indexedMaps = indexedMaps;
+        return this;
+    }
+
+    /**
+     * @param hashJoinBytes memory for the smaller map of a join step. A step that joins a map with one that is at
+     * least {@value #HASH_JOIN_RATIO} times larger puts the small map in memory, if it is likely to fit in this many
+     * bytes, and streams the large map past it. Defaults to a quarter of the maximum memory, 0 always merges the sorted
+     * maps instead.
+     * @return the join
+     */
+    public OsmJoin setHashJoinBytes(long hashJoinBytes) {
+        this.hashJoinBytes = hashJoinBytes;
+        hashJoinBytesSet = true;
+        return this;
+    }
+
+    /**
+     * Stages of processAll that do not need each other's output run at the same time, as long as the threads and
+     * memory they declare fit in this budget. The split and the ways keep all processors busy, the relation steps two
+     * threads and the memory for a hash join, see {@link #setHashJoinBytes(long)}.
+     *
+     * @param threads defaults to the number of processors plus two, enough to run a relation step next to a stage
+     * that keeps all processors busy
+     * @param memoryBytes defaults to half the maximum memory, the other half is for the sort buckets
+     * @return the join
+     */
+    public OsmJoin setStageBudget(int threads, long memoryBytes) {
+        stageThreads = threads;
+        stageMemoryBytes = memoryBytes;
+        stageBudgetSet = true;
+        return this;
+    }
+
+    Codec getMapCodec() {
+        return mapCodec;
+    }
+
+    RecordFormat getRecordFormat() {
+        return recordFormat;
+    }
+
+    int getThreadPoolSize() {
+        return threadPoolSize;
+    }
+
+    boolean isIndexedMaps() {
+        return indexedMaps;
+    }
+
+    String getWorkDirectory() {
+        return workDirectory;
+    }
+
+    /**
+     * @return writer for a map that is written in order, so it needs no sorting
+     */
+    LongEntryWriter mapWriter(String name, boolean indexed) throws IOException {
+        return fileWriter(file(name), indexed);
+    }
+
+    /**
+     * @return writer for a map in any file, in the format and compression of the maps of this join
+     */
+    LongEntryWriter fileWriter(String path, boolean indexed) throws IOException {
+        return indexed ? new IndexedMapWriter(path) : recordFormat.writer(path, mapCodec);
+    }
+
+    /**
+     * @return the settings of this join as name=value arguments for {@link #configure(String)}, so that a join in
+     *         another JVM runs the same way. Memory budgets that default to a part of the heap of this JVM are only
+     *         included when they were set, so that another JVM takes them from its own heap. The filter comes last.
+     */
+    List<String> settings() {
+        List<String> settings = new ArrayList<>(Arrays.asList("recordFormat=" + recordFormat.name(), "mapCodec="
+                + mapCodec, "bucketCodec=" + bucketCodec, "indexedMaps=" + indexedMaps, "bucketBytes=" + bucketBytes,
+                "memoryFraction=" + memoryFraction, "threadPoolSize=" + threadPoolSize, "blockSize=" + blockSize,
+                "queueSize=" + queueSize));
+        if (hashJoinBytesSet) {
+            settings.add("hashJoinBytes=" + hashJoinBytes);
+        }
+        if (stageBudgetSet) {
+            settings.add("stageThreads=" + stageThreads);
+            settings.add("stageMemoryBytes=" + stageMemoryBytes);
+        }
+        settings.add("filter=" + filter);
+        return settings;
+    }
+
+    /**
+     * @param setting name=value as returned by {@link #settings()}
+     * @return the join
+     */
+    OsmJoin configure(String setting) {
+        int eq = setting.indexOf('=');
+        if (eq < 0) {
+            throw new IllegalArgumentException("setting should be name=value but was " + setting);
+        }
+        String name = setting.substring(0, eq);
+        String value = setting.substring(eq + 1);
+        switch (name) {
+        case "recordFormat":
+            return setRecordFormat(RecordFormat.valueOf(value));
+        case "mapCodec":
+            return setMapCodec(Codec.parse(value));
+        case "bucketCodec":
+            return setBucketCodec(Codec.parse(value));
+        case "indexedMaps":
+            return setIndexedMaps(Boolean.parseBoolean(value));
+        case "hashJoinBytes":
+            return setHashJoinBytes(Long.parseLong(value));
+        case "bucketBytes":
+            bucketBytes = Long.parseLong(value);
+            return this;
+        case "memoryFraction":
+            return setMemoryFraction(Double.parseDouble(value));
+        case "stageThreads":
+            return setStageBudget(Integer.parseInt(value), stageMemoryBytes);
+        case "stageMemoryBytes":
+            return setStageBudget(stageThreads, Long.parseLong(value));
+        case "threadPoolSize":
+            threadPoolSize = Integer.parseInt(value);
+            return this;
+        case "blockSize":
+            blockSize = Integer.parseInt(value);
+            return this;
+        case "queueSize":
+            queueSize = Integer.parseInt(value);
+            return this;
+        case "filter":
+            return setFilter(OsmFilter.parse(value));
+        default:
+            throw new IllegalArgumentException("unknown setting " + name);
+        }
+    }
+
+    String file(String name) {
+        String file = outputDirectory + name;
+        if (staged.contains(file)) {
+            // written next to the final file and moved in place when the stage completes
+            return file + ".tmp";
+        }
+        return file;
+    }
+
     private String bucketDir(String file) {
         return workDirectory + File.separatorChar + file + ".buckets";
     }
 
-    private SortingWriter sortingWriter(String file, int bucketSize) {
+    private LongSortingWriter sortingWriter(String file) {
+        try {
+            // every worker thread fills its own bucket, so the writers are not a point of contention
+            return new LongSortingWriter(bucketDir(file), file(file), bucketBytes / threadPoolSize, true,
+                    memoryGovernor).setBucketCodec(bucketCodec).setOutputCodec(mapCodec).setRecordFormat(recordFormat);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot create sorting writer " + file);
+        }
+    }
+
+    LongSortingWriter singleThreadedSortingWriter(String file) {
         try {
-            return new SortingWriter(bucketDir(file), file, bucketSize);
+            return new LongSortingWriter(bucketDir(file), file(file), bucketBytes, false, memoryGovernor)
+                    .setBucketCodec(bucketCodec).setOutputCodec(mapCodec).setRecordFormat(recordFormat);
         } catch (IOException e) {
             throw new IllegalStateException("cannot create sorting writer " + file);
         }
     }
 
     /**
-     * Creates various sorted maps that need to be joined in the next steps
+     * Creates various sorted maps that need to be joined in the next steps. Files ending in .pbf are read as osm pbf,
+     * files ending in .osm are memory mapped and scanned in parallel, anything else is assumed to be bzip2 compressed
+     * osm xml. Entities that the filter does not need are left out.
      */
     public void splitAndEmit(String osmFile) {
-        try (SortingWriter nodesWriter = sortingWriter(NODE_ID_NODEJSON_MAP, bucketSize);
-                SortingWriter nodeid2WayidWriter = sortingWriter(NODE_ID_WAY_ID_MAP, bucketSize);
-                SortingWriter waysWriter = sortingWriter(WAY_ID_WAYJSON_MAP, bucketSize);
-                SortingWriter relationsWriter = sortingWriter(REL_ID_RELJSON_MAP, bucketSize);
-                SortingWriter nodeId2RelIdWriter = sortingWriter(NODE_ID_REL_ID_MAP, bucketSize);
-                SortingWriter wayId2RelIdWriter = sortingWriter(WAY_ID_REL_ID_MAP, bucketSize);
-                LineIterable lineIterable = new LineIterable(ResourceUtil.bzip2Reader(osmFile))) {
-            OsmBlobIterable osmIterable = new OsmBlobIterable(lineIterable);
+        closeNodeLocations();
+        nodeLocations = new NodeLocations(new File(workDirectory, "nodelocations.bin"));
+        try (LongSortingWriter nodesWriter = sortingWriter(NODE_ID_NODEJSON_MAP);
+                LongSortingWriter nodeid2WayidWriter = sortingWriter(NODE_ID_WAY_ID_MAP);
+                LongSortingWriter waysWriter = sortingWriter(WAY_ID_WAYJSON_MAP);
+                LongSortingWriter relationsWriter = sortingWriter(REL_ID_RELJSON_MAP);
+                LongSortingWriter nodeId2RelIdWriter = sortingWriter(NODE_ID_REL_ID_MAP);
+                LongSortingWriter wayId2RelIdWriter = sortingWriter(WAY_ID_REL_ID_MAP)) {
+            if (osmFile.endsWith(".pbf")) {
+                splitPbf(osmFile, nodesWriter, nodeid2WayidWriter, waysWriter, relationsWriter, nodeId2RelIdWriter,
+                        wayId2RelIdWriter);
+            } else if (osmFile.endsWith(".osm")) {
+                splitMappedXml(osmFile, nodesWriter, nodeid2WayidWriter, waysWriter, relationsWriter,
+                        nodeId2RelIdWriter, wayId2RelIdWriter);
+            } else {
+                splitXml(osmFile, nodesWriter, nodeid2WayidWriter, waysWriter, relationsWriter, nodeId2RelIdWriter,
+                        wayId2RelIdWriter);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        nodeLocations.seal();
+        if (filter.prunesRelations()) {
+            pruneRelations();
+        }
+        if (filter.prunesWays()) {
+            pruneWays();
+        }
+        if (filter.prunesNodes()) {
+            pruneNodes();
+        }
+    }
 
-            try (BufferedWriter problemNodes = ResourceUtil.gzipFileWriter("problemNodes.gz");
-                    BufferedWriter problemWays = ResourceUtil.gzipFileWriter("problemWays.gz");
-                    BufferedWriter problemRelations = ResourceUtil.gzipFileWriter("problemRelations.gz")) {
-                Processor<String, Boolean> processor = new Processor<String, Boolean>() {
-                    @Override
-                    public Boolean process(String blob) {
-                        try {
-                            blob = blob.trim();
-                            if (blob.startsWith("<node")) {
-                                parseNode(nodesWriter, problemNodes, blob);
-                            } else if (blob.startsWith("<way")) {
-                                parseWay(waysWriter, problemWays, nodeid2WayidWriter, blob);
-                            } else if (blob.startsWith("<relation")) {
-                                parseRelation(relationsWriter, problemRelations, nodeId2RelIdWriter, wayId2RelIdWriter, blob);
-                            } else {
-                                LOG.error("unexpected blob type\n" + blob);
-                                throw new IllegalStateException("unexpected blob type");
-                            }
-                            return true;
-                        } catch (Exception e) {
-                            LOG.error("unexpected error " + e.getMessage(), e);
-                            return false;
+    /**
+     * Keeps the relations that have a node in the area, either as a member or in a member way, and drops the members
+     * of the other relations from the member maps. This reads the ways once more, for the members only.
+     */
+    private void pruneRelations() {
+        LongHashMultiMap inArea = new LongHashMultiMap();
+        try (LongEntryReader wayEntries = RecordFormat.read(file(WAY_ID_WAYJSON_MAP));
+                LongEntryReader wayId2RelIdEntries = RecordFormat.read(file(WAY_ID_REL_ID_MAP))) {
+            PeekableIterator<LongEntry> wayId2RelIds = new PeekableIterator<LongEntry>(wayId2RelIdEntries);
+            for (LongEntry way : wayEntries) {
+                long wayId = way.getKey();
+                if (skipTo(wayId2RelIds, wayId) && inArea(way.getValue())) {
+                    while (wayId2RelIds.hasNext() && wayId2RelIds.peek().getKey() == wayId) {
+                        String relId = wayId2RelIds.next().getValue();
+                        inArea.put(LongEntryParsingProcessor.parseLong(relId, 0, relId.length()), "");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot read " + file(WAY_ID_WAYJSON_MAP), e);
+        }
+        File relations = new File(file(REL_ID_RELJSON_MAP));
+        File pruned = new File(relations.getPath() + ".pruned");
+        LongHashMultiMap kept = new LongHashMultiMap();
+        long total = 0;
+        try (LongEntryReader relationEntries = RecordFormat.read(relations.getPath());
+                LongEntryWriter out = recordFormat.writer(pruned.getPath(), mapCodec)) {
+            for (LongEntry relation : relationEntries) {
+                total++;
+                long relId = relation.getKey();
+                boolean keep = inArea.containsKey(relId);
+                if (!keep) {
+                    for (JsonObject member : parser.parse(relation.getValue()).asObject().getArray("members")
+                            .objects()) {
+                        if ("node".equalsIgnoreCase(member.getString("type"))
+                                && inArea(nodeLocations.get(member.getLong("id")))) {
+                            keep = true;
+                            break;
                         }
                     }
-                };
-                try (ConcurrentProcessingIterable<String, Boolean> it =
-                                processConcurrently(osmIterable, processor, blockSize, threadPoolSize, queueSize)) {
-                    consume(it);
+                }
+                if (keep) {
+                    out.write(relation);
+                    kept.put(relId, "");
                 }
             }
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot prune " + relations, e);
         }
+        replaceFile(pruned, relations);
+        pruneMembers(NODE_ID_REL_ID_MAP, kept);
+        pruneMembers(WAY_ID_REL_ID_MAP, kept);
+        LOG.info("kept " + kept.size() + " of " + total + " relations");
     }
 
     /**
-     * Write to nodeWriter the content of a node.
+     * Drops the entries of a member map that refer to a relation that was not kept. The map stays sorted.
+     */
+    private void pruneMembers(String name, LongHashMultiMap relations) {
+        File members = new File(file(name));
+        File pruned = new File(members.getPath() + ".pruned");
+        try (LongEntryReader entries = RecordFormat.read(members.getPath());
+                LongEntryWriter out = recordFormat.writer(pruned.getPath(), mapCodec)) {
+            for (LongEntry entry : entries) {
+                String relId = entry.getValue();
+                if (relations.containsKey(LongEntryParsingProcessor.parseLong(relId, 0, relId.length()))) {
+                    out.write(entry);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot prune " + members, e);
+        }
+        replaceFile(pruned, members);
+    }
+
+    /**
+     * @return true if at least one node of the way is in the area of the filter
+     */
+    private boolean inArea(String wayJson) {
+        int i = wayJson.lastIndexOf("\"ns\":[") + 6;
+        int end = wayJson.length() - 2;
+        while (i < end) {
+            int next = i;
+            while (next < end && wayJson.charAt(next) != ',') {
+                next++;
+            }
+            if (inArea(nodeLocations.get(LongEntryParsingProcessor.parseLong(wayJson, i, next)))) {
+                return true;
+            }
+            i = next + 1;
+        }
+        return false;
+    }
+
+    private boolean inArea(long location) {
+        return location != NodeLocations.MISSING && filter.acceptsLocation(NodeLocations.longitude(location),
+                NodeLocations.latitude(location));
+    }
+
+    /**
+     * Keeps the ways that are accepted by the filter and have a node in its area, or that are a member of a relation,
+     * and writes the node references of the remaining ways.
      */
-    public void parseNode(SortingWriter nodeWriter, BufferedWriter problemNodes, String input) throws IOException {
-        Matcher idm = idPattern.matcher(input);
-        Matcher latm = latPattern.matcher(input);
-        Matcher lonm = lonPattern.matcher(input);
-        Matcher kvm = kvPattern.matcher(input);
-        if (idm.find()) {
-            long id = Long.valueOf(idm.group(1));
-            if (latm.find() && lonm.find()) {
-                double latitude = Double.valueOf(latm.group(1));
-                double longitude = Double.valueOf(lonm.group(1));
-                // using a more compact notation for points here than the geojson point type. OSM has a billion+ nodes.
-                JsonObject node = object().put("id", id).put("l", array(longitude, latitude)).get();
-                JsonObject tags = new JsonObject();
-                while (kvm.find()) {
-                    String name = kvm.group(1);
-                    tags.put(name, StringEscapeUtils.unescapeXml(kvm.group(2)));
+    private void pruneWays() {
+        File ways = new File(file(WAY_ID_WAYJSON_MAP));
+        File pruned = new File(ways.getPath() + ".pruned");
+        long kept = 0, total = 0;
+        try (LongSortingWriter nodeid2WayidWriter = singleThreadedSortingWriter(NODE_ID_WAY_ID_MAP);
+                LongEntryReader wayEntries = RecordFormat.read(ways.getPath());
+                LongEntryReader wayId2RelIdEntries = RecordFormat.read(file(WAY_ID_REL_ID_MAP));
+                LongEntryWriter out = recordFormat.writer(pruned.getPath(), mapCodec)) {
+            PeekableIterator<LongEntry> wayId2RelIds = new PeekableIterator<LongEntry>(wayId2RelIdEntries);
+            for (LongEntry way : wayEntries) {
+                total++;
+                long wayId = way.getKey();
+                String json = way.getValue();
+                if (skipTo(wayId2RelIds, wayId) || filter.acceptsWay(OsmFilter.tagsFragment(json)) && inArea(json)) {
+                    String wayIdString = Long.toString(wayId);
+                    out.write(way);
+                    putReferences(nodeid2WayidWriter, json, json.lastIndexOf("\"ns\":[") + 6, json.length() - 2,
+                            wayIdString);
+                    kept++;
                 }
-                if (tags.size() > 0) {
-                    node.put("tags", tags);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot prune " + ways, e);
+        }
+        replaceFile(pruned, ways);
+        LOG.info("kept " + kept + " of " + total + " ways");
+    }
+
+    /**
+     * Keeps the nodes that are accepted by the filter and in its area, or that are referred to by a way or relation.
+     */
+    private void pruneNodes() {
+        File nodes = new File(file(NODE_ID_NODEJSON_MAP));
+        File pruned = new File(nodes.getPath() + ".pruned");
+        long kept = 0, total = 0;
+        try (LongEntryReader nodeEntries = RecordFormat.read(nodes.getPath());
+                LongEntryReader nodeId2WayIdEntries = RecordFormat.read(file(NODE_ID_WAY_ID_MAP));
+                LongEntryReader nodeId2RelIdEntries = RecordFormat.read(file(NODE_ID_REL_ID_MAP));
+                LongEntryWriter out = recordFormat.writer(pruned.getPath(), mapCodec)) {
+            PeekableIterator<LongEntry> nodeId2WayIds = new PeekableIterator<LongEntry>(nodeId2WayIdEntries);
+            PeekableIterator<LongEntry> nodeId2RelIds = new PeekableIterator<LongEntry>(nodeId2RelIdEntries);
+            for (LongEntry node : nodeEntries) {
+                total++;
+                long nodeId = node.getKey();
+                // skip both, they are needed to stay in sync with the nodes
+                boolean wayMember = skipTo(nodeId2WayIds, nodeId);
+                boolean relationMember = skipTo(nodeId2RelIds, nodeId);
+                if (wayMember || relationMember || filter.acceptsNodeJson(node.getValue())) {
+                    out.write(node);
+                    kept++;
                 }
-                nodeWriter.put("" + id, node.toString());
-            } else {
-                // ignore nodes without coordinates (apparently they exist), don't flood the logs
-                problemNodes.write(input + '\n');
             }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot prune " + nodes, e);
+        }
+        replaceFile(pruned, nodes);
+        LOG.info("kept " + kept + " of " + total + " nodes");
+    }
 
-        } else {
+    /**
+     * Skips the entries of a sorted map that come before key.
+     *
+     * @return true if the map has an entry for key
+     */
+    static boolean skipTo(PeekableIterator<LongEntry> it, long key) {
+        while (it.hasNext() && it.peek().getKey() < key) {
+            it.next();
+        }
+        return it.hasNext() && it.peek().getKey() == key;
+    }
+
+    static void replaceFile(File source, File target) {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot replace " + target, e);
+        }
+    }
+
+    private void splitPbf(String osmFile, LongSortingWriter nodesWriter, LongSortingWriter nodeid2WayidWriter,
+            LongSortingWriter waysWriter, LongSortingWriter relationsWriter, LongSortingWriter nodeId2RelIdWriter,
+            LongSortingWriter wayId2RelIdWriter) throws IOException {
+        // each blob holds thousands of entities, so hand them out one at a time and keep the queue short
+        try (BufferedWriter problemNodes = ResourceUtil.gzipFileWriter(file("problemNodes.gz"));
+                BufferedWriter problemWays = ResourceUtil.gzipFileWriter(file("problemWays.gz"));
+                BufferedWriter problemRelations = ResourceUtil.gzipFileWriter(file("problemRelations.gz"));
+                OsmPbfBlobIterable blobs = OsmPbfBlobIterable.openPbfFile(osmFile)) {
+            OsmPbfParser parser = new OsmPbfParser(nodesWriter, nodeid2WayidWriter, waysWriter, relationsWriter,
+                    nodeId2RelIdWriter, wayId2RelIdWriter, filter, nodeLocations).setProblemWriters(problemNodes,
+                    problemWays, problemRelations);
+            try (ConcurrentProcessingIterable<byte[], Boolean> it =
+                    processConcurrently(blobs, parser, 1, threadPoolSize, threadPoolSize * 2)) {
+                consume(it);
+            }
+        }
+    }
+
+    private void splitXml(String osmFile, LongSortingWriter nodesWriter, LongSortingWriter nodeid2WayidWriter,
+            LongSortingWriter waysWriter, LongSortingWriter relationsWriter, LongSortingWriter nodeId2RelIdWriter,
+            LongSortingWriter wayId2RelIdWriter) throws IOException {
+        try (LineIterable lineIterable = new LineIterable(ResourceUtil.bzip2Reader(osmFile));
+                BufferedWriter problemNodes = ResourceUtil.gzipFileWriter(file("problemNodes.gz"));
+                BufferedWriter problemWays = ResourceUtil.gzipFileWriter(file("problemWays.gz"));
+                BufferedWriter problemRelations = ResourceUtil.gzipFileWriter(file("problemRelations.gz"))) {
+            OsmBlobIterable osmIterable = new OsmBlobIterable(lineIterable);
+            Processor<String, Boolean> processor = blobProcessor(nodesWriter, nodeid2WayidWriter, waysWriter,
+                    relationsWriter, nodeId2RelIdWriter, wayId2RelIdWriter, problemNodes, problemWays, problemRelations);
+            try (ConcurrentProcessingIterable<String, Boolean> it =
+                            processConcurrently(osmIterable, processor, blockSize, threadPoolSize, queueSize)) {
+                consume(it);
+            }
+        }
+    }
+
+    private void splitMappedXml(String osmFile, LongSortingWriter nodesWriter, LongSortingWriter nodeid2WayidWriter,
+            LongSortingWriter waysWriter, LongSortingWriter relationsWriter, LongSortingWriter nodeId2RelIdWriter,
+            LongSortingWriter wayId2RelIdWriter) throws IOException {
+        try (BufferedWriter problemNodes = ResourceUtil.gzipFileWriter(file("problemNodes.gz"));
+                BufferedWriter problemWays = ResourceUtil.gzipFileWriter(file("problemWays.gz"));
+                BufferedWriter problemRelations = ResourceUtil.gzipFileWriter(file("problemRelations.gz"))) {
+            Processor<String, Boolean> processor = blobProcessor(nodesWriter, nodeid2WayidWriter, waysWriter,
+                    relationsWriter, nodeId2RelIdWriter, wayId2RelIdWriter, problemNodes, problemWays, problemRelations);
+            // the scanning threads call the processor directly, so no queue is needed
+            long blobs = new MappedOsmBlobScanner(osmFile).scan(processor, threadPoolSize);
+            LOG.info("scanned " + blobs + " blobs in " + osmFile);
+        }
+    }
+
+    private Processor<String, Boolean> blobProcessor(final LongSortingWriter nodesWriter,
+            final LongSortingWriter nodeid2WayidWriter, final LongSortingWriter waysWriter, final LongSortingWriter relationsWriter,
+            final LongSortingWriter nodeId2RelIdWriter, final LongSortingWriter wayId2RelIdWriter,
+            final BufferedWriter problemNodes, final BufferedWriter problemWays, final BufferedWriter problemRelations) {
+        return new Processor<String, Boolean>() {
+            @Override
+            public Boolean process(String blob) {
+                try {
+                    blob = blob.trim();
+                    if (blob.startsWith("<node")) {
+                        parseNode(nodesWriter, problemNodes, blob);
+                    } else if (blob.startsWith("<way")) {
+                        parseWay(waysWriter, problemWays, nodeid2WayidWriter, blob);
+                    } else if (blob.startsWith("<relation")) {
+                        parseRelation(relationsWriter, problemRelations, nodeId2RelIdWriter, wayId2RelIdWriter, blob);
+                    } else {
+                        LOG.error("unexpected blob type\n" + blob);
+                        throw new IllegalStateException("unexpected blob type");
+                    }
+                    return true;
+                } catch (Exception e) {
+                    LOG.error("unexpected error " + e.getMessage(), e);
+                    return false;
+                }
+            }
+        };
+    }
+
+    /**
+     * Write to nodeWriter the content of a node.
+     */
+    public void parseNode(LongSortingWriter nodeWriter, BufferedWriter problemNodes, String input) throws IOException {
+        OsmXmlTokenizer tokenizer = new OsmXmlTokenizer(input);
+        long id = -1;
+        int latStart = -1, latEnd = -1, lonStart = -1, lonEnd = -1;
+        Token token = tokenizer.next();
+        if (token == Token.ELEMENT) {
+            token = tokenizer.next();
+        }
+        try {
+            while (token == Token.ATTRIBUTE) {
+                if (tokenizer.nameIs("id")) {
+                    id = tokenizer.longValue();
+                } else if (tokenizer.nameIs("lat")) {
+                    latStart = tokenizer.valueStart();
+                    latEnd = tokenizer.valueEnd();
+                } else if (tokenizer.nameIs("lon")) {
+                    lonStart = tokenizer.valueStart();
+                    lonEnd = tokenizer.valueEnd();
+                }
+                token = tokenizer.next();
+            }
+        } catch (NumberFormatException e) {
             problemNodes.write(input + '\n');
+            return;
+        }
+        if (id >= 0 && latStart >= 0 && lonStart >= 0) {
+            long latitude;
+            long longitude;
+            try {
+                latitude = FixedPoint.parse(input, latStart, latEnd);
+                longitude = FixedPoint.parse(input, lonStart, lonEnd);
+            } catch (NumberFormatException e) {
+                problemNodes.write(input + '\n');
+                return;
+            }
+            // nodes outside the area are kept until it is known whether a way or relation in the area needs them
+            // using a more compact notation for points here than the geojson point type. OSM has a billion+ nodes.
+            // Coordinates are fixed point values, see FixedPoint.
+            StringBuilder node = new StringBuilder(input.length());
+            node.append("{\"id\":").append(id).append(",\"l\":[").append(longitude).append(',').append(latitude).append(']');
+            appendTags(tokenizer, token, node);
+            node.append('}');
+            nodeWriter.put(id, node.toString());
+            if (nodeLocations != null) {
+                nodeLocations.put(id, longitude, latitude);
+            }
+            return;
         }
+        // ignore nodes without id or coordinates (apparently they exist), don't flood the logs
+        problemNodes.write(input + '\n');
     }
 
     /**
      * Write to waysWriter the content of a way and adds nodeId->wayId mappings
      * to nodeid2WayidWriter.
      */
-    public void parseWay(SortingWriter waysWriter, BufferedWriter problemWays, SortingWriter nodeid2WayidWriter,
+    public void parseWay(LongSortingWriter waysWriter, BufferedWriter problemWays, LongSortingWriter nodeid2WayidWriter,
             String input) throws IOException {
+        try {
+            if (parseWay(waysWriter, nodeid2WayidWriter, input)) {
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // an id that is not a number or does not fit in a long
+        }
+        problemWays.write(input + '\n');
+    }
 
-        Matcher idm = idPattern.matcher(input);
-        Matcher kvm = kvPattern.matcher(input);
-        Matcher ndm = ndPattern.matcher(input);
-
-        if (idm.find()) {
-            long wayId = Long.valueOf(idm.group(1));
-            JsonObject way = object().put("id", wayId).get();
-            JsonObject tags = new JsonObject();
-            while (kvm.find()) {
-                String name = kvm.group(1);
-                tags.put(name, kvm.group(2));
-            }
-            if (tags.size() > 0) {
-                way.put("tags", tags);
-            }
-            JsonArray nodeRefs = array();
-            while (ndm.find()) {
-                Long nodeId = Long.valueOf(ndm.group(1));
-                nodeid2WayidWriter.put("" + nodeId, "" + wayId);
-                nodeRefs.add(primitive(nodeId));
-            }
-            way.put("ns", nodeRefs);
-            waysWriter.put("" + wayId, way.toString());
-        } else {
-            problemWays.write(input + '\n');
+    /**
+     * @return false if the way has no id
+     */
+    private boolean parseWay(LongSortingWriter waysWriter, LongSortingWriter nodeid2WayidWriter, String input) {
+        OsmXmlTokenizer tokenizer = new OsmXmlTokenizer(input);
+        long wayId = -1;
+        Token token = tokenizer.next();
+        if (token == Token.ELEMENT) {
+            token = tokenizer.next();
+        }
+        while (token == Token.ATTRIBUTE) {
+            if (tokenizer.nameIs("id")) {
+                wayId = tokenizer.longValue();
+            }
+            token = tokenizer.next();
         }
+        if (wayId >= 0) {
+            String wayIdString = "" + wayId;
+            StringBuilder tags = new StringBuilder();
+            StringBuilder nodeRefs = new StringBuilder(input.length() / 2);
+            while (token == Token.ELEMENT) {
+                if (tokenizer.nameIs("tag")) {
+                    token = appendTag(tokenizer, tags);
+                } else if (tokenizer.nameIs("nd")) {
+                    token = tokenizer.next();
+                    while (token == Token.ATTRIBUTE) {
+                        long nodeId = tokenizer.nameIs("ref") ? tokenizer.longValue() : -1;
+                        // like members, references to nodes that were not uploaded are left out
+                        if (nodeId >= 0) {
+                            if (nodeRefs.length() > 0) {
+                                nodeRefs.append(',');
+                            }
+                            nodeRefs.append(nodeId);
+                        }
+                        token = tokenizer.next();
+                    }
+                } else {
+                    token = skipAttributes(tokenizer);
+                }
+            }
+            // tags follow the node references, so the filter can only be applied here
+            boolean prunesWays = filter.prunesWays();
+            if (!prunesWays && !filter.acceptsWay(tags)) {
+                return true;
+            }
+            if (!prunesWays) {
+                // otherwise the references of the remaining ways are written when pruning
+                putReferences(nodeid2WayidWriter, nodeRefs, wayIdString);
+            }
+            StringBuilder way = new StringBuilder(tags.length() + nodeRefs.length() + 40);
+            way.append("{\"id\":").append(wayId);
+            appendTagsObject(way, tags);
+            way.append(",\"ns\":[").append(nodeRefs).append("]}");
+            waysWriter.put(wayId, way.toString());
+            return true;
+        }
+        return false;
     }
 
     /**
      * Write to relationsWriter the content of a relation and adds nodeId->wayId
      * mappings to nodeid2WayidWriter.
      */
-    public void parseRelation(SortingWriter relationsWriter, BufferedWriter problemRelations,
-            SortingWriter nodeId2RelIdWriter, SortingWriter wayId2RelIdWriter, String input) throws IOException {
-        Matcher idm = idPattern.matcher(input);
-        Matcher kvm = kvPattern.matcher(input);
-        Matcher mm = memberPattern.matcher(input);
-
-        if (idm.find()) {
-            long relationId = Long.valueOf(idm.group(1));
-            JsonObject relation = object().put("id", relationId).get();
-            JsonObject tags = new JsonObject();
-            while (kvm.find()) {
-                String name = kvm.group(1);
-                tags.put(name, kvm.group(2));
-            }
-            if (tags.size() > 0) {
-                relation.put("tags", tags);
-            }
-            
-            JsonArray members = array();
-            while (mm.find()) {
-                String type = mm.group(1);
-                Long ref = Long.valueOf(mm.group(2));
-                String role = mm.group(3);
-                if ("way".equalsIgnoreCase(type)) {
-                    members.add(object().put("id", ref).put("type", type).put("role", role).get());
-                    wayId2RelIdWriter.put("" + ref, "" + relationId);
-                } else if ("node".equalsIgnoreCase(type)) {
-                    members.add(object().put("id", ref).put("type", type).put("role", role).get());
-                    nodeId2RelIdWriter.put("" + ref, "" + relationId);
-                } else if ("relation".equalsIgnoreCase(type)) {
-                    // FIXME support relation members as well
+    public void parseRelation(LongSortingWriter relationsWriter, BufferedWriter problemRelations,
+            LongSortingWriter nodeId2RelIdWriter, LongSortingWriter wayId2RelIdWriter, String input) throws IOException {
+        try {
+            if (parseRelation(relationsWriter, nodeId2RelIdWriter, wayId2RelIdWriter, input)) {
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // an id that is not a number or does not fit in a long
+        }
+        problemRelations.write(input + '\n');
+    }
+
+    /**
+     * @return false if the relation has no id
+     */
+    private boolean parseRelation(LongSortingWriter relationsWriter, LongSortingWriter nodeId2RelIdWriter,
+            LongSortingWriter wayId2RelIdWriter, String input) {
+        OsmXmlTokenizer tokenizer = new OsmXmlTokenizer(input);
+        long relationId = -1;
+        Token token = tokenizer.next();
+        if (token == Token.ELEMENT) {
+            token = tokenizer.next();
+        }
+        while (token == Token.ATTRIBUTE) {
+            if (tokenizer.nameIs("id")) {
+                relationId = tokenizer.longValue();
+            }
+            token = tokenizer.next();
+        }
+        if (relationId >= 0) {
+            String relationIdString = "" + relationId;
+            StringBuilder tags = new StringBuilder();
+            StringBuilder members = new StringBuilder(input.length() / 2);
+            StringBuilder nodeRefs = new StringBuilder();
+            StringBuilder wayRefs = new StringBuilder();
+            while (token == Token.ELEMENT) {
+                if (tokenizer.nameIs("tag")) {
+                    token = appendTag(tokenizer, tags);
+                } else if (tokenizer.nameIs("member")) {
+                    long ref = -1;
+                    int typeStart = -1, typeEnd = -1, roleStart = -1, roleEnd = -1;
+                    token = tokenizer.next();
+                    while (token == Token.ATTRIBUTE) {
+                        if (tokenizer.nameIs("type")) {
+                            typeStart = tokenizer.valueStart();
+                            typeEnd = tokenizer.valueEnd();
+                        } else if (tokenizer.nameIs("ref")) {
+                            ref = tokenizer.longValue();
+                        } else if (tokenizer.nameIs("role")) {
+                            roleStart = tokenizer.valueStart();
+                            roleEnd = tokenizer.valueEnd();
+                        }
+                        token = tokenizer.next();
+                    }
+                    if (ref < 0 || typeStart < 0 || roleStart < 0) {
+                        continue;
+                    }
+                    String type = input.substring(typeStart, typeEnd);
+                    if ("way".equalsIgnoreCase(type)) {
+                        appendMember(tokenizer, members, ref, type, roleStart, roleEnd);
+                        appendReference(wayRefs, ref);
+                    } else if ("node".equalsIgnoreCase(type)) {
+                        appendMember(tokenizer, members, ref, type, roleStart, roleEnd);
+                        appendReference(nodeRefs, ref);
+                    } else if ("relation".equalsIgnoreCase(type)) {
+                        // FIXME support relation members as well
+                    } else {
+                        LOG.warn("unknown member type " + type);
+                    }
                 } else {
-                    LOG.warn("unknown member type " + type);
+                    token = skipAttributes(tokenizer);
                 }
             }
-            relation.put("members", members);
-            relationsWriter.put("" + relationId, relation.toString());
-        } else {
-            problemRelations.write(input + '\n');
+            if (!filter.acceptsRelation(tags)) {
+                return true;
+            }
+            putReferences(nodeId2RelIdWriter, nodeRefs, relationIdString);
+            putReferences(wayId2RelIdWriter, wayRefs, relationIdString);
+            StringBuilder relation = new StringBuilder(tags.length() + members.length() + 40);
+            relation.append("{\"id\":").append(relationId);
+            appendTagsObject(relation, tags);
+            relation.append(",\"members\":[").append(members).append("]}");
+            relationsWriter.put(relationId, relation.toString());
+            return true;
+        }
+        return false;
+    }
+
+    private static void appendReference(StringBuilder refs, long ref) {
+        if (refs.length() > 0) {
+            refs.append(',');
+        }
+        refs.append(ref);
+    }
+
+    /**
+     * Puts an entry for each of the comma separated ids in refs.
+     */
+    private static void putReferences(LongSortingWriter writer, StringBuilder refs, String value) {
+        putReferences(writer, refs, 0, refs.length(), value);
+    }
+
+    private static void putReferences(LongSortingWriter writer, CharSequence refs, int start, int end, String value) {
+        int i = start;
+        while (i < end) {
+            int next = i;
+            while (next < end && refs.charAt(next) != ',') {
+                next++;
+            }
+            writer.put(LongEntryParsingProcessor.parseLong(refs, i, next), value);
+            i = next + 1;
+        }
+    }
+
+    private static void appendTags(OsmXmlTokenizer tokenizer, Token token, StringBuilder buf) {
+        StringBuilder tags = new StringBuilder();
+        while (token == Token.ELEMENT) {
+            if (tokenizer.nameIs("tag")) {
+                token = appendTag(tokenizer, tags);
+            } else {
+                token = skipAttributes(tokenizer);
+            }
         }
+        appendTagsObject(buf, tags);
+    }
+
+    private static void appendTagsObject(StringBuilder buf, StringBuilder tags) {
+        if (tags.length() > 0) {
+            buf.append(",\"tags\":{").append(tags).append('}');
+        }
+    }
+
+    /**
+     * Appends the k and v attributes of the current tag element as a json field to tags.
+     *
+     * @return the token following the tag element attributes
+     */
+    private static Token appendTag(OsmXmlTokenizer tokenizer, StringBuilder tags) {
+        int keyStart = -1, keyEnd = -1, valueStart = -1, valueEnd = -1;
+        Token token = tokenizer.next();
+        while (token == Token.ATTRIBUTE) {
+            if (tokenizer.nameIs("k")) {
+                keyStart = tokenizer.valueStart();
+                keyEnd = tokenizer.valueEnd();
+            } else if (tokenizer.nameIs("v")) {
+                valueStart = tokenizer.valueStart();
+                valueEnd = tokenizer.valueEnd();
+            }
+            token = tokenizer.next();
+        }
+        if (keyStart >= 0 && valueStart >= 0) {
+            if (tags.length() > 0) {
+                tags.append(',');
+            }
+            tokenizer.appendJsonString(tags, keyStart, keyEnd);
+            tags.append(':');
+            tokenizer.appendJsonString(tags, valueStart, valueEnd);
+        }
+        return token;
+    }
+
+    private static void appendMember(OsmXmlTokenizer tokenizer, StringBuilder members, long ref, String type,
+            int roleStart, int roleEnd) {
+        if (members.length() > 0) {
+            members.append(',');
+        }
+        members.append("{\"id\":").append(ref).append(",\"type\":\"").append(type).append("\",\"role\":");
+        tokenizer.appendJsonString(members, roleStart, roleEnd);
+        members.append('}');
+    }
+
+    private static Token skipAttributes(OsmXmlTokenizer tokenizer) {
+        Token token = tokenizer.next();
+        while (token == Token.ATTRIBUTE) {
+            token = tokenizer.next();
+        }
+        return token;
     }
 
     static PeekableIterator<Entry<String, String>> peekableEntryIterable(Iterable<String> it) {
         return new PeekableIterator<Entry<String, String>>(map(it, new EntryParsingProcessor()));
     }
 
-    void createWayId2NodeJsonMap(String nodeId2wayIdFile, String nodeId2nodeJsonFile, String outputFile) {
-        try (SortingWriter out = sortingWriter(outputFile, bucketSize)) {
-            EntryJoiningIterable.join(nodeId2nodeJsonFile, nodeId2wayIdFile, new Processor<JoinedEntries, Boolean>() {
-                @Override
-                public Boolean process(JoinedEntries joined) {
-                    String nodeJson = joined.left.get(0).getValue();
-                    for (Entry<String, String> e : joined.right) {
-                        String wayId = e.getValue();
-                        out.put(wayId, nodeJson);
-                    }
+    static PeekableIterator<LongEntry> peekableLongEntryIterable(Iterable<String> it) {
+        return new PeekableIterator<LongEntry>(map(it, new LongEntryParsingProcessor()));
+    }
 
-                    return true;
+    /**
+     * Writes every way that has at least one known node with the id and coordinates of its nodes, see
+     * {@link #completeWay(String, NodeLocations)}. The ways are read in order and the nodes are looked up in the
+     * locations from the split step, so the output is sorted without sorting it. Batches of ways are completed on all
+     * threads and written in their original order.
+     */
+    private void createWayId2CompleteJsonMap(String wayIdWayjsonMap, String outputFile) {
+        final NodeLocations locations = nodeLocations != null ? nodeLocations : loadNodeLocations();
+        ExecutorService executor = Executors.newFixedThreadPool(threadPoolSize, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "complete-ways");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long kept = 0, total = 0;
+        try (LongEntryReader ways = RecordFormat.read(file(wayIdWayjsonMap));
+                LongEntryWriter out = mapWriter(outputFile, indexedMaps)) {
+            List<LongEntry> batch = new ArrayList<>();
+            int batchSize = blockSize * threadPoolSize;
+            for (LongEntry way : ways) {
+                batch.add(way);
+                total++;
+                if (batch.size() == batchSize) {
+                    kept += writeCompleteWays(executor, batch, locations, out);
+                    batch.clear();
                 }
-            }, blockSize / 10, threadPoolSize, queueSize / 10);
+            }
+            kept += writeCompleteWays(executor, batch, locations, out);
         } catch (IOException e) {
-            throw new IllegalStateException("exception while closing sorted writer " + outputFile, e);
+            throw new IllegalStateException("cannot write " + outputFile, e);
+        } finally {
+            executor.shutdownNow();
+            if (locations != nodeLocations) {
+                try {
+                    locations.close();
+                } catch (IOException e) {
+                    LOG.warn("cannot close node locations", e);
+                }
+            }
         }
+        LOG.info("completed " + kept + " of " + total + " ways");
     }
 
-    private void createWayId2CompleteJsonMap(String wayIdWayjsonMap, String wayIdNodeJsonMap, String outputFile) {
-        // json blobs are quite big, so reducing bucket size
-        try (SortingWriter out = sortingWriter(outputFile, bucketSize / 10)) {
-            EntryJoiningIterable.join(wayIdWayjsonMap, wayIdNodeJsonMap, new Processor<JoinedEntries, Boolean>() {
+    private int writeCompleteWays(ExecutorService executor, List<LongEntry> batch, final NodeLocations locations,
+            LongEntryWriter out) throws IOException {
+        List<Future<List<String>>> slices = new ArrayList<>();
+        int sliceSize = Math.max(1, blockSize);
+        for (int i = 0; i < batch.size(); i += sliceSize) {
+            final List<LongEntry> slice = batch.subList(i, Math.min(batch.size(), i + sliceSize));
+            slices.add(executor.submit(new Callable<List<String>>() {
                 @Override
-                public Boolean process(JoinedEntries joined) {
-                    HashMap<String, JsonObject> nodes = new HashMap<String, JsonObject>();
-                    for (Entry<String, String> e : joined.right) {
-                        JsonObject node = parser.parse(e.getValue()).asObject();
-                        nodes.put(node.getString("id"), node);
+                public List<String> call() {
+                    List<String> completed = new ArrayList<>(slice.size());
+                    for (LongEntry way : slice) {
+                        JsonObject complete = completeWay(way.getValue(), locations);
+                        completed.add(complete == null ? null : complete.toString());
                     }
-                    Entry<String, String> wayEntry = joined.left.get(0);
-                    JsonObject way = parser.parse(wayEntry.getValue()).asObject();
-                    JsonArray nodeObjects = array();
-                    for (long nodeId : way.getArray("ns").longs()) {
-                        JsonObject node = nodes.get("" + nodeId);
-                        if (node != null) {
-                            nodeObjects.add(node);
-                        } else {
-                            way.getOrCreateArray("missingNodeRefs").add(primitive(nodeId));
-                        }
-                    }
-                    way.put("nodes", nodeObjects);
-                    way.remove("ns");
-                    out.put(wayEntry.getKey(), way.toString());
-                    return true;
+                    return completed;
                 }
-            }, blockSize / 10, threadPoolSize, queueSize / 10);
+            }));
+        }
+        int written = 0;
+        int i = 0;
+        for (Future<List<String>> slice : slices) {
+            List<String> completed;
+            try {
+                completed = slice.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while completing ways", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("cannot complete ways", e.getCause());
+            }
+            for (String json : completed) {
+                if (json != null) {
+                    out.write(batch.get(i).getKey(), json);
+                    written++;
+                }
+                i++;
+            }
+        }
+        return written;
+    }
 
+    /**
+     * Reads the locations from the nodes map, for when the split step ran in another process.
+     */
+    private NodeLocations loadNodeLocations() {
+        NodeLocations locations = new NodeLocations(new File(workDirectory, "nodelocations.bin"));
+        try (LongEntryReader nodes = RecordFormat.read(file(NODE_ID_NODEJSON_MAP))) {
+            for (LongEntry node : nodes) {
+                String json = node.getValue();
+                int start = json.indexOf("\"l\":[") + 5;
+                int comma = json.indexOf(',', start);
+                int end = json.indexOf(']', comma);
+                locations.put(node.getKey(), LongEntryParsingProcessor.parseLong(json, start, comma),
+                        LongEntryParsingProcessor.parseLong(json, comma + 1, end));
+            }
         } catch (IOException e) {
-            throw new IllegalStateException("exception while closing sorted writer " + outputFile, e);
+            throw new IllegalStateException("cannot read " + NODE_ID_NODEJSON_MAP, e);
+        }
+        locations.seal();
+        return locations;
+    }
+
+    private void closeNodeLocations() {
+        if (nodeLocations != null) {
+            try {
+                nodeLocations.close();
+            } catch (IOException e) {
+                LOG.warn("cannot close node locations", e);
+            }
+            nodeLocations = null;
+        }
+    }
+
+    /**
+     * @return the id and coordinates of a node, without its tags
+     */
+    static String location(String nodeJson) {
+        // nodes start with {"id":..,"l":[..], see parseNode
+        int end = nodeJson.indexOf(']');
+        if (end < 0 || end == nodeJson.length() - 2) {
+            return nodeJson;
+        }
+        return nodeJson.substring(0, end + 1) + '}';
+    }
+
+    /**
+     * Replaces the node references of a way with the id and coordinates of the referenced nodes. Node references that
+     * are not in nodeJsons are listed in missingNodeRefs.
+     */
+    JsonObject completeWay(String wayJson, Iterable<String> nodeJsons) {
+        HashMap<String, JsonObject> nodes = new HashMap<String, JsonObject>();
+        for (String nodeJson : nodeJsons) {
+            JsonObject node = parser.parse(location(nodeJson)).asObject();
+            nodes.put(node.getString("id"), node);
+        }
+        JsonObject way = parser.parse(wayJson).asObject();
+        JsonArray nodeObjects = array();
+        for (long nodeId : way.getArray("ns").longs()) {
+            JsonObject node = nodes.get("" + nodeId);
+            if (node != null) {
+                nodeObjects.add(node);
+            } else {
+                way.getOrCreateArray("missingNodeRefs").add(primitive(nodeId));
+            }
+        }
+        way.put("nodes", nodeObjects);
+        way.remove("ns");
+        return way;
+    }
+
+    /**
+     * Same as {@link #completeWay(String, Iterable)} with the nodes from locations.
+     *
+     * @return the way, or null if none of its nodes are known
+     */
+    JsonObject completeWay(String wayJson, NodeLocations locations) {
+        JsonObject way = parser.parse(wayJson).asObject();
+        JsonArray nodeObjects = array();
+        for (long nodeId : way.getArray("ns").longs()) {
+            long location = locations.get(nodeId);
+            if (location != NodeLocations.MISSING) {
+                JsonObject node = new JsonObject();
+                node.put("id", primitive(nodeId));
+                node.put("l", array(primitive(NodeLocations.longitude(location)),
+                        primitive(NodeLocations.latitude(location))));
+                nodeObjects.add(node);
+            } else {
+                way.getOrCreateArray("missingNodeRefs").add(primitive(nodeId));
+            }
+        }
+        if (nodeObjects.isEmpty()) {
+            return null;
+        }
+        way.put("nodes", nodeObjects);
+        way.remove("ns");
+        return way;
+    }
+
+    /**
+     * Joins two sorted maps. Merging them reads both maps in step, which is wasted work on the large map when the
+     * other map is small, as with {@value #NODE_ID_REL_ID_MAP} and the nodes. In that case the small map is put in a
+     * hash map instead and the large map is only scanned for its keys.
+     */
+    private void join(String leftMap, String rightMap, Processor<JoinedEntries, Boolean> processor) {
+        long leftBytes = new File(file(leftMap)).length();
+        long rightBytes = new File(file(rightMap)).length();
+        long smaller = Math.min(leftBytes, rightBytes);
+        long larger = Math.max(leftBytes, rightBytes);
+        if (smaller * HASH_JOIN_RATIO <= larger && smaller * COMPRESSION_RATIO <= hashJoinBytes) {
+            boolean buildLeft = leftBytes <= rightBytes;
+            LOG.info("hash join of " + leftMap + " and " + rightMap + " on " + (buildLeft ? leftMap : rightMap));
+            LongEntryJoiningIterable.hashJoin(file(leftMap), file(rightMap), buildLeft, hashJoinBytes,
+                    workDirectory + File.separatorChar + leftMap + ".partitions", processor, blockSize / 10,
+                    threadPoolSize, queueSize / 10);
+        } else {
+            LongEntryJoiningIterable.join(file(leftMap), file(rightMap), processor, blockSize / 10, threadPoolSize,
+                    queueSize / 10);
         }
     }
 
     private void createRelId2NodeJsonMap(String nodeIdRelIdMap, String nodeIdNodejsonMap, String outputFile) {
-        try (SortingWriter out = sortingWriter(outputFile, bucketSize / 50)) {
-            EntryJoiningIterable.join(nodeIdRelIdMap, nodeIdNodejsonMap, new Processor<JoinedEntries, Boolean>() {
+        try (LongSortingWriter out = sortingWriter(outputFile)) {
+            join(nodeIdRelIdMap, nodeIdNodejsonMap, new Processor<JoinedEntries, Boolean>() {
                 @Override
                 public Boolean process(JoinedEntries joined) {
                     String nodeJson = joined.right.get(0).getValue();
-                    for (Entry<String, String> e : joined.left) {
-                        String relId = e.getValue();
-                        out.put(relId, nodeJson);
+                    for (LongEntry e : joined.left) {
+                        out.put(Long.parseLong(e.getValue()), nodeJson);
                     }
                     return true;
                 }
-            }, blockSize / 10, threadPoolSize, queueSize / 10);
+            });
 
         } catch (IOException e) {
             throw new IllegalStateException("exception while closing sorted writer " + outputFile, e);
@@ -328,16 +1202,16 @@ public class OsmJoin {
     }
 
     private void createRelId2JsonWithNodes(String relIdReljsonMap, String relIdNodeJsonMap, String outputFile) {
-        try (SortingWriter out = sortingWriter(outputFile, bucketSize / 5)) {
-            EntryJoiningIterable.join(relIdReljsonMap, relIdNodeJsonMap, new Processor<JoinedEntries, Boolean>() {
+        try (LongSortingWriter out = sortingWriter(outputFile)) {
+            join(relIdReljsonMap, relIdNodeJsonMap, new Processor<JoinedEntries, Boolean>() {
                 @Override
                 public Boolean process(JoinedEntries joined) {
                     JsonArray nodes = array();
-                    for (Entry<String, String> e : joined.right) {
+                    for (LongEntry e : joined.right) {
                         JsonObject nodeJson = parser.parse(e.getValue()).asObject();
                         nodes.add(nodeJson);
                     }
-                    for (Entry<String, String> e : joined.left) {
+                    for (LongEntry e : joined.left) {
                         JsonObject relJson = parser.parse(e.getValue()).asObject();
                         relJson.put("nodes", nodes);
                         out.put(e.getKey(), relJson.toString());
@@ -345,7 +1219,7 @@ public class OsmJoin {
 
                     return true;
                 }
-            }, blockSize / 10, threadPoolSize, queueSize / 10);
+            });
 
         } catch (IOException e) {
             throw new IllegalStateException("exception while closing sorted writer " + outputFile, e);
@@ -353,18 +1227,17 @@ public class OsmJoin {
     }
 
     private void createRelId2WayJsonMap(String wayIdRelIdMap, String wayIdWayjsonMap, String outputFile) {
-        try (SortingWriter out = sortingWriter(outputFile, bucketSize / 5)) {
-            EntryJoiningIterable.join(wayIdRelIdMap, wayIdWayjsonMap, new Processor<JoinedEntries, Boolean>() {
+        try (LongSortingWriter out = sortingWriter(outputFile)) {
+            join(wayIdRelIdMap, wayIdWayjsonMap, new Processor<JoinedEntries, Boolean>() {
                 @Override
                 public Boolean process(JoinedEntries joined) {
                     String wayJson = joined.right.get(0).getValue();
-                    for (Entry<String, String> e : joined.left) {
-                        String relId = e.getValue();
-                        out.put(relId, wayJson);
+                    for (LongEntry e : joined.left) {
+                        out.put(Long.parseLong(e.getValue()), wayJson);
                     }
                     return true;
                 }
-            }, blockSize / 10, threadPoolSize, queueSize / 10);
+            });
 
         } catch (IOException e) {
             throw new IllegalStateException("exception while closing sorted writer " + outputFile, e);
@@ -372,73 +1245,237 @@ public class OsmJoin {
     }
 
     private void createRelId2CompleteJson(String relIdJsonWithNodes, String relIdWayJsonMap, String outputFile) {
-        // relations can be extremely large, so reduce bucket size even further
-        try (SortingWriter out = sortingWriter(outputFile, bucketSize / 50)) {
-            EntryJoiningIterable.join(relIdJsonWithNodes, relIdWayJsonMap, new Processor<JoinedEntries, Boolean>() {
+        try (LongSortingWriter out = sortingWriter(outputFile).setIndexed(indexedMaps)) {
+            join(relIdJsonWithNodes, relIdWayJsonMap, new Processor<JoinedEntries, Boolean>() {
                 @Override
                 public Boolean process(JoinedEntries joined) {
                     JsonArray ways = array();
-                    for (Entry<String, String> e : joined.right) {
+                    for (LongEntry e : joined.right) {
                         JsonObject wayJson = parser.parse(e.getValue()).asObject();
                         ways.add(wayJson);
                     }
-                    for (Entry<String, String> e : joined.left) {
+                    for (LongEntry e : joined.left) {
                         JsonObject relJson = parser.parse(e.getValue()).asObject();
                         relJson.put("ways", ways);
                         out.put(e.getKey(), relJson.toString());
                     }
                     return true;
                 }
-            }, blockSize / 10, threadPoolSize, queueSize / 10);
+            });
 
         } catch (IOException e) {
             throw new IllegalStateException("exception while closing sorted writer " + outputFile, e);
         }
     }
 
+    /**
+     * Runs the stages that are not up to date, see {@link StageManifest}, so a run that failed continues where it
+     * stopped. Each stage writes its maps to temporary files that are moved in place when it completes.
+     */
     public void processAll(String osmxml) {
-        // the join process works by parsing the osm xml blob for blob and creating several sorted multi maps as files using SortingWriter
+        runStages(osmxml, STAGES + 1, 1, STAGES);
+    }
+
+    /**
+     * Same as {@link #processAll(String)}, but runs the stages from fromStage on even if they are up to date.
+     *
+     * @param fromStage 1 to split the input again, up to {@value #STAGES} to only create the complete relations
+     */
+    public void processAll(String osmxml, int fromStage) {
+        if (fromStage < 1 || fromStage > STAGES) {
+            throw new IllegalArgumentException("stages are numbered 1 to " + STAGES + " but was " + fromStage);
+        }
+        runStages(osmxml, fromStage, 1, STAGES);
+    }
+
+    /**
+     * Runs the stages from first to last, see {@link #processAll(String, int)}.
+     *
+     * @param osmxml the input, only used by the first stage
+     */
+    void runStages(final String osmxml, int fromStage, int first, int last) {
+        // the join process works by parsing the osm xml blob for blob and creating several sorted multi maps as files using LongSortingWriter
         // these map files are then joined to more complex files in several steps using the EntryJoiningIterable
         // the main idea behind this approach is to not try to fit everything in ram at once and process efficiently by working with sorted files
         // the output should be a big gzip file with all the nodes, ways, and relations as json blobs on each line. Each blob should have all the stuff it refers embedded.
+        StopWatch processTimer = StopWatch.time(LOG, "process " + (first == 1 ? osmxml : outputDirectory));
+        List<JoinStage> stages = new ArrayList<>();
+        int busy = Math.min(threadPoolSize, Runtime.getRuntime().availableProcessors());
+        // the node location index is filled by the split and used by the ways
+        long nodeLocationBytes = NodeLocations.defaultHeapBytes();
+        if (first == 1) {
+            stages.add(new JoinStage(1, "splitting " + osmxml, fromStage, Arrays.asList(new File(osmxml)
+                    .getAbsolutePath()), busy, nodeLocationBytes, NODE_ID_NODEJSON_MAP, NODE_ID_WAY_ID_MAP, WAY_ID_WAYJSON_MAP,
+                    REL_ID_RELJSON_MAP, NODE_ID_REL_ID_MAP, WAY_ID_REL_ID_MAP) {
+                @Override
+                void create() {
+                    splitAndEmit(osmxml);
+                }
+            });
+        }
+        stages.add(new JoinStage(2, "create " + WAY_ID_COMPLETE_JSON, fromStage, maps(WAY_ID_WAYJSON_MAP,
+                NODE_ID_NODEJSON_MAP), busy, nodeLocationBytes, WAY_ID_COMPLETE_JSON) {
+            @Override
+            void create() {
+                createWayId2CompleteJsonMap(WAY_ID_WAYJSON_MAP, WAY_ID_COMPLETE_JSON);
+            }
 
-        StopWatch processTimer = StopWatch.time(LOG, "process " + osmxml);
-
-        StopWatch timer;
-        timer = StopWatch.time(LOG, "1. splitting " + osmxml);
-        splitAndEmit(osmxml);
-        timer.stop();
+            @Override
+            public void run() {
+                try {
+                    super.run();
+                } finally {
+                    // the relation stages do not need the index, so it does not compete with their hash joins
+                    closeNodeLocations();
+                }
+            }
+        });
+        // the relation steps mostly read and merge maps on a single thread, and may hash join
+        stages.add(new JoinStage(3, "create " + REL_ID_NODE_JSON_MAP, fromStage, maps(NODE_ID_REL_ID_MAP,
+                NODE_ID_NODEJSON_MAP), 2, hashJoinBytes, REL_ID_NODE_JSON_MAP) {
+            @Override
+            void create() {
+                createRelId2NodeJsonMap(NODE_ID_REL_ID_MAP, NODE_ID_NODEJSON_MAP, REL_ID_NODE_JSON_MAP);
+            }
+        });
+        stages.add(new JoinStage(4, "create " + REL_ID_JSON_WITH_NODES, fromStage, maps(REL_ID_RELJSON_MAP,
+                REL_ID_NODE_JSON_MAP), 2, hashJoinBytes, REL_ID_JSON_WITH_NODES) {
+            @Override
+            void create() {
+                createRelId2JsonWithNodes(REL_ID_RELJSON_MAP, REL_ID_NODE_JSON_MAP, REL_ID_JSON_WITH_NODES);
+            }
+        });
+        stages.add(new JoinStage(5, "create " + REL_ID_WAY_JSON_MAP, fromStage, maps(WAY_ID_REL_ID_MAP,
+                WAY_ID_COMPLETE_JSON), 2, hashJoinBytes, REL_ID_WAY_JSON_MAP) {
+            @Override
+            void create() {
+                createRelId2WayJsonMap(WAY_ID_REL_ID_MAP, WAY_ID_COMPLETE_JSON, REL_ID_WAY_JSON_MAP);
+            }
+        });
+        stages.add(new JoinStage(6, "create " + REL_ID_COMPLETE_JSON, fromStage, maps(REL_ID_JSON_WITH_NODES,
+                REL_ID_WAY_JSON_MAP), 2, hashJoinBytes, REL_ID_COMPLETE_JSON) {
+            @Override
+            void create() {
+                createRelId2CompleteJson(REL_ID_JSON_WITH_NODES, REL_ID_WAY_JSON_MAP, REL_ID_COMPLETE_JSON);
+            }
+        });
+        List<JoinStage> selected = new ArrayList<>();
+        for (JoinStage stage : stages) {
+            if (stage.number >= first && stage.number <= last) {
+                selected.add(stage);
+            }
+        }
+        try {
+            new StageScheduler(stageThreads, stageMemoryBytes).run(selected);
+        } finally {
+            closeNodeLocations();
+        }
+        processTimer.stop();
+    }
 
-        timer = StopWatch.time(LOG, "2. create " + WAY_ID_NODE_JSON_MAP);
-        createWayId2NodeJsonMap(NODE_ID_WAY_ID_MAP, NODE_ID_NODEJSON_MAP, WAY_ID_NODE_JSON_MAP);
-        timer.stop();
+    private File manifestFile(int stage) {
+        return new File(file("stage" + stage + ".manifest"));
+    }
 
-        timer = StopWatch.time(LOG, "3. create " + WAY_ID_COMPLETE_JSON);
-        createWayId2CompleteJsonMap(WAY_ID_WAYJSON_MAP, WAY_ID_NODE_JSON_MAP, WAY_ID_COMPLETE_JSON);
-        timer.stop();
+    /**
+     * @return the filter that the maps in the output directory were split with, or null if that is not known
+     */
+    OsmFilter recordedFilter() {
+        List<String> none = Collections.emptyList();
+        String parameters = new StageManifest(manifestFile(1), null, none, none).recordedParameters();
+        if (parameters == null || !parameters.contains(FILTER_PARAMETER)) {
+            return null;
+        }
+        // the filter spec is the last parameter, it may contain commas
+        return OsmFilter.parse(parameters.substring(parameters.indexOf(FILTER_PARAMETER) + FILTER_PARAMETER.length()));
+    }
 
-        timer = StopWatch.time(LOG, "4. create " + REL_ID_NODE_JSON_MAP);
-        createRelId2NodeJsonMap(NODE_ID_REL_ID_MAP, NODE_ID_NODEJSON_MAP, REL_ID_NODE_JSON_MAP);
-        timer.stop();
+    private List<String> maps(String... names) {
+        List<String> files = new ArrayList<>();
+        for (String name : names) {
+            files.add(file(name));
+        }
+        return files;
+    }
 
-        timer = StopWatch.time(LOG, "5. create " + REL_ID_JSON_WITH_NODES);
-        createRelId2JsonWithNodes(REL_ID_RELJSON_MAP, REL_ID_NODE_JSON_MAP, REL_ID_JSON_WITH_NODES);
-        timer.stop();
+    /**
+     * A stage of processAll. It is skipped when its {@link StageManifest} is up to date, and otherwise writes its maps
+     * to temporary files that are moved in place when it completes.
+     */
+    private abstract class JoinStage extends StageScheduler.Stage {
+        private final int number;
+        private final int fromStage;
 
-        timer = StopWatch.time(LOG, "6. create " + REL_ID_WAY_JSON_MAP);
-        createRelId2WayJsonMap(WAY_ID_REL_ID_MAP, WAY_ID_COMPLETE_JSON, REL_ID_WAY_JSON_MAP);
-        timer.stop();
+        JoinStage(int number, String description, int fromStage, List<String> inputs, int threads, long memoryBytes,
+                String... outputs) {
+            super(number + ". " + description, inputs, maps(outputs), threads, memoryBytes);
+            this.number = number;
+            this.fromStage = fromStage;
+        }
 
-        timer = StopWatch.time(LOG, "7. create " + REL_ID_COMPLETE_JSON);
-        createRelId2CompleteJson(REL_ID_JSON_WITH_NODES, REL_ID_WAY_JSON_MAP, REL_ID_COMPLETE_JSON);
-        timer.stop();
+        abstract void create();
 
-        processTimer.stop();
+        @Override
+        public void run() {
+            List<String> outputs = new ArrayList<>();
+            for (String output : getOutputs()) {
+                outputs.add(output);
+                if (indexedMaps && (output.endsWith(WAY_ID_COMPLETE_JSON) || output.endsWith(REL_ID_COMPLETE_JSON))) {
+                    outputs.add(IndexedMapWriter.indexFile(output));
+                }
+            }
+            StageManifest manifest = new StageManifest(manifestFile(number), "indexedMaps=" + indexedMaps
+                    + FILTER_PARAMETER + filter, getInputs(), outputs);
+            if (number < fromStage && manifest.isUpToDate()) {
+                LOG.info("skipping " + this + ", it is up to date");
+                return;
+            }
+            manifest.delete();
+            StopWatch timer = StopWatch.time(LOG, toString());
+            staged.addAll(getOutputs());
+            try {
+                create();
+            } finally {
+                staged.removeAll(getOutputs());
+            }
+            for (String output : getOutputs()) {
+                File tmp = new File(output + ".tmp");
+                StageManifest.move(tmp, new File(output));
+                File index = new File(IndexedMapWriter.indexFile(tmp.getPath()));
+                if (index.exists()) {
+                    StageManifest.move(index, new File(IndexedMapWriter.indexFile(output)));
+                } else {
+                    new File(IndexedMapWriter.indexFile(output)).delete();
+                }
+            }
+            manifest.write();
+            timer.stop();
+        }
     }
 
+    /**
+     * Usage: OsmJoin [--from-stage n] osmfile [filter]
+     */
     public static void main(String[] args) {
         OsmJoin osmJoin = new OsmJoin("./temp", new JsonParser());
-        String osmxml = args[0];
-        osmJoin.processAll(osmxml);
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int fromStage = -1;
+        int option = arguments.indexOf("--from-stage");
+        if (option >= 0) {
+            if (option + 1 >= arguments.size()) {
+                throw new IllegalArgumentException("--from-stage needs a stage number");
+            }
+            fromStage = Integer.parseInt(arguments.get(option + 1));
+            arguments.subList(option, option + 2).clear();
+        }
+        String osmxml = arguments.get(0);
+        if (arguments.size() > 1) {
+            osmJoin.setFilter(OsmFilter.parse(arguments.get(1)));
+        }
+        if (fromStage < 0) {
+            osmJoin.processAll(osmxml);
+        } else {
+            osmJoin.processAll(osmxml, fromStage);
+        }
     }
 }
@@ -0,0 +1,116 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.github.jillesvangurp.common.ProtobufReader;
+
+/**
+ * Iterates over the blobs in an osm pbf file and yields the raw, still compressed, Blob message of each OSMData
+ * block. The OSMHeader block is checked for required features that we do not support. Blobs are independent of each
+ * other, so they can be decoded concurrently with {@link OsmPbfParser}.
+ *
+ * See http://wiki.openstreetmap.org/wiki/PBF_Format
+ */
+public final class OsmPbfBlobIterable implements Iterable<byte[]>, Closeable {
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    private final DataInputStream in;
+
+    public OsmPbfBlobIterable(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    public static OsmPbfBlobIterable openPbfFile(String file) throws IOException {
+        return new OsmPbfBlobIterable(new FileInputStream(file));
+    }
+
+    @Override
+    public Iterator<byte[]> iterator() {
+        return new Iterator<byte[]>() {
+            byte[] next = null;
+            boolean eof = false;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null) {
+                    return true;
+                }
+                try {
+                    while (next == null && !eof) {
+                        int headerSize;
+                        try {
+                            headerSize = in.readInt();
+                        } catch (EOFException e) {
+                            eof = true;
+                            break;
+                        }
+                        if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                            throw new IllegalStateException("invalid blob header size " + headerSize);
+                        }
+                        byte[] header = new byte[headerSize];
+                        in.readFully(header);
+                        String type = null;
+                        int dataSize = -1;
+                        ProtobufReader reader = new ProtobufReader(header);
+                        while (reader.nextField()) {
+                            switch (reader.field()) {
+                                case 1:
+                                    type = reader.readString();
+                                    break;
+                                case 3:
+                                    dataSize = reader.readInt32();
+                                    break;
+                                default:
+                                    reader.skip();
+                            }
+                        }
+                        if (dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+                            throw new IllegalStateException("invalid blob size " + dataSize);
+                        }
+                        byte[] blob = new byte[dataSize];
+                        in.readFully(blob);
+                        if ("OSMData".equals(type)) {
+                            next = blob;
+                        } else if ("OSMHeader".equals(type)) {
+                            OsmPbfParser.checkHeader(blob);
+                        }
+                        // skip unknown blob types as required by the spec
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return next != null;
+            }
+
+            @Override
+            public byte[] next() {
+                if (hasNext()) {
+                    byte[] result = next;
+                    next = null;
+                    return result;
+                } else {
+                    throw new NoSuchElementException();
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Remove is not supported");
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,569 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.common.ProtobufReader;
+import com.github.jillesvangurp.common.StringDictionary;
+import com.github.jillesvangurp.mergesort.LongSortingWriter;
+import com.jillesvangurp.iterables.Processor;
+
+/**
+ * Decodes OSMData blobs from an osm pbf file and emits the nodes, ways, and relations in them to the same sorting
+ * writers, and in the same json format, as the xml parsing in {@link OsmJoin}. Each call to process handles one
+ * independent blob, so this processor can be used with processConcurrently.
+ */
+public class OsmPbfParser implements Processor<byte[], Boolean> {
+    private static final Logger LOG = LoggerFactory.getLogger(OsmPbfParser.class);
+
+    private static final String[] SUPPORTED_FEATURES = { "OsmSchema-V0.6", "DenseNodes" };
+    private static final String[] MEMBER_TYPES = { "node", "way", "relation" };
+
+    private final LongSortingWriter nodesWriter;
+    private final LongSortingWriter nodeid2WayidWriter;
+    private final LongSortingWriter waysWriter;
+    private final LongSortingWriter relationsWriter;
+    private final LongSortingWriter nodeId2RelIdWriter;
+    private final LongSortingWriter wayId2RelIdWriter;
+    private final OsmFilter filter;
+    private final NodeLocations nodeLocations;
+    private BufferedWriter problemNodes;
+    private BufferedWriter problemWays;
+    private BufferedWriter problemRelations;
+    // json strings for tag keys, values, and roles, shared between blocks and threads
+    private final StringDictionary dictionary = new StringDictionary(1 << 16, 64);
+
+    public OsmPbfParser(LongSortingWriter nodesWriter, LongSortingWriter nodeid2WayidWriter, LongSortingWriter waysWriter,
+            LongSortingWriter relationsWriter, LongSortingWriter nodeId2RelIdWriter, LongSortingWriter wayId2RelIdWriter) {
+        this(nodesWriter, nodeid2WayidWriter, waysWriter, relationsWriter, nodeId2RelIdWriter, wayId2RelIdWriter,
+                new OsmFilter());
+    }
+
+    /**
+     * @param filter applied in the same way as for xml input, see {@link OsmJoin#setFilter(OsmFilter)}
+     */
+    public OsmPbfParser(LongSortingWriter nodesWriter, LongSortingWriter nodeid2WayidWriter, LongSortingWriter waysWriter,
+            LongSortingWriter relationsWriter, LongSortingWriter nodeId2RelIdWriter, LongSortingWriter wayId2RelIdWriter,
+            OsmFilter filter) {
+        this(nodesWriter, nodeid2WayidWriter, waysWriter, relationsWriter, nodeId2RelIdWriter, wayId2RelIdWriter,
+                filter, null);
+    }
+
+    /**
+     * @param nodeLocations if not null, the location of every node that is written is also put here
+     */
+    public OsmPbfParser(LongSortingWriter nodesWriter, LongSortingWriter nodeid2WayidWriter, LongSortingWriter waysWriter,
+            LongSortingWriter relationsWriter, LongSortingWriter nodeId2RelIdWriter, LongSortingWriter wayId2RelIdWriter,
+            OsmFilter filter, NodeLocations nodeLocations) {
+        this.filter = filter;
+        this.nodeLocations = nodeLocations;
+        this.nodesWriter = nodesWriter;
+        this.nodeid2WayidWriter = nodeid2WayidWriter;
+        this.waysWriter = waysWriter;
+        this.relationsWriter = relationsWriter;
+        this.nodeId2RelIdWriter = nodeId2RelIdWriter;
+        this.wayId2RelIdWriter = wayId2RelIdWriter;
+    }
+
+    /**
+     * Entities with a negative id, which osm editors use for entities that were not uploaded, are written as json to
+     * these writers instead of the maps, like the xml parser does. Without writers they are left out.
+     *
+     * @return the parser
+     */
+    public OsmPbfParser setProblemWriters(BufferedWriter problemNodes, BufferedWriter problemWays,
+            BufferedWriter problemRelations) {
+        this.problemNodes = problemNodes;
+        this.problemWays = problemWays;
+        this.problemRelations = problemRelations;
+        return this;
+    }
+
+    @Override
+    public Boolean process(byte[] blob) {
+        try {
+            parsePrimitiveBlock(new ProtobufReader(inflate(blob)));
+            return true;
+        } catch (Exception e) {
+            LOG.error("unexpected error " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Fails if the header block lists required features that this parser does not support.
+     */
+    static void checkHeader(byte[] blob) {
+        ProtobufReader reader = new ProtobufReader(inflate(blob));
+        while (reader.nextField()) {
+            if (reader.field() == 4) {
+                String feature = reader.readString();
+                boolean supported = false;
+                for (String f : SUPPORTED_FEATURES) {
+                    supported = supported || f.equals(feature);
+                }
+                if (!supported) {
+                    throw new IllegalStateException("unsupported required feature in pbf file: " + feature);
+                }
+            } else {
+                reader.skip();
+            }
+        }
+    }
+
+    /**
+     * @return the uncompressed content of a Blob message
+     */
+    static byte[] inflate(byte[] blob) {
+        ProtobufReader reader = new ProtobufReader(blob);
+        byte[] raw = null;
+        byte[] zlibData = null;
+        int rawSize = -1;
+        while (reader.nextField()) {
+            switch (reader.field()) {
+                case 1:
+                    raw = reader.readBytes();
+                    break;
+                case 2:
+                    rawSize = reader.readInt32();
+                    break;
+                case 3:
+                    zlibData = reader.readBytes();
+                    break;
+                case 4:
+                    throw new IllegalStateException("lzma compressed blobs are not supported");
+                default:
+                    reader.skip();
+            }
+        }
+        if (raw != null) {
+            return raw;
+        }
+        if (zlibData == null || rawSize < 0) {
+            throw new IllegalStateException("blob has no data");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zlibData);
+            byte[] result = new byte[rawSize];
+            int inflated = 0;
+            while (inflated < rawSize && !inflater.finished()) {
+                int n = inflater.inflate(result, inflated, rawSize - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != rawSize) {
+                throw new IllegalStateException("expected " + rawSize + " bytes but inflated " + inflated);
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void parsePrimitiveBlock(ProtobufReader block) {
+        String[] strings = null;
+        long granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        // the string table and the coordinate settings may follow the groups, so collect the groups first
+        List<ProtobufReader> groups = new ArrayList<>();
+        while (block.nextField()) {
+            switch (block.field()) {
+                case 1:
+                    strings = parseStringTable(block.readMessage());
+                    break;
+                case 2:
+                    groups.add(block.readMessage());
+                    break;
+                case 17:
+                    granularity = block.readInt32();
+                    break;
+                case 19:
+                    latOffset = block.readVarint();
+                    break;
+                case 20:
+                    lonOffset = block.readVarint();
+                    break;
+                default:
+                    block.skip();
+            }
+        }
+        if (strings == null) {
+            strings = new String[0];
+        }
+        Block context = new Block(strings, dictionary, granularity, latOffset, lonOffset);
+        for (ProtobufReader group : groups) {
+            while (group.nextField()) {
+                switch (group.field()) {
+                    case 1:
+                        parseNode(context, group.readMessage());
+                        break;
+                    case 2:
+                        parseDenseNodes(context, group.readMessage());
+                        break;
+                    case 3:
+                        parseWay(context, group.readMessage());
+                        break;
+                    case 4:
+                        parseRelation(context, group.readMessage());
+                        break;
+                    default:
+                        group.skip();
+                }
+            }
+        }
+    }
+
+    private static String[] parseStringTable(ProtobufReader table) {
+        List<String> strings = new ArrayList<>();
+        while (table.nextField()) {
+            if (table.field() == 1) {
+                strings.add(table.readString());
+            } else {
+                table.skip();
+            }
+        }
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    private void parseNode(Block block, ProtobufReader node) {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        ProtobufReader keys = null;
+        ProtobufReader values = null;
+        while (node.nextField()) {
+            switch (node.field()) {
+                case 1:
+                    id = node.readSignedVarint();
+                    break;
+                case 2:
+                    keys = node.readMessage();
+                    break;
+                case 3:
+                    values = node.readMessage();
+                    break;
+                case 8:
+                    lat = node.readSignedVarint();
+                    break;
+                case 9:
+                    lon = node.readSignedVarint();
+                    break;
+                default:
+                    node.skip();
+            }
+        }
+        StringBuilder tags = new StringBuilder();
+        if (keys != null && values != null) {
+            while (keys.hasNext() && values.hasNext()) {
+                appendTag(tags, block.json(keys.readInt32()), block.json(values.readInt32()));
+            }
+        }
+        emitNode(block, id, lat, lon, tags);
+    }
+
+    private void parseDenseNodes(Block block, ProtobufReader dense) {
+        ProtobufReader ids = null;
+        ProtobufReader lats = null;
+        ProtobufReader lons = null;
+        ProtobufReader keysVals = null;
+        while (dense.nextField()) {
+            switch (dense.field()) {
+                case 1:
+                    ids = dense.readMessage();
+                    break;
+                case 8:
+                    lats = dense.readMessage();
+                    break;
+                case 9:
+                    lons = dense.readMessage();
+                    break;
+                case 10:
+                    keysVals = dense.readMessage();
+                    break;
+                default:
+                    dense.skip();
+            }
+        }
+        if (ids == null || lats == null || lons == null) {
+            return;
+        }
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        StringBuilder tags = new StringBuilder();
+        while (ids.hasNext()) {
+            // ids and coordinates are delta coded
+            id += ids.readSignedVarint();
+            lat += lats.readSignedVarint();
+            lon += lons.readSignedVarint();
+            tags.setLength(0);
+            if (keysVals != null) {
+                // key value string ids for each node, terminated by 0
+                while (keysVals.hasNext()) {
+                    int key = keysVals.readInt32();
+                    if (key == 0) {
+                        break;
+                    }
+                    appendTag(tags, block.json(key), block.json(keysVals.readInt32()));
+                }
+            }
+            emitNode(block, id, lat, lon, tags);
+        }
+    }
+
+    private void emitNode(Block block, long id, long lat, long lon, StringBuilder tags) {
+        long longitude = FixedPoint.fromNanoDegrees(block.lonOffset + block.granularity * lon);
+        long latitude = FixedPoint.fromNanoDegrees(block.latOffset + block.granularity * lat);
+        // nodes outside the area are kept until it is known whether a way or relation in the area needs them
+        StringBuilder node = new StringBuilder(tags.length() + 60);
+        node.append("{\"id\":").append(id).append(",\"l\":[");
+        node.append(longitude).append(',').append(latitude).append(']');
+        appendTagsObject(node, tags);
+        node.append('}');
+        if (id < 0) {
+            problem(problemNodes, node);
+            return;
+        }
+        nodesWriter.put(id, node.toString());
+        if (nodeLocations != null) {
+            nodeLocations.put(id, longitude, latitude);
+        }
+    }
+
+    private void parseWay(Block block, ProtobufReader way) {
+        long wayId = 0;
+        ProtobufReader keys = null;
+        ProtobufReader values = null;
+        ProtobufReader refs = null;
+        while (way.nextField()) {
+            switch (way.field()) {
+                case 1:
+                    wayId = way.readVarint();
+                    break;
+                case 2:
+                    keys = way.readMessage();
+                    break;
+                case 3:
+                    values = way.readMessage();
+                    break;
+                case 8:
+                    refs = way.readMessage();
+                    break;
+                default:
+                    way.skip();
+            }
+        }
+        String wayIdString = "" + wayId;
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"id\":").append(wayId);
+        StringBuilder tags = new StringBuilder();
+        if (keys != null && values != null) {
+            while (keys.hasNext() && values.hasNext()) {
+                appendTag(tags, block.json(keys.readInt32()), block.json(values.readInt32()));
+            }
+        }
+        boolean problem = wayId < 0;
+        // when pruning, the references of the remaining ways are written later
+        boolean prunesWays = filter.prunesWays();
+        if (!problem && !prunesWays && !filter.acceptsWay(tags)) {
+            return;
+        }
+        appendTagsObject(json, tags);
+        json.append(",\"ns\":[");
+        if (refs != null) {
+            long nodeId = 0;
+            boolean first = true;
+            while (refs.hasNext()) {
+                nodeId += refs.readSignedVarint();
+                // like the xml parser, references to nodes that were not uploaded are left out
+                if (nodeId < 0) {
+                    continue;
+                }
+                if (!prunesWays && !problem) {
+                    nodeid2WayidWriter.put(nodeId, wayIdString);
+                }
+                if (!first) {
+                    json.append(',');
+                }
+                json.append(nodeId);
+                first = false;
+            }
+        }
+        json.append("]}");
+        if (problem) {
+            problem(problemWays, json);
+            return;
+        }
+        waysWriter.put(wayId, json.toString());
+    }
+
+    private void parseRelation(Block block, ProtobufReader relation) {
+        long relationId = 0;
+        ProtobufReader keys = null;
+        ProtobufReader values = null;
+        ProtobufReader roles = null;
+        ProtobufReader memberIds = null;
+        ProtobufReader types = null;
+        while (relation.nextField()) {
+            switch (relation.field()) {
+                case 1:
+                    relationId = relation.readVarint();
+                    break;
+                case 2:
+                    keys = relation.readMessage();
+                    break;
+                case 3:
+                    values = relation.readMessage();
+                    break;
+                case 8:
+                    roles = relation.readMessage();
+                    break;
+                case 9:
+                    memberIds = relation.readMessage();
+                    break;
+                case 10:
+                    types = relation.readMessage();
+                    break;
+                default:
+                    relation.skip();
+            }
+        }
+        String relationIdString = "" + relationId;
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"id\":").append(relationId);
+        StringBuilder tags = new StringBuilder();
+        if (keys != null && values != null) {
+            while (keys.hasNext() && values.hasNext()) {
+                appendTag(tags, block.json(keys.readInt32()), block.json(values.readInt32()));
+            }
+        }
+        boolean problem = relationId < 0;
+        if (!problem && !filter.acceptsRelation(tags)) {
+            return;
+        }
+        appendTagsObject(json, tags);
+        json.append(",\"members\":[");
+        if (roles != null && memberIds != null && types != null) {
+            long ref = 0;
+            boolean first = true;
+            while (memberIds.hasNext() && roles.hasNext() && types.hasNext()) {
+                ref += memberIds.readSignedVarint();
+                String role = block.json(roles.readInt32());
+                int type = types.readInt32();
+                if (ref < 0) {
+                    // like the xml parser, members that were not uploaded are left out
+                    continue;
+                }
+                if (type == 0 || type == 1) {
+                    if (!first) {
+                        json.append(',');
+                    }
+                    json.append("{\"id\":").append(ref).append(",\"type\":\"").append(MEMBER_TYPES[type]).append("\",\"role\":");
+                    json.append(role).append('}');
+                    first = false;
+                    if (problem) {
+                        continue;
+                    }
+                    if (type == 0) {
+                        nodeId2RelIdWriter.put(ref, relationIdString);
+                    } else {
+                        wayId2RelIdWriter.put(ref, relationIdString);
+                    }
+                } else if (type == 2) {
+                    // FIXME support relation members as well
+                } else {
+                    LOG.warn("unknown member type " + type);
+                }
+            }
+        }
+        json.append("]}");
+        if (problem) {
+            problem(problemRelations, json);
+            return;
+        }
+        relationsWriter.put(relationId, json.toString());
+    }
+
+    private static void problem(BufferedWriter writer, CharSequence json) {
+        if (writer != null) {
+            try {
+                writer.write(json + "\n");
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot write problem entity " + json, e);
+            }
+        }
+    }
+
+    /**
+     * @param key json string, see {@link Block#json(int)}
+     * @param value json string
+     */
+    private static void appendTag(StringBuilder tags, String key, String value) {
+        if (tags.length() > 0) {
+            tags.append(',');
+        }
+        tags.append(key).append(':').append(value);
+    }
+
+    private static void appendTagsObject(StringBuilder buf, StringBuilder tags) {
+        if (tags.length() > 0) {
+            buf.append(",\"tags\":{").append(tags).append('}');
+        }
+    }
+
+    private static void appendJsonString(StringBuilder buf, String value) {
+        buf.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            OsmXmlTokenizer.appendJsonChar(buf, value.charAt(i));
+        }
+        buf.append('"');
+    }
+
+    private static final class Block {
+        final String[] strings;
+        // quoted and escaped versions of the strings, created on first use
+        final String[] jsonStrings;
+        final StringDictionary dictionary;
+        final StringBuilder buf = new StringBuilder();
+        final long granularity;
+        final long latOffset;
+        final long lonOffset;
+
+        Block(String[] strings, StringDictionary dictionary, long granularity, long latOffset, long lonOffset) {
+            this.strings = strings;
+            this.dictionary = dictionary;
+            jsonStrings = new String[strings.length];
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        /**
+         * @return the string table entry as a json string, so that it is escaped only once per block no matter how
+         *         often it is used
+         */
+        String json(int index) {
+            String json = jsonStrings[index];
+            if (json == null) {
+                buf.setLength(0);
+                appendJsonString(buf, strings[index]);
+                json = dictionary.intern(buf);
+                jsonStrings[index] = json;
+            }
+            return json;
+        }
+    }
+}
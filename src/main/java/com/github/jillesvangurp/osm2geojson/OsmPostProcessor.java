@@ -5,22 +5,27 @@ import static com.github.jsonj.tools.JsonBuilder._;
 import static com.github.jsonj.tools.JsonBuilder.array;
 import static com.github.jsonj.tools.JsonBuilder.set;
 import static com.jillesvangurp.iterables.Iterables.compose;
+import static com.jillesvangurp.iterables.Iterables.map;
 import static com.jillesvangurp.iterables.Iterables.processConcurrently;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.Map.Entry;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.github.jillesvangurp.common.ResourceUtil;
-import com.github.jillesvangurp.mergesort.EntryParsingProcessor;
+import com.github.jillesvangurp.common.Codec;
+import com.github.jillesvangurp.common.StringDictionary;
+import com.github.jillesvangurp.mergesort.LongEntry;
+import com.github.jillesvangurp.mergesort.LongEntryParsingProcessor;
+import com.github.jillesvangurp.mergesort.LongEntryReader;
+import com.github.jillesvangurp.mergesort.RecordFormat;
 import com.github.jillesvangurp.metrics.LoggingCounter;
 import com.github.jillesvangurp.metrics.StopWatch;
 import com.github.jsonj.JsonArray;
 import com.github.jsonj.JsonElement;
 import com.github.jsonj.JsonObject;
+import com.github.jsonj.JsonPrimitive;
 import com.github.jsonj.JsonSet;
 import com.github.jsonj.tools.JsonParser;
 import com.jillesvangurp.iterables.ConcurrentProcessingIterable;
@@ -28,9 +33,11 @@ import com.jillesvangurp.iterables.LineIterable;
 import com.jillesvangurp.iterables.Processor;
 import java.io.Closeable;
 import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 
 /**
  * Take the osm joined json and convert to a more structured geojson.
@@ -42,12 +49,16 @@ public class OsmPostProcessor {
     private static final String OSM_POIS_GZ = "osm-pois.gz";
     private static final String OSM_WAYS_GZ = "osm-ways.gz";
     private static final String OSM_RELATIONS_GZ = "osm-relations.gz";
-    private final EntryParsingProcessor entryParsingProcessor = new EntryParsingProcessor();
-    private final Processor<Entry<String, String>, JsonObject> jsonParsingProcessor;
+    private final Processor<LongEntry, JsonObject> jsonParsingProcessor;
     private String dir = "./";
     private int readBlockSize = 100;
     private int threadPoolSize = 4;    
     private int queueSize = 10000;
+    private OsmFilter filter = new OsmFilter();
+    // the geojson files are written on one thread, so the compression is spread over all processors
+    private Codec outputCodec = Codec.PARALLEL_GZIP;
+    // address fields, languages, and categories
+    private final StringDictionary dictionary = new StringDictionary(1 << 14, 64);
 
     public OsmPostProcessor(JsonParser jsonParser) {
         jsonParsingProcessor = new NodeJsonParsingProcessor(jsonParser);
@@ -68,6 +79,29 @@ public class OsmPostProcessor {
         return this;
     }
 
+    /**
+     * @param outputCodec compression of the geojson files, defaults to {@link Codec#PARALLEL_GZIP}. The maps from
+     * {@link OsmJoin} are read with whatever codec they were written with.
+     * @return the post processor
+     */
+    public OsmPostProcessor setOutputCodec(Codec outputCodec) {
+        this.outputCodec = outputCodec;
+        return this;
+    }
+
+    Codec getOutputCodec() {
+        return outputCodec;
+    }
+
+    /**
+     * @param filter the filter that was used for the join; entities that were only kept as members of ways or
+     *            relations are skipped.
+     */
+    public OsmPostProcessor setFilter(OsmFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
     public OsmPostProcessor setDirectory(String dir) {
         this.dir = dir;
         if (!this.dir.endsWith(File.separator))
@@ -95,27 +129,30 @@ public class OsmPostProcessor {
         }
     }
 
-    protected JsonWriter createJsonWriter(OsmType type) throws IOException {
-        final String location;
+    /**
+     * @return the geojson file for the type in the directory of this post processor.
+     */
+    String outputFile(OsmType type) {
         switch (type) {
             case POI:
-                location = OSM_POIS_GZ;
-                break;
+                return dir + OSM_POIS_GZ;
             case WAY:
-                location = OSM_WAYS_GZ;
-                break;
+                return dir + OSM_WAYS_GZ;
             case RELATION:
-                location = OSM_RELATIONS_GZ;
-                break;
+                return dir + OSM_RELATIONS_GZ;
             default:
                 throw new IllegalArgumentException("cannot happen");
         }
+    }
+
+    protected JsonWriter createJsonWriter(OsmType type) throws IOException {
+        final String location = outputFile(type);
 
         return new JsonWriter() {
             BufferedWriter out;
 
             {
-                out = ResourceUtil.gzipFileWriter(location);
+                out = outputCodec.fileWriter(location);
             }
 
             @Override
@@ -131,21 +168,29 @@ public class OsmPostProcessor {
     }
 
     public void processNodes() {
-        try {
-            processNodes(LineIterable.openGzipFile(dir + OsmJoin.NODE_ID_NODEJSON_MAP), 100000);
+        try (LongEntryReader entries = RecordFormat.read(dir + OsmJoin.NODE_ID_NODEJSON_MAP)) {
+            processNodes(entries, 100000);
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    /**
+     * @param lineIterable key;value lines of the nodes map
+     */
     public void processNodes(LineIterable lineIterable, int logModulo) {
+        processNodes(map(lineIterable, new LongEntryParsingProcessor()), logModulo);
+    }
+
+    public void processNodes(Iterable<LongEntry> entries, int logModulo) {
         try {
             try (JsonWriter writer = createJsonWriter(OsmType.POI);
                     LoggingCounter counter = LoggingCounter.counter(LOG, "process nodes", "nodes", logModulo)) {
-                Processor<String, JsonObject> p = compose(entryParsingProcessor, jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
+                Processor<LongEntry, JsonObject> p = compose(jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
                     @Override
                     public JsonObject process(JsonObject input) {
-                        if (input == null)
+                        if (input == null || !filter.accepts(OsmType.POI, input.getObject("tags"))
+                                || !filter.touches(Collections.singletonList(input)))
                             return null;
 
                         String id = input.getString("id");
@@ -153,7 +198,7 @@ public class OsmPostProcessor {
                         if (name == null)
                             return null;
 
-                        JsonObject geometry = $(_("type", "Point"), _("coordinates", input.getArray("l")));
+                        JsonObject geometry = $(_("type", "Point"), _("coordinates", coordinates(input.getArray("l"))));
                         JsonObject geoJson = $(
                                 _("id", "osmnode/" + id),
                                 _("title", name),
@@ -163,8 +208,8 @@ public class OsmPostProcessor {
                         return geoJson;
                     }
                 });
-                try (ConcurrentProcessingIterable<String, JsonObject> concIt = 
-                        processConcurrently(lineIterable, p, readBlockSize, threadPoolSize, queueSize)) {
+                try (ConcurrentProcessingIterable<LongEntry, JsonObject> concIt = 
+                        processConcurrently(entries, p, readBlockSize, threadPoolSize, queueSize)) {
                     for (JsonObject o : concIt) {
                         if (o != null) {
                             writer.add(o);
@@ -180,20 +225,32 @@ public class OsmPostProcessor {
     }
 
     public void processWays() {
-        try {
-            processWays(LineIterable.openGzipFile(dir + OsmJoin.WAY_ID_COMPLETE_JSON), 100000);
+        try (LongEntryReader entries = RecordFormat.read(dir + OsmJoin.WAY_ID_COMPLETE_JSON)) {
+            processWays(entries, 100000);
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    /**
+     * @param lineIterable key;value lines of the ways map
+     */
     public void processWays(LineIterable lineIterable, int logModulo) {
+        processWays(map(lineIterable, new LongEntryParsingProcessor()), logModulo);
+    }
+
+    public void processWays(Iterable<LongEntry> entries, int logModulo) {
         try {
             try (JsonWriter writer = createJsonWriter(OsmType.WAY);
                     LoggingCounter counter = LoggingCounter.counter(LOG, "process ways", "ways", logModulo)) {
-                Processor<String, JsonObject> p = compose(entryParsingProcessor, jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
+                Processor<LongEntry, JsonObject> p = compose(jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
                     @Override
                     public JsonObject process(JsonObject input) {
+                        // ways outside the area may have been kept as members of relations in it
+                        if (!filter.accepts(OsmType.WAY, input.getObject("tags"))
+                                || !filter.touches(input.getArray("nodes").objects())) {
+                            return null;
+                        }
                         String id = input.getString("id");
                         String name = input.getString("tags", "name");
                         if (name == null) {
@@ -209,8 +266,8 @@ public class OsmPostProcessor {
                         return geoJson;
                     }
                 });
-                try (ConcurrentProcessingIterable<String, JsonObject> concIt = 
-                        processConcurrently(lineIterable, p, readBlockSize, threadPoolSize, queueSize)) {
+                try (ConcurrentProcessingIterable<LongEntry, JsonObject> concIt = 
+                        processConcurrently(entries, p, readBlockSize, threadPoolSize, queueSize)) {
                     for (JsonObject o : concIt) {
                         if (o != null) {
                             writer.add(o);
@@ -228,7 +285,7 @@ public class OsmPostProcessor {
     protected void handleWay(JsonObject input, JsonObject output) {
         JsonArray coordinates = array();
         for (JsonObject n : input.getArray("nodes").objects()) {
-            coordinates.add(n.getArray("l"));
+            coordinates.add(coordinates(n.getArray("l")));
         }
         String type = "LineString";
         if (coordinates.get(0).equals(coordinates.get(coordinates.size() - 1))) {
@@ -242,23 +299,30 @@ public class OsmPostProcessor {
     }
 
     public void processRelations() {
-        try {
-            processRelations(LineIterable.openGzipFile(dir + OsmJoin.REL_ID_COMPLETE_JSON), 100000);
+        try (LongEntryReader entries = RecordFormat.read(dir + OsmJoin.REL_ID_COMPLETE_JSON)) {
+            processRelations(entries, 100000);
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    /**
+     * @param lineIterable key;value lines of the relations map
+     */
     public void processRelations(LineIterable lineIterable, int logModulo) {
+        processRelations(map(lineIterable, new LongEntryParsingProcessor()), logModulo);
+    }
+
+    public void processRelations(Iterable<LongEntry> entries, int logModulo) {
         try {
             try (JsonWriter writer = createJsonWriter(OsmType.RELATION);
                     LoggingCounter counter = LoggingCounter.counter(LOG, "process relations", "relations", logModulo)) {
-                Processor<String, JsonObject> p = compose(entryParsingProcessor, jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
+                Processor<LongEntry, JsonObject> p = compose(jsonParsingProcessor, new Processor<JsonObject, JsonObject>() {
                     @Override
                     public JsonObject process(JsonObject input) {
                         String id = input.getString("id");
                         String name = input.getString("tags", "name");
-                        if (name == null)
+                        if (name == null || !touches(input))
                             return null;
 
                         // extract only administration bounds for now
@@ -280,8 +344,8 @@ public class OsmPostProcessor {
                         return geoJson;
                     }
                 });
-                try (ConcurrentProcessingIterable<String, JsonObject> concIt = 
-                        processConcurrently(lineIterable, p, readBlockSize, threadPoolSize, queueSize)) {
+                try (ConcurrentProcessingIterable<LongEntry, JsonObject> concIt = 
+                        processConcurrently(entries, p, readBlockSize, threadPoolSize, queueSize)) {
                     for (JsonObject o : concIt) {
                         if (o != null) {
                             writer.add(o);
@@ -296,6 +360,25 @@ public class OsmPostProcessor {
         }
     }
 
+    /**
+     * @return true if a node or a way of a joined relation is in the area of the filter
+     */
+    private boolean touches(JsonObject relation) {
+        JsonArray nodes = relation.getArray("nodes");
+        if (filter.touches(nodes == null ? Collections.<JsonObject> emptyList() : nodes.objects())) {
+            return true;
+        }
+        JsonArray ways = relation.getArray("ways");
+        if (ways != null) {
+            for (JsonObject way : ways.objects()) {
+                if (filter.touches(way.getArray("nodes").objects())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * WayManager is used to make arbitrary ordering of the ways possible and
      * they'll be connected via their id. See e.g. 'Landkreis Hof'
@@ -430,14 +513,14 @@ public class OsmPostProcessor {
             JsonArray arr = e.first;
             JsonArray outerBoundary = array();
             if (!arr.isEmpty())
-                outerBoundary.add(arr.get(0).asObject().getArray("l"));
+                outerBoundary.add(coordinates(arr.get(0).asObject().getArray("l")));
 
             // now loop through the ways until one polygon is formed
             while (true) {
                 // skip the first coordinate of every way to avoid duplicates
                 for (int i = 1; i < arr.size(); i++) {
                     JsonObject n = arr.get(i).asObject();
-                    outerBoundary.add(n.getArray("l"));
+                    outerBoundary.add(coordinates(n.getArray("l")));
                 }
                 long oldId = e.id;
                 if (!wayManager.remove(e.id))
@@ -487,6 +570,16 @@ public class OsmPostProcessor {
         output.put("geometry", geometry);
     }
 
+    /**
+     * @return geojson coordinates for the fixed point [lon,lat] array of a node, see {@link FixedPoint}.
+     */
+    protected static JsonArray coordinates(JsonArray l) {
+        JsonArray coordinates = new JsonArray();
+        coordinates.add(new JsonPrimitive(new FixedPoint(l.get(0).asLong())));
+        coordinates.add(new JsonPrimitive(new FixedPoint(l.get(1).asLong())));
+        return coordinates;
+    }
+
     public static JsonArray reverse(JsonArray arr) {
         JsonArray res = new JsonArray();
         for (int i = arr.size() - 1; i >= 0; i--) {
@@ -501,50 +594,51 @@ public class OsmPostProcessor {
         JsonObject address = new JsonObject();
         JsonObject name = new JsonObject();
         JsonSet osmCategories = set();
+        StringBuilder buf = new StringBuilder();
         for (Entry<String, JsonElement> entry : tags.entrySet()) {
             String tagName = entry.getKey();
             String value = entry.getValue().asString();
             if (tagName.startsWith("addr:")) {
-                address.put(entry.getKey().substring(5), value);
+                address.put(dictionary.intern(tagName, 5, tagName.length()), value);
             } else if (tagName.startsWith("name:")) {
-                String language = tagName.substring(5);
+                String language = dictionary.intern(tagName, 5, tagName.length());
                 name.getOrCreateArray(language).add(value);
             } else {
                 switch (tagName) {
                     case "highway":
                         osmCategories.add("street");
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "leisure":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "amenity":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "natural":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "historic":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "cuisine":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "tourism":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "shop":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "building":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "place":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                     case "admin-level":
                     case "boundary":
-                        osmCategories.add(tagName + ":" + value);
+                        osmCategories.add(category(buf, tagName, value));
                         break;
                 }
             }
@@ -600,6 +694,15 @@ public class OsmPostProcessor {
         return geoJson;
     }
 
+    /**
+     * @return tagName:value, from the dictionary unless it is a rare one
+     */
+    private String category(StringBuilder buf, String tagName, String value) {
+        buf.setLength(0);
+        buf.append(tagName).append(':').append(value);
+        return dictionary.intern(buf);
+    }
+
     protected static boolean hasPair(JsonObject object, String key, String value) {
         String objectValue = object.getString(key);
         if (objectValue != null) {
@@ -612,13 +715,16 @@ public class OsmPostProcessor {
     public static void main(String[] args) {
         StopWatch stopWatch = StopWatch.time(LOG, "post process osm");
         OsmPostProcessor processor = new OsmPostProcessor(new JsonParser());
+        if (args.length > 0) {
+            processor.setFilter(OsmFilter.parse(args[0]));
+        }
         processor.processNodes();
         processor.processWays();
         processor.processRelations();
         stopWatch.stop();
     }
 
-    private static final class NodeJsonParsingProcessor implements Processor<Entry<String, String>, JsonObject> {
+    private static final class NodeJsonParsingProcessor implements Processor<LongEntry, JsonObject> {
 
         private final JsonParser parser;
 
@@ -627,7 +733,7 @@ public class OsmPostProcessor {
         }
 
         @Override
-        public JsonObject process(Entry<String, String> input) {
+        public JsonObject process(LongEntry input) {
             if (input.getValue().length() > 50) {
                 return parser.parse(input.getValue()).asObject();
             } else
@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2013, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.github.jillesvangurp.osm2geojson;
+
+/**
+ * Single pass tokenizer for the node, way, and relation xml blobs produced by
+ * {@link OsmBlobIterable}. It walks the characters of a blob once and reports
+ * start elements and their attributes as it encounters them. Names and values
+ * are never copied out of the blob; instead they can be compared in place or
+ * appended straight into a json buffer.
+ *
+ * This is not a general purpose xml parser: it ignores end tags, comments, and
+ * text content, which is all that is needed for osm blobs.
+ */
+public final class OsmXmlTokenizer {
+
+    public enum Token {
+        ELEMENT, ATTRIBUTE, END
+    }
+
+    private final String input;
+    private final int length;
+    private int pos = 0;
+    private boolean inStartTag = false;
+    private int nameStart = 0;
+    private int nameEnd = 0;
+    private int valueStart = 0;
+    private int valueEnd = 0;
+
+    public OsmXmlTokenizer(String input) {
+        this.input = input;
+        this.length = input.length();
+    }
+
+    /**
+     * @return ELEMENT when a new start tag was found, ATTRIBUTE for the next
+     * attribute of the current start tag, or END when the blob is exhausted.
+     */
+    public Token next() {
+        if (inStartTag) {
+            skipWhitespace();
+            if (pos < length) {
+                char c = input.charAt(pos);
+                if (c != '/' && c != '>') {
+                    return readAttribute();
+                }
+            }
+            inStartTag = false;
+        }
+        while (pos < length) {
+            int lt = input.indexOf('<', pos);
+            if (lt < 0 || lt + 1 >= length) {
+                break;
+            }
+            pos = lt + 1;
+            char c = input.charAt(pos);
+            if (c == '!' && input.startsWith("!--", pos)) {
+                int endComment = input.indexOf("-->", pos);
+                pos = endComment < 0 ? length : endComment + 3;
+            } else if (c != '/' && c != '?' && c != '!') {
+                nameStart = pos;
+                while (pos < length && !isNameEnd(input.charAt(pos))) {
+                    pos++;
+                }
+                nameEnd = pos;
+                inStartTag = true;
+                return Token.ELEMENT;
+            }
+        }
+        pos = length;
+        return Token.END;
+    }
+
+    private Token readAttribute() {
+        nameStart = pos;
+        while (pos < length && !isNameEnd(input.charAt(pos)) && input.charAt(pos) != '=') {
+            pos++;
+        }
+        nameEnd = pos;
+        skipWhitespace();
+        if (pos < length && input.charAt(pos) == '=') {
+            pos++;
+            skipWhitespace();
+        }
+        if (pos < length && (input.charAt(pos) == '"' || input.charAt(pos) == '\'')) {
+            char quote = input.charAt(pos);
+            valueStart = pos + 1;
+            int close = input.indexOf(quote, valueStart);
+            valueEnd = close < 0 ? length : close;
+            pos = Math.min(length, valueEnd + 1);
+        } else {
+            // attribute without a quoted value; treat it as empty
+            valueStart = pos;
+            valueEnd = pos;
+        }
+        return Token.ATTRIBUTE;
+    }
+
+    private void skipWhitespace() {
+        while (pos < length && Character.isWhitespace(input.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private static boolean isNameEnd(char c) {
+        return c == '/' || c == '>' || Character.isWhitespace(c);
+    }
+
+    /**
+     * @return true if the name of the current element or attribute equals name.
+     */
+    public boolean nameIs(String name) {
+        return nameEnd - nameStart == name.length() && input.regionMatches(nameStart, name, 0, name.length());
+    }
+
+    /**
+     * @return true if the raw value of the current attribute equals value.
+     */
+    public boolean valueIs(String value) {
+        return valueEnd - valueStart == value.length() && input.regionMatches(valueStart, value, 0, value.length());
+    }
+
+    public int valueStart() {
+        return valueStart;
+    }
+
+    public int valueEnd() {
+        return valueEnd;
+    }
+
+    /**
+     * @return the current attribute value parsed as a long, with an optional minus sign. Editors use negative ids for
+     * entities that were not uploaded yet.
+     * @throws NumberFormatException if the value is not a number or does not fit in a long
+     */
+    public long longValue() {
+        int i = valueStart;
+        boolean negative = i < valueEnd && input.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == valueEnd) {
+            throw new NumberFormatException("not a number " + input.substring(valueStart, valueEnd));
+        }
+        // accumulate negatively, so that Long.MIN_VALUE can be parsed as well
+        long result = 0;
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        for (; i < valueEnd; i++) {
+            char c = input.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("not a number " + input.substring(valueStart, valueEnd));
+            }
+            int digit = c - '0';
+            if (result < (limit + digit) / 10) {
+                throw new NumberFormatException("too large " + input.substring(valueStart, valueEnd));
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Appends the xml attribute value between start and end to buf as a quoted json string. Xml entities are decoded
+     * and json special characters escaped in the same pass.
+     */
+    public void appendJsonString(StringBuilder buf, int start, int end) {
+        buf.append('"');
+        int i = start;
+        while (i < end) {
+            char c = input.charAt(i);
+            if (c == '&') {
+                int semi = input.indexOf(';', i);
+                if (semi > i && semi < end) {
+                    int decoded = decodeEntity(i + 1, semi);
+                    if (decoded >= 0) {
+                        appendJsonChar(buf, decoded);
+                        i = semi + 1;
+                        continue;
+                    }
+                }
+            }
+            appendJsonChar(buf, c);
+            i++;
+        }
+        buf.append('"');
+    }
+
+    private int decodeEntity(int start, int end) {
+        int length = end - start;
+        if (length < 2) {
+            return -1;
+        }
+        if (input.charAt(start) == '#') {
+            int radix = 10;
+            int i = start + 1;
+            if (input.charAt(i) == 'x' || input.charAt(i) == 'X') {
+                radix = 16;
+                i++;
+            }
+            if (i == end) {
+                return -1;
+            }
+            int codePoint = 0;
+            for (; i < end; i++) {
+                int digit = Character.digit(input.charAt(i), radix);
+                if (digit < 0 || codePoint > Character.MAX_CODE_POINT) {
+                    return -1;
+                }
+                codePoint = codePoint * radix + digit;
+            }
+            return codePoint <= Character.MAX_CODE_POINT ? codePoint : -1;
+        } else if (length == 3 && input.startsWith("amp", start)) {
+            return '&';
+        } else if (length == 2 && input.startsWith("lt", start)) {
+            return '<';
+        } else if (length == 2 && input.startsWith("gt", start)) {
+            return '>';
+        } else if (length == 4 && input.startsWith("quot", start)) {
+            return '"';
+        } else if (length == 4 && input.startsWith("apos", start)) {
+            return '\'';
+        }
+        return -1;
+    }
+
+    static void appendJsonChar(StringBuilder buf, int c) {
+        switch (c) {
+            case '"':
+                buf.append("\\\"");
+                break;
+            case '\\':
+                buf.append("\\\\");
+                break;
+            case '\n':
+                buf.append("\\n");
+                break;
+            case '\r':
+                buf.append("\\r");
+                break;
+            case '\t':
+                buf.append("\\t");
+                break;
+            case '\b':
+                buf.append("\\b");
+                break;
+            case '\f':
+                buf.append("\\f");
+                break;
+            default:
+                if (c < 0x20) {
+                    buf.append("\\u00");
+                    buf.append(Character.forDigit(c >> 4, 16));
+                    buf.append(Character.forDigit(c & 0xf, 16));
+                } else {
+                    buf.appendCodePoint(c);
+                }
+        }
+    }
+}
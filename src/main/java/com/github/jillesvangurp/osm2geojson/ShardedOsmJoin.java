@@ -0,0 +1,446 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jillesvangurp.mergesort.IndexedMapWriter;
+import com.github.jillesvangurp.mergesort.LongEntry;
+import com.github.jillesvangurp.mergesort.LongEntryParsingProcessor;
+import com.github.jillesvangurp.mergesort.LongEntryReader;
+import com.github.jillesvangurp.mergesort.LongEntryWriter;
+import com.github.jillesvangurp.mergesort.LongMergingEntryIterable;
+import com.github.jillesvangurp.mergesort.LongSortingWriter;
+import com.github.jillesvangurp.mergesort.RecordFormat;
+import com.github.jillesvangurp.metrics.StopWatch;
+import com.github.jsonj.tools.JsonParser;
+import com.jillesvangurp.iterables.PeekableIterator;
+
+/**
+ * Runs {@link OsmJoin#processAll(String)} in shards, each in a worker JVM of its own, so the join is not limited to
+ * the memory and processors of a single JVM.
+ *
+ * The coordinator only splits the input. It then partitions the maps on a hash of the relation id, or of the way id
+ * for ways that are no relation member. Each shard gets its relations and their member maps, the ways it owns and the
+ * member ways of its relations, and the nodes that those ways and relations refer to. So every shard has all it
+ * needs, and a node or way that several shards need is copied to each of them. Workers run stages 2 to 6 of
+ * processAll in their shard, with their own manifests, so a failed worker continues where it stopped. Finally the
+ * coordinator merges the complete ways and relations of the shards. The maps are sorted on key and value, so the
+ * results are the same files that a single JVM writes.
+ *
+ * Workers are started with the java and class path of the coordinator and the settings of its join.
+ */
+public class ShardedOsmJoin {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedOsmJoin.class);
+    // the shards that need a node, only used while partitioning
+    private static final String NODE_ID_SHARD_MAP = "nodeid2shard.gz";
+    // maps that the coordinator writes and each shard gets its part of
+    private static final List<String> SHARDED_MAPS = Arrays.asList(OsmJoin.REL_ID_RELJSON_MAP,
+            OsmJoin.NODE_ID_REL_ID_MAP, OsmJoin.WAY_ID_REL_ID_MAP, OsmJoin.WAY_ID_WAYJSON_MAP,
+            OsmJoin.NODE_ID_NODEJSON_MAP);
+    // maps that the shards write and the coordinator merges
+    private static final List<String> MERGED_MAPS = Arrays.asList(OsmJoin.WAY_ID_COMPLETE_JSON,
+            OsmJoin.REL_ID_COMPLETE_JSON);
+
+    private final OsmJoin join;
+    private final int shards;
+    private int workers;
+    private List<String> workerJvmOptions = new ArrayList<>();
+
+    /**
+     * @param join configured join for the coordinator
+     * @param shards number of shards to partition the relations and ways in
+     */
+    public ShardedOsmJoin(OsmJoin join, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("at least one shard is needed");
+        }
+        this.join = join;
+        this.shards = shards;
+        workers = Math.min(shards, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param workers number of worker JVMs that run at the same time, defaults to the number of shards or processors,
+     * whichever is smaller. The thread pool of the join is divided over them.
+     * @return the sharded join
+     */
+    public ShardedOsmJoin setWorkers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * @param options for the worker JVMs, e.g. -Xmx4g
+     * @return the sharded join
+     */
+    public ShardedOsmJoin setWorkerJvmOptions(String... options) {
+        workerJvmOptions = Arrays.asList(options);
+        return this;
+    }
+
+    public void processAll(String osmFile) {
+        StopWatch timer = StopWatch.time(LOG, "process " + osmFile + " in " + shards + " shards");
+        join.runStages(osmFile, OsmJoin.STAGES + 1, 1, 1);
+        partition();
+        runWorkers();
+        merge();
+        timer.stop();
+    }
+
+    String shardDirectory(int shard) {
+        return join.file("shard-" + shard);
+    }
+
+    private String shardFile(int shard, String map) {
+        return new File(shardDirectory(shard), map).getPath();
+    }
+
+    /**
+     * Writes the maps of each shard, unless that was done for the same maps before.
+     */
+    private void partition() {
+        List<String> inputs = new ArrayList<>();
+        for (String map : SHARDED_MAPS) {
+            inputs.add(join.file(map));
+        }
+        List<String> outputs = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            for (String map : SHARDED_MAPS) {
+                outputs.add(shardFile(i, map));
+            }
+        }
+        StageManifest manifest = new StageManifest(new File(join.file("partition.manifest")), "shards=" + shards,
+                inputs, outputs);
+        if (manifest.isUpToDate()) {
+            LOG.info("skipping partitioning, it is up to date");
+            return;
+        }
+        manifest.delete();
+        StopWatch timer = StopWatch.time(LOG, "partition maps in " + shards + " shards");
+        for (int i = 0; i < shards; i++) {
+            try {
+                FileUtils.forceMkdir(new File(shardDirectory(i)));
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot create dir " + shardDirectory(i), e);
+            }
+        }
+        partition(OsmJoin.REL_ID_RELJSON_MAP, false);
+        // member maps go to the shard of the relation, their value
+        partition(OsmJoin.NODE_ID_REL_ID_MAP, true);
+        partition(OsmJoin.WAY_ID_REL_ID_MAP, true);
+        try (LongSortingWriter nodeShards = join.singleThreadedSortingWriter(NODE_ID_SHARD_MAP)) {
+            partitionWays(nodeShards);
+            try (LongEntryReader nodeRelations = RecordFormat.read(join.file(OsmJoin.NODE_ID_REL_ID_MAP))) {
+                for (LongEntry entry : nodeRelations) {
+                    nodeShards.put(entry.getKey(), "" + shard(id(entry.getValue()), shards));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot write " + NODE_ID_SHARD_MAP, e);
+        }
+        partitionNodes();
+        new File(join.file(NODE_ID_SHARD_MAP)).delete();
+        manifest.write();
+        timer.stop();
+    }
+
+    /**
+     * Splits a map over the shards. Each part stays sorted.
+     *
+     * @param byValue true to partition on the id in the value instead of the key
+     */
+    private void partition(String map, boolean byValue) {
+        LongEntryWriter[] writers = new LongEntryWriter[shards];
+        try {
+            try {
+                openWriters(map, writers);
+                try (LongEntryReader reader = RecordFormat.read(join.file(map))) {
+                    for (LongEntry entry : reader) {
+                        long id = byValue ? id(entry.getValue()) : entry.getKey();
+                        writers[shard(id, shards)].write(entry);
+                    }
+                }
+            } finally {
+                closeWriters(writers);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot partition " + map, e);
+        }
+    }
+
+    /**
+     * Writes each way to the shard that owns it, which writes its complete json, and to the shards of the relations
+     * that it is a member of. Adds the nodes of the way for each of those shards to nodeShards.
+     */
+    private void partitionWays(LongSortingWriter nodeShards) throws IOException {
+        LongEntryWriter[] writers = new LongEntryWriter[shards];
+        boolean[] targets = new boolean[shards];
+        try (LongEntryReader ways = RecordFormat.read(join.file(OsmJoin.WAY_ID_WAYJSON_MAP));
+                LongEntryReader wayRelations = RecordFormat.read(join.file(OsmJoin.WAY_ID_REL_ID_MAP))) {
+            openWriters(OsmJoin.WAY_ID_WAYJSON_MAP, writers);
+            PeekableIterator<LongEntry> relations = new PeekableIterator<LongEntry>(wayRelations);
+            for (LongEntry way : ways) {
+                long wayId = way.getKey();
+                Arrays.fill(targets, false);
+                targets[shard(wayId, shards)] = true;
+                if (OsmJoin.skipTo(relations, wayId)) {
+                    while (relations.hasNext() && relations.peek().getKey() == wayId) {
+                        targets[shard(id(relations.next().getValue()), shards)] = true;
+                    }
+                }
+                // ways end with "ns":[..]}, see OsmJoin.parseWay
+                String json = way.getValue();
+                int start = json.lastIndexOf("\"ns\":[") + 6;
+                int end = json.indexOf(']', start);
+                for (int i = 0; i < shards; i++) {
+                    if (targets[i]) {
+                        writers[i].write(way);
+                        String shard = "" + i;
+                        for (int ref = start; ref < end;) {
+                            int comma = json.indexOf(',', ref);
+                            int refEnd = comma < 0 || comma > end ? end : comma;
+                            nodeShards.put(LongEntryParsingProcessor.parseLong(json, ref, refEnd), shard);
+                            ref = refEnd + 1;
+                        }
+                    }
+                }
+            }
+        } finally {
+            closeWriters(writers);
+        }
+    }
+
+    /**
+     * Writes each node to the shards that need it according to {@value #NODE_ID_SHARD_MAP}. Nodes that no way or
+     * relation refers to are left out, they are complete as they are.
+     */
+    private void partitionNodes() {
+        LongEntryWriter[] writers = new LongEntryWriter[shards];
+        boolean[] targets = new boolean[shards];
+        try {
+            try (LongEntryReader nodes = RecordFormat.read(join.file(OsmJoin.NODE_ID_NODEJSON_MAP));
+                    LongEntryReader nodeShardEntries = RecordFormat.read(join.file(NODE_ID_SHARD_MAP))) {
+                openWriters(OsmJoin.NODE_ID_NODEJSON_MAP, writers);
+                PeekableIterator<LongEntry> nodeShards = new PeekableIterator<LongEntry>(nodeShardEntries);
+                for (LongEntry node : nodes) {
+                    long nodeId = node.getKey();
+                    if (OsmJoin.skipTo(nodeShards, nodeId)) {
+                        Arrays.fill(targets, false);
+                        while (nodeShards.hasNext() && nodeShards.peek().getKey() == nodeId) {
+                            targets[Integer.parseInt(nodeShards.next().getValue())] = true;
+                        }
+                        for (int i = 0; i < shards; i++) {
+                            if (targets[i]) {
+                                writers[i].write(node);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                closeWriters(writers);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot partition " + OsmJoin.NODE_ID_NODEJSON_MAP, e);
+        }
+    }
+
+    private void openWriters(String map, LongEntryWriter[] writers) throws IOException {
+        for (int i = 0; i < shards; i++) {
+            writers[i] = join.getRecordFormat().writer(shardFile(i, map), join.getMapCodec());
+        }
+    }
+
+    private static void closeWriters(LongEntryWriter[] writers) throws IOException {
+        for (LongEntryWriter writer : writers) {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private static long id(String value) {
+        return LongEntryParsingProcessor.parseLong(value, 0, value.length());
+    }
+
+    static int shard(long id, int shards) {
+        return LongEntryJoiningIterable.partition(id, shards);
+    }
+
+    private void runWorkers() {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shard-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < shards; i++) {
+                final int shard = i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        runWorker(shard);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the workers", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("worker failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runWorker(int shard) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(workerJvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardedOsmJoin.class.getName());
+        command.add("--worker");
+        command.add(shardDirectory(shard));
+        command.add(new File(join.getWorkDirectory(), "shard-" + shard).getPath());
+        command.addAll(workerSettings());
+        File log = new File(shardDirectory(shard), "worker.log");
+        LOG.info("starting worker for shard " + shard + ", logging to " + log);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        int exit = process.waitFor();
+        if (exit != 0) {
+            throw new IllegalStateException("worker for shard " + shard + " exited with " + exit + ", see " + log);
+        }
+        LOG.info("worker for shard " + shard + " is done");
+    }
+
+    /**
+     * @return the settings of the join, with its thread pool divided over the workers that run at the same time
+     */
+    List<String> workerSettings() {
+        int threads = Math.max(1, join.getThreadPoolSize() / Math.max(1, Math.min(workers, shards)));
+        List<String> settings = new ArrayList<>();
+        for (String setting : join.settings()) {
+            settings.add(setting.startsWith("threadPoolSize=") ? "threadPoolSize=" + threads : setting);
+        }
+        return settings;
+    }
+
+    /**
+     * Merges the complete ways and relations of the shards, unless that was done for the same shard maps before. Like
+     * the stages of processAll, the maps are written to temporary files that are moved in place when they are done.
+     */
+    private void merge() {
+        boolean indexed = join.isIndexedMaps();
+        List<String> inputs = new ArrayList<>();
+        List<String> outputs = new ArrayList<>();
+        for (String map : MERGED_MAPS) {
+            for (int i = 0; i < shards; i++) {
+                inputs.add(shardFile(i, map));
+            }
+            outputs.add(join.file(map));
+            if (indexed) {
+                outputs.add(IndexedMapWriter.indexFile(join.file(map)));
+            }
+        }
+        StageManifest manifest = new StageManifest(new File(join.file("merge.manifest")), "shards=" + shards
+                + ",indexedMaps=" + indexed, inputs, outputs);
+        if (manifest.isUpToDate()) {
+            LOG.info("skipping merge, it is up to date");
+            return;
+        }
+        manifest.delete();
+        for (String map : MERGED_MAPS) {
+            merge(map, indexed);
+        }
+        manifest.write();
+    }
+
+    /**
+     * Merges a map of the shards into a single sorted map. Ways that are members of relations in other shards are
+     * completed there as well, those copies are the same and only the first is kept.
+     */
+    private void merge(String map, boolean indexed) {
+        StopWatch timer = StopWatch.time(LOG, "merge " + map + " of " + shards + " shards");
+        File target = new File(join.file(map));
+        File tmp = new File(target.getPath() + ".tmp");
+        List<LongEntryReader> readers = new ArrayList<>();
+        try {
+            try (LongEntryWriter out = join.fileWriter(tmp.getPath(), indexed)) {
+                for (int i = 0; i < shards; i++) {
+                    readers.add(RecordFormat.read(shardFile(i, map)));
+                }
+                boolean first = true;
+                long last = 0;
+                for (LongEntry entry : LongMergingEntryIterable.ofEntries(readers)) {
+                    if (first || entry.getKey() != last) {
+                        out.write(entry);
+                        last = entry.getKey();
+                        first = false;
+                    }
+                }
+            } finally {
+                for (LongEntryReader reader : readers) {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot merge " + map, e);
+        }
+        StageManifest.move(tmp, target);
+        File index = new File(IndexedMapWriter.indexFile(tmp.getPath()));
+        if (index.exists()) {
+            StageManifest.move(index, new File(IndexedMapWriter.indexFile(target.getPath())));
+        } else {
+            new File(IndexedMapWriter.indexFile(target.getPath())).delete();
+        }
+        timer.stop();
+    }
+
+    /**
+     * Runs stages 2 to 6 of processAll in a shard directory, with the settings of the coordinator.
+     */
+    private static void work(String shardDirectory, String workDirectory, List<String> settings) {
+        OsmJoin join = new OsmJoin(workDirectory, new JsonParser()).setOutputDirectory(shardDirectory);
+        for (String setting : settings) {
+            join.configure(setting);
+        }
+        join.runStages(null, OsmJoin.STAGES + 1, 2, OsmJoin.STAGES);
+    }
+
+    /**
+     * Usage: ShardedOsmJoin osmfile shards [filter], or ShardedOsmJoin --worker sharddir workdir name=value... for the
+     * workers.
+     */
+    public static void main(String[] args) {
+        if (args.length > 0 && "--worker".equals(args[0])) {
+            work(args[1], args[2], Arrays.asList(args).subList(3, args.length));
+            return;
+        }
+        OsmJoin join = new OsmJoin("./temp", new JsonParser());
+        if (args.length > 2) {
+            join.setFilter(OsmFilter.parse(args[2]));
+        }
+        new ShardedOsmJoin(join, Integer.parseInt(args[1])).processAll(args[0]);
+    }
+}
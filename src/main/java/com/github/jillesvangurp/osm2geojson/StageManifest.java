@@ -0,0 +1,129 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Records that a stage of {@link OsmJoin#processAll(String, int)} completed: the size and modification time of its
+ * inputs and outputs, and the parameters it ran with. A stage is up to date when its manifest exists and its inputs,
+ * outputs and parameters still match. Because the outputs of a stage are the inputs of the next stages, running a
+ * stage again makes the stages after it out of date.
+ *
+ * Files are compared on size and modification time rather than content, which would mean reading tens of gigabytes.
+ */
+class StageManifest {
+    private final File file;
+    private final String parameters;
+    private final List<String> inputs;
+    private final List<String> outputs;
+
+    /**
+     * @param file the manifest
+     * @param parameters settings that change the outputs
+     * @param inputs files that the stage reads
+     * @param outputs files that the stage writes
+     */
+    StageManifest(File file, String parameters, List<String> inputs, List<String> outputs) {
+        this.file = file;
+        this.parameters = parameters;
+        this.inputs = inputs;
+        this.outputs = outputs;
+    }
+
+    /**
+     * @return true if the stage completed before with the same inputs and parameters, and its outputs are unchanged
+     */
+    boolean isUpToDate() {
+        if (!file.exists()) {
+            return false;
+        }
+        Properties recorded = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            recorded.load(in);
+        } catch (IOException e) {
+            // unreadable, so run the stage again
+            return false;
+        }
+        return recorded.equals(current());
+    }
+
+    /**
+     * @return the parameters the stage last completed with, or null if there is no readable manifest
+     */
+    String recordedParameters() {
+        Properties recorded = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            recorded.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        return recorded.getProperty("parameters");
+    }
+
+    /**
+     * Writes the manifest after the stage completed, atomically so that a half written manifest is never read.
+     */
+    void write() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            current().store(out, "completed stage of OsmJoin");
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot write " + tmp, e);
+        }
+        move(tmp, file);
+    }
+
+    /**
+     * Removes the manifest before the stage runs, so the stage is out of date until it completes.
+     */
+    void delete() {
+        if (file.exists() && !file.delete()) {
+            throw new IllegalStateException("cannot delete " + file);
+        }
+    }
+
+    private Properties current() {
+        Properties properties = new Properties();
+        properties.setProperty("parameters", parameters);
+        for (String input : inputs) {
+            properties.setProperty("input." + input, fingerprint(input));
+        }
+        for (String output : outputs) {
+            properties.setProperty("output." + output, fingerprint(output));
+        }
+        return properties;
+    }
+
+    private static String fingerprint(String path) {
+        File file = new File(path);
+        if (!file.exists()) {
+            return "missing";
+        }
+        return file.length() + " bytes, modified " + file.lastModified();
+    }
+
+    /**
+     * Moves a file in place with a rename, so readers see either the old or the new file.
+     */
+    static void move(File source, File target) {
+        try {
+            try {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot move " + source + " to " + target, e);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs stages that read and write files, each as soon as the stages that write its inputs are done. Stages that do not
+ * depend on each other run at the same time, as long as the threads and memory they declare fit in the budget. A
+ * stage that needs more than the whole budget runs on its own.
+ *
+ * After the run, the critical path is logged: the chain of stages that determined how long the run took.
+ */
+public class StageScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(StageScheduler.class);
+
+    private final int threads;
+    private final long memoryBytes;
+
+    // guarded by this
+    private int freeThreads;
+    private long freeMemory;
+    private Throwable failure = null;
+
+    /**
+     * @param threads threads that all running stages may use together
+     * @param memoryBytes memory that all running stages may use together
+     */
+    public StageScheduler(int threads, long memoryBytes) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one thread is needed");
+        }
+        this.threads = threads;
+        this.memoryBytes = memoryBytes;
+    }
+
+    /**
+     * Runs the stages and waits until they are done. If a stage fails, no more stages are started and the failure is
+     * thrown once the running stages are done.
+     *
+     * @param stages in the order they should start when several are ready
+     */
+    public void run(List<? extends Stage> stages) {
+        Map<Stage, List<Stage>> dependencies = dependencies(stages);
+        for (Stage stage : stages) {
+            stage.start = 0;
+            stage.end = 0;
+        }
+        LinkedList<Stage> waiting = new LinkedList<Stage>(stages);
+        List<Stage> running = new ArrayList<>();
+        ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "stage");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long start = System.nanoTime();
+        try {
+            synchronized (this) {
+                freeThreads = threads;
+                freeMemory = memoryBytes;
+                failure = null;
+                while (!running.isEmpty() || !waiting.isEmpty() && failure == null) {
+                    if (failure == null) {
+                        startReadyStages(waiting, running, dependencies, executor);
+                    }
+                    if (running.isEmpty() && failure == null) {
+                        throw new IllegalStateException("stages " + waiting + " depend on each other");
+                    }
+                    wait();
+                    for (int i = running.size() - 1; i >= 0; i--) {
+                        if (running.get(i).end != 0) {
+                            running.remove(i);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while running stages", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null) {
+            throw new IllegalStateException("stage failed", failure);
+        }
+        logCriticalPath(stages, dependencies, start);
+    }
+
+    private void startReadyStages(LinkedList<Stage> waiting, List<Stage> running,
+            Map<Stage, List<Stage>> dependencies, ExecutorService executor) {
+        for (Stage stage : new ArrayList<>(waiting)) {
+            if (!isDone(dependencies.get(stage))) {
+                continue;
+            }
+            final int stageThreads = Math.min(stage.threads, threads);
+            final long stageMemory = Math.min(stage.memoryBytes, memoryBytes);
+            if (running.isEmpty() || stageThreads <= freeThreads && stageMemory <= freeMemory) {
+                freeThreads -= stageThreads;
+                freeMemory -= stageMemory;
+                waiting.remove(stage);
+                running.add(stage);
+                final Stage started = stage;
+                started.start = System.nanoTime();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Throwable error = null;
+                        try {
+                            started.run();
+                        } catch (Throwable t) {
+                            error = t;
+                        }
+                        synchronized (StageScheduler.this) {
+                            started.end = System.nanoTime();
+                            freeThreads += stageThreads;
+                            freeMemory += stageMemory;
+                            if (error != null && failure == null) {
+                                failure = error;
+                            }
+                            StageScheduler.this.notifyAll();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static boolean isDone(List<Stage> stages) {
+        for (Stage stage : stages) {
+            if (stage.end == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return for each stage, the stages that write its inputs
+     */
+    static Map<Stage, List<Stage>> dependencies(List<? extends Stage> stages) {
+        Map<String, Stage> writers = new HashMap<>();
+        for (Stage stage : stages) {
+            for (String output : stage.outputs) {
+                Stage other = writers.put(output, stage);
+                if (other != null) {
+                    throw new IllegalArgumentException(output + " is written by " + other + " and " + stage);
+                }
+            }
+        }
+        Map<Stage, List<Stage>> dependencies = new HashMap<>();
+        for (Stage stage : stages) {
+            List<Stage> writersOfInputs = new ArrayList<>();
+            for (String input : stage.inputs) {
+                Stage writer = writers.get(input);
+                if (writer != null && writer != stage && !writersOfInputs.contains(writer)) {
+                    writersOfInputs.add(writer);
+                }
+            }
+            dependencies.put(stage, writersOfInputs);
+        }
+        return dependencies;
+    }
+
+    /**
+     * Logs the chain of stages, each waiting for the last of its dependencies to finish, that ended last.
+     */
+    private static void logCriticalPath(List<? extends Stage> stages, Map<Stage, List<Stage>> dependencies,
+            long start) {
+        Stage last = null;
+        for (Stage stage : stages) {
+            if (last == null || stage.end > last.end) {
+                last = stage;
+            }
+        }
+        if (last == null) {
+            return;
+        }
+        LinkedList<Stage> path = new LinkedList<Stage>();
+        for (Stage stage = last; stage != null;) {
+            path.addFirst(stage);
+            Stage latest = null;
+            for (Stage dependency : dependencies.get(stage)) {
+                if (latest == null || dependency.end > latest.end) {
+                    latest = dependency;
+                }
+            }
+            stage = latest;
+        }
+        StringBuilder buf = new StringBuilder("critical path of " + seconds(last.end - start) + ": ");
+        for (Stage stage : path) {
+            if (stage != path.getFirst()) {
+                buf.append(" -> ");
+            }
+            buf.append(stage).append(" (").append(seconds(stage.end - stage.start)).append(')');
+        }
+        LOG.info(buf.toString());
+    }
+
+    private static String seconds(long nanos) {
+        return nanos / 1000000 / 1000.0 + "s";
+    }
+
+    /**
+     * Work that reads the inputs and writes the outputs. Stages are compared on identity.
+     */
+    public abstract static class Stage {
+        private final String name;
+        private final List<String> inputs;
+        private final List<String> outputs;
+        private final int threads;
+        private final long memoryBytes;
+        // nano times, guarded by the scheduler
+        private long start = 0;
+        private long end = 0;
+
+        /**
+         * @param name for logging
+         * @param inputs files the stage reads
+         * @param outputs files the stage writes
+         * @param threads threads the stage keeps busy
+         * @param memoryBytes memory the stage may use, on top of the sort buckets that are governed separately
+         */
+        public Stage(String name, List<String> inputs, List<String> outputs, int threads, long memoryBytes) {
+            this.name = name;
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.threads = Math.max(1, threads);
+            this.memoryBytes = Math.max(0, memoryBytes);
+        }
+
+        public Stage(String name, List<String> inputs, String... outputs) {
+            this(name, inputs, Arrays.asList(outputs), 1, 0);
+        }
+
+        public List<String> getInputs() {
+            return inputs;
+        }
+
+        public List<String> getOutputs() {
+            return outputs;
+        }
+
+        public abstract void run();
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
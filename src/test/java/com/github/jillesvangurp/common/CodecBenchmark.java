@@ -0,0 +1,97 @@
+package com.github.jillesvangurp.common;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.io.Files;
+import com.jillesvangurp.iterables.LineIterable;
+
+/**
+ * Shows what each codec costs in time and saves in disk space. Not a test, run the main method with an intermediate
+ * file, like nodeid2rawnodejson.gz, or without arguments for generated node lines that look like one.
+ */
+public class CodecBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        List<String> lines = args.length > 0 ? read(args[0], 2000000) : generate(1000000);
+        long bytes = 0;
+        for (String line : lines) {
+            bytes += line.length() + 1;
+        }
+        System.out.println(lines.size() + " lines, about " + bytes / 1024 / 1024 + " MB");
+        System.out.println("codec\twrite ms\tread ms\tsize MB\tratio");
+        File dir = Files.createTempDir();
+        try {
+            for (Codec codec : new Codec[] { Codec.NONE, Codec.FAST, Codec.gzip(3), Codec.GZIP, Codec.gzip(9),
+                    Codec.PARALLEL_GZIP }) {
+                String file = new File(dir, codec.toString()).getAbsolutePath();
+                // once to warm up, then measure
+                write(codec, file, lines);
+                long start = System.nanoTime();
+                write(codec, file, lines);
+                long write = System.nanoTime() - start;
+                start = System.nanoTime();
+                long read = 0;
+                try (LineIterable it = Codec.lines(file)) {
+                    for (String line : it) {
+                        read += line.length();
+                    }
+                }
+                long readTime = System.nanoTime() - start;
+                long size = new File(file).length();
+                System.out.println(codec + "\t" + write / 1000000 + "\t" + readTime / 1000000 + "\t" + size / 1024
+                        / 1024 + "\t" + String.format("%.2f", (double) size / bytes) + (read < 0 ? "!" : ""));
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static void write(Codec codec, String file, List<String> lines) throws IOException {
+        try (BufferedWriter out = codec.fileWriter(file)) {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+    }
+
+    private static List<String> read(String file, int max) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (LineIterable it = Codec.lines(file)) {
+            for (String line : it) {
+                if (lines.size() == max) {
+                    break;
+                }
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static List<String> generate(int count) {
+        Random random = new Random(42);
+        String[] amenities = { "cafe", "restaurant", "bench", "post_box", "waste_basket" };
+        List<String> lines = new ArrayList<>();
+        long id = 0;
+        for (int i = 0; i < count; i++) {
+            id += 1 + random.nextInt(20);
+            StringBuilder line = new StringBuilder();
+            line.append(id).append(";{\"id\":").append(id).append(",\"l\":[")
+                    .append(130000000 + random.nextInt(10000000)).append(',')
+                    .append(520000000 + random.nextInt(10000000)).append(']');
+            if (random.nextInt(10) == 0) {
+                line.append(",\"t\":{\"amenity\":\"").append(amenities[random.nextInt(amenities.length)])
+                        .append("\",\"name\":\"Node ").append(random.nextInt(1000)).append("\"}");
+            }
+            lines.add(line.append('}').toString());
+        }
+        return lines;
+    }
+}
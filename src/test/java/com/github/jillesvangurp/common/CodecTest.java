@@ -0,0 +1,91 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+import com.jillesvangurp.iterables.LineIterable;
+
+@Test
+public class CodecTest {
+    private File dir;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        dir = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    public void shouldReadWhatEachCodecWrites() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            lines.add(i + ";{\"id\":" + i + ",\"name\":\"Stra\u00dfe\"}");
+        }
+        long plainSize = 0;
+        for (Codec codec : new Codec[] { Codec.NONE, Codec.FAST, Codec.GZIP, Codec.gzip(9) }) {
+            String file = new File(dir, codec + ".gz").getAbsolutePath();
+            try (BufferedWriter out = codec.fileWriter(file)) {
+                for (String line : lines) {
+                    out.write(line + "\n");
+                }
+            }
+            assertThat(read(file), is(lines));
+            if (codec == Codec.NONE) {
+                plainSize = new File(file).length();
+            } else {
+                assertThat(new File(file).length(), lessThan(plainSize));
+            }
+        }
+        // gzip files written elsewhere are read as well
+        String file = new File(dir, "other.gz").getAbsolutePath();
+        try (BufferedWriter out = ResourceUtil.gzipFileWriter(file)) {
+            out.write("1;a\n");
+        }
+        assertThat(read(file).get(0), is("1;a"));
+    }
+
+    public void shouldReadEmptyFiles() throws IOException {
+        File file = new File(dir, "empty");
+        FileUtils.touch(file);
+        assertThat(read(file.getAbsolutePath()).size(), is(0));
+    }
+
+    public void shouldParseNames() {
+        for (String name : new String[] { "none", "fast", "gzip", "gzip:9" }) {
+            assertThat(Codec.parse(name).toString(), is(name));
+        }
+        assertThat(Codec.parse("fast"), is(Codec.FAST));
+        assertThat(Codec.gzip(1).toString(), is("gzip:1"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectUnknownCodec() {
+        Codec.parse("lz4");
+    }
+
+    private static List<String> read(String file) throws IOException {
+        List<String> read = new ArrayList<>();
+        try (LineIterable it = Codec.lines(file)) {
+            for (String line : it) {
+                read.add(line);
+            }
+        }
+        return read;
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.ParallelBzip2InputStream.Segment;
+
+@Test
+public class ParallelBzip2InputStreamTest {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelBzip2InputStreamTest.class);
+
+    public void shouldDecompressConcatenatedMultiBlockStreams() throws IOException {
+        byte[] first = osmLikeData(1500000, 42);
+        byte[] second = osmLikeData(700000, 43);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        // block size 1 means 100k blocks, so we get many blocks per stream
+        compressed.write(compress(first, 1));
+        compressed.write(compress(second, 1));
+        compressed.write(compress(new byte[0], 9));
+
+        byte[] expected = new byte[first.length + second.length];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+
+        try (InputStream is = new ParallelBzip2InputStream(new ByteArrayInputStream(compressed.toByteArray()), 4)) {
+            byte[] decompressed = IOUtils.toByteArray(is);
+            assertThat(decompressed.length, is(expected.length));
+            assertThat(Arrays.equals(decompressed, expected), is(true));
+        }
+    }
+
+    public void shouldDecompressSmallInput() throws IOException {
+        byte[] data = "<node id=\"1\"/>\n".getBytes(ResourceUtil.UTF8);
+        try (InputStream is = new ParallelBzip2InputStream(new ByteArrayInputStream(compress(data, 9)), 2)) {
+            assertThat(Arrays.equals(IOUtils.toByteArray(is), data), is(true));
+        }
+    }
+
+    public void shouldDecompressABlockThatWasCutAtAFalseMagicNumber() throws IOException {
+        byte[] data = osmLikeData(50000, 11);
+        byte[] compressed = compress(data, 1);
+        // the block follows the 32 bit stream header, the end of stream magic and a 32 bit crc follow the block
+        int end = compressed.length * 8 - 32 - 48;
+        while (bits(compressed, end, 48) != 0x177245385090L) {
+            end--;
+        }
+        int bitLength = end - 32;
+        int split = bitLength * 2 / 5 + 3;
+        Segment first = new Segment(ParallelBzip2InputStream.copyBits(compressed, 32, split), split, true);
+        Segment second = new Segment(ParallelBzip2InputStream.copyBits(compressed, 32 + split, bitLength - split),
+                bitLength - split, false);
+
+        boolean failed = false;
+        try {
+            ParallelBzip2InputStream.decompressBlock(first);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+        }
+        assertThat(failed, is(true));
+        assertThat(Arrays.equals(ParallelBzip2InputStream.decompressBlock(first.append(second)), data), is(true));
+    }
+
+    public void shouldDecompressAStreamWithAnEndOfStreamMagicInsideABlock() throws IOException {
+        // the block header has a map of the byte values that are used, after the 48 bit magic, the 32 bit crc, the
+        // randomized bit and the 24 bit pointer. These bytes make that map read as the end of stream magic.
+        byte[] symbols = "157:;<QSX[aq".getBytes(ResourceUtil.UTF8);
+        symbols = Arrays.copyOf(symbols, symbols.length + 4);
+        symbols[symbols.length - 4] = (byte) 0x91;
+        symbols[symbols.length - 3] = (byte) 0xa1;
+        symbols[symbols.length - 2] = (byte) 0xb1;
+        symbols[symbols.length - 1] = (byte) 0xe1;
+        Random random = new Random(5);
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i < symbols.length ? symbols[i] : symbols[random.nextInt(symbols.length)];
+            // no runs of four, which bzip2 would encode with a length byte that is also in the map
+            while (i >= 3 && data[i] == data[i - 1] && data[i] == data[i - 2] && data[i] == data[i - 3]) {
+                data[i] = symbols[random.nextInt(symbols.length)];
+            }
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compressed.write(compress(data, 9));
+        compressed.write(compress(data, 9));
+        assertThat(bits(compressed.toByteArray(), 32 + 48 + 32 + 1 + 24, 48), is(0x177245385090L));
+
+        try (InputStream is = new ParallelBzip2InputStream(new ByteArrayInputStream(compressed.toByteArray()), 2)) {
+            byte[] decompressed = IOUtils.toByteArray(is);
+            assertThat(decompressed.length, is(2 * data.length));
+            assertThat(Arrays.equals(Arrays.copyOf(decompressed, data.length), data), is(true));
+            assertThat(Arrays.equals(Arrays.copyOfRange(decompressed, data.length, decompressed.length), data),
+                    is(true));
+        }
+    }
+
+    private static long bits(byte[] bytes, long bitOffset, int bitLength) {
+        byte[] copy = ParallelBzip2InputStream.copyBits(bytes, bitOffset, bitLength);
+        long value = 0;
+        for (byte b : copy) {
+            value = value << 8 | b & 0xff;
+        }
+        return value >>> (copy.length * 8 - bitLength);
+    }
+
+    /**
+     * Compares throughput with the single threaded commons-compress decoder. The numbers are only logged since they
+     * depend on the machine the test runs on.
+     */
+    public void shouldCompareThroughputWithCommonsCompress() throws IOException {
+        byte[] data = osmLikeData(8000000, 7);
+        byte[] compressed = compress(data, 9);
+
+        long start = System.nanoTime();
+        byte[] single;
+        try (InputStream is = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed), true)) {
+            single = IOUtils.toByteArray(is);
+        }
+        long singleNanos = System.nanoTime() - start;
+
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        start = System.nanoTime();
+        byte[] parallel;
+        try (InputStream is = new ParallelBzip2InputStream(new ByteArrayInputStream(compressed), threads)) {
+            parallel = IOUtils.toByteArray(is);
+        }
+        long parallelNanos = System.nanoTime() - start;
+
+        assertThat(Arrays.equals(single, parallel), is(true));
+        LOG.info("bzip2 decompression of " + data.length + " bytes: commons-compress " + mbPerSecond(data.length, singleNanos)
+                + " MB/s, parallel with " + threads + " threads " + mbPerSecond(data.length, parallelNanos) + " MB/s");
+    }
+
+    private static String mbPerSecond(long bytes, long nanos) {
+        return String.format("%.1f", bytes / 1024.0 / 1024.0 / (nanos / 1000000000.0));
+    }
+
+    private static byte[] compress(byte[] data, int blockSize) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (BZip2CompressorOutputStream out = new BZip2CompressorOutputStream(bos, blockSize)) {
+            out.write(data);
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] osmLikeData(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder buf = new StringBuilder(size + 200);
+        while (buf.length() < size) {
+            buf.append("  <node id=\"").append(random.nextInt(Integer.MAX_VALUE)).append("\" lat=\"")
+                    .append(random.nextInt(90)).append('.').append(random.nextInt(10000000)).append("\" lon=\"")
+                    .append(random.nextInt(180)).append('.').append(random.nextInt(10000000)).append("\"/>\n");
+        }
+        buf.setLength(size);
+        return buf.toString().getBytes(ResourceUtil.UTF8);
+    }
+}
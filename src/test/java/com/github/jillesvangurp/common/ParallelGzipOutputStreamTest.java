@@ -0,0 +1,109 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+
+@Test
+public class ParallelGzipOutputStreamTest {
+
+    public void shouldProduceRegularGzip() throws IOException {
+        for (int blockSize : new int[] { 1000, 64 * 1024 }) {
+            for (int length : new int[] { 0, 1, blockSize - 1, blockSize, 5 * blockSize + blockSize / 2, 300000 }) {
+                byte[] data = data(length);
+                byte[] compressed = compress(data, blockSize);
+                assertThat(string(decompress(compressed)), is(string(data)));
+            }
+        }
+    }
+
+    public void shouldCompressAboutAsWellAsOneDeflater() throws IOException {
+        byte[] data = data(1000000);
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(single)) {
+            out.write(data);
+        }
+        // the dictionary keeps the blocks from starting from scratch
+        assertThat((double) compress(data, 128 * 1024).length, lessThan(single.size() * 1.02));
+    }
+
+    public void shouldWriteSingleBytes() throws IOException {
+        byte[] data = data(5000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(bytes, Deflater.BEST_SPEED,
+                Codec.compressionExecutor(), 2, 1024)) {
+            for (byte b : data) {
+                out.write(b);
+            }
+        }
+        assertThat(string(decompress(bytes.toByteArray())), is(string(data)));
+    }
+
+    public void shouldShareTheExecutorBetweenStreams() throws IOException {
+        byte[] data1 = data(100000);
+        byte[] data2 = data(70000);
+        ByteArrayOutputStream bytes1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream bytes2 = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream out1 = new ParallelGzipOutputStream(bytes1, Deflater.BEST_SPEED,
+                Codec.compressionExecutor(), 1, 1024);
+                ParallelGzipOutputStream out2 = new ParallelGzipOutputStream(bytes2, Deflater.BEST_SPEED,
+                        Codec.compressionExecutor(), 3, 1024)) {
+            for (int i = 0; i < data1.length; i += 1000) {
+                out1.write(data1, i, Math.min(1000, data1.length - i));
+                if (i < data2.length) {
+                    out2.write(data2, i, Math.min(1000, data2.length - i));
+                }
+            }
+        }
+        assertThat(string(decompress(bytes1.toByteArray())), is(string(data1)));
+        assertThat(string(decompress(bytes2.toByteArray())), is(string(data2)));
+        // closing the streams leaves the shared executor running
+        assertThat(Codec.compressionExecutor().isShutdown(), is(false));
+        assertThat(Codec.compressionExecutor(), sameInstance(Codec.compressionExecutor()));
+    }
+
+    private static byte[] compress(byte[] data, int blockSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(bytes, Deflater.DEFAULT_COMPRESSION,
+                Codec.compressionExecutor(), 8, blockSize)) {
+            // odd sized writes that do not line up with the blocks
+            for (int i = 0; i < data.length; i += 777) {
+                out.write(data, i, Math.min(777, data.length - i));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, ResourceUtil.UTF8);
+    }
+
+    private static byte[] data(int length) {
+        Random random = new Random(length);
+        StringBuilder buf = new StringBuilder();
+        while (buf.length() < length) {
+            long id = random.nextInt(100000);
+            buf.append(id).append(";{\"id\":").append(id).append(",\"l\":[").append(random.nextInt(1000000))
+                    .append(',').append(random.nextInt(1000000)).append("]}\n");
+        }
+        return buf.substring(0, length).getBytes(ResourceUtil.UTF8);
+    }
+}
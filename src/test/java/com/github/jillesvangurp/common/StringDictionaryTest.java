@@ -0,0 +1,72 @@
+package com.github.jillesvangurp.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+@Test
+public class StringDictionaryTest {
+    public void shouldReturnSameInstance() {
+        StringDictionary dictionary = new StringDictionary(1024, 20);
+        String highway = dictionary.intern(new String("highway"));
+        assertThat(dictionary.intern(new String("highway")), sameInstance(highway));
+        assertThat(dictionary.intern(new StringBuilder("highway")), sameInstance(highway));
+        assertThat(dictionary.intern("addr:highway", 5, 12), sameInstance(highway));
+        assertThat(dictionary.intern("addr:highway", 4, 12), is(":highway"));
+    }
+
+    public void shouldNotInternLongStrings() {
+        StringDictionary dictionary = new StringDictionary(1024, 5);
+        String name = dictionary.intern(new String("Hauptstrasse"));
+        assertThat(dictionary.intern(new String("Hauptstrasse")), not(sameInstance(name)));
+        assertThat(dictionary.intern(new StringBuilder("Hauptstrasse"), 0, 5), is("Haupt"));
+    }
+
+    public void shouldStayBounded() {
+        StringDictionary dictionary = new StringDictionary(3, 20);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(dictionary.intern(new StringBuilder("value" + i)), is("value" + i));
+        }
+        // the last one is still there
+        assertThat(dictionary.intern(new String("value999")), sameInstance(dictionary.intern("value999")));
+    }
+
+    public void shouldHandleConcurrentUse() throws Exception {
+        final StringDictionary dictionary = new StringDictionary(64, 20);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        StringBuilder buf = new StringBuilder();
+                        for (int i = 0; i < 100000; i++) {
+                            buf.setLength(0);
+                            buf.append("key").append(i % 200);
+                            if (!dictionary.intern(buf).equals(buf.toString())) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertThat(result.get(), is(true));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.jillesvangurp.mergesort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import org.testng.annotations.Test;
+
+@Test
+public class BloomFilterTest {
+
+    public void shouldContainAddedKeys() {
+        BloomFilter filter = new BloomFilter(10000, 10);
+        for (long key = -5000; key < 5000; key++) {
+            filter.add(key * 7);
+        }
+        for (long key = -5000; key < 5000; key++) {
+            assertThat(filter.mightContain(key * 7), is(true));
+        }
+    }
+
+    public void shouldHaveFewFalsePositives() {
+        BloomFilter filter = new BloomFilter(10000, 10);
+        for (long key = 0; key < 10000; key++) {
+            filter.add(key);
+        }
+        int falsePositives = 0;
+        for (long key = 10000; key < 110000; key++) {
+            if (filter.mightContain(key)) {
+                falsePositives++;
+            }
+        }
+        assertThat(falsePositives, lessThan(2000));
+    }
+
+    public void shouldSurviveSerialization() {
+        BloomFilter filter = new BloomFilter(100, 10);
+        for (long key = 0; key < 100; key++) {
+            filter.add(key * 1000);
+        }
+        BloomFilter copy = BloomFilter.fromBytes(filter.toBytes());
+        for (long key = 0; key < 100000; key++) {
+            assertThat(copy.mightContain(key), is(filter.mightContain(key)));
+        }
+    }
+
+    public void shouldHandleEmptyFilter() {
+        BloomFilter filter = new BloomFilter(0, 10);
+        assertThat(filter.mightContain(42), is(false));
+    }
+}
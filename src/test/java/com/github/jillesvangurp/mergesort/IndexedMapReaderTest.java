@@ -0,0 +1,147 @@
+package com.github.jillesvangurp.mergesort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+
+@Test
+public class IndexedMapReaderTest {
+    private File tempDir;
+    private String file;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        tempDir = Files.createTempDir();
+        file = new File(tempDir, "map.gz").getPath();
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    public void shouldLookUpEveryKey() throws IOException {
+        // small blocks, so there are lots of them
+        try (IndexedMapWriter out = new IndexedMapWriter(file, 100, 10)) {
+            for (long key = -1000; key < 1000; key += 2) {
+                out.write(key, "v" + key);
+            }
+        }
+        try (IndexedMapReader reader = new IndexedMapReader(file)) {
+            assertThat(reader.size(), is(1000l));
+            for (long key = -1000; key < 1000; key += 2) {
+                assertThat(reader.get(key), is(Arrays.asList("v" + key)));
+                assertThat(reader.get(key + 1).isEmpty(), is(true));
+            }
+            assertThat(reader.get(Long.MIN_VALUE).isEmpty(), is(true));
+            assertThat(reader.get(Long.MAX_VALUE).isEmpty(), is(true));
+        }
+    }
+
+    public void shouldFindValuesThatSpanBlocks() throws IOException {
+        try (IndexedMapWriter out = new IndexedMapWriter(file, 20, 10)) {
+            out.write(1, "a");
+            for (int i = 0; i < 50; i++) {
+                out.write(2, "value" + i);
+            }
+            out.write(3, "c");
+        }
+        try (IndexedMapReader reader = new IndexedMapReader(file)) {
+            assertThat(reader.get(1), is(Arrays.asList("a")));
+            assertThat(reader.get(2).size(), is(50));
+            assertThat(reader.get(2).get(49), is("value49"));
+            assertThat(reader.get(3), is(Arrays.asList("c")));
+        }
+    }
+
+    public void shouldScanRanges() throws IOException {
+        try (IndexedMapWriter out = new IndexedMapWriter(file, 64, 0)) {
+            for (long key = 0; key < 1000; key += 10) {
+                out.write(key, "v");
+            }
+        }
+        try (IndexedMapReader reader = new IndexedMapReader(file)) {
+            assertThat(keys(reader.range(95, 130)), is("[100, 110, 120, 130]"));
+            assertThat(keys(reader.range(-100, 15)), is("[0, 10]"));
+            assertThat(keys(reader.range(991, 2000)), is("[]"));
+            assertThat(keys(reader.range(20, 10)), is("[]"));
+            // without bloom filters every key might be there
+            assertThat(reader.mightContain(5), is(true));
+            assertThat(reader.get(5).isEmpty(), is(true));
+        }
+    }
+
+    public void shouldBeReadableFromStartToEnd() throws IOException {
+        try (IndexedMapWriter out = new IndexedMapWriter(file, 50, 10)) {
+            for (long key = 0; key < 100; key++) {
+                out.write(key, "value with a\nnew line");
+            }
+        }
+        long expected = 0;
+        try (LongEntryReader reader = RecordFormat.read(file)) {
+            for (LongEntry entry : reader) {
+                assertThat(entry.getKey(), is(expected++));
+                assertThat(entry.getValue(), is("value with a\nnew line"));
+            }
+        }
+        assertThat(expected, is(100l));
+    }
+
+    public void shouldReadEmptyMap() throws IOException {
+        new IndexedMapWriter(file).close();
+        try (IndexedMapReader reader = new IndexedMapReader(file)) {
+            assertThat(reader.size(), is(0l));
+            assertThat(reader.get(0).isEmpty(), is(true));
+            assertThat(keys(reader.range(Long.MIN_VALUE, Long.MAX_VALUE)), is("[]"));
+        }
+        try (LongEntryReader reader = RecordFormat.read(file)) {
+            assertThat(reader.iterator().hasNext(), is(false));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectKeysOutOfOrder() throws IOException {
+        try (IndexedMapWriter out = new IndexedMapWriter(file)) {
+            out.write(2, "b");
+            out.write(1, "a");
+        }
+    }
+
+    public void shouldIndexSortingWriterOutput() throws IOException {
+        try (LongSortingWriter writer = new LongSortingWriter(new File(tempDir, "buckets").getPath(), file, 1024)
+                .setIndexed(true)) {
+            for (long key = 2000; key > 0; key--) {
+                writer.put(key, "value" + key);
+            }
+        }
+        try (IndexedMapReader reader = new IndexedMapReader(file)) {
+            assertThat(reader.size(), is(2000l));
+            assertThat(reader.get(1234), is(Arrays.asList("value1234")));
+            assertThat(keys(reader.range(1998, 3000)), is("[1998, 1999, 2000]"));
+        }
+    }
+
+    private static String keys(IndexedMapReader.Range range) throws IOException {
+        List<Long> keys = new ArrayList<>();
+        try {
+            for (LongEntry entry : range) {
+                keys.add(entry.getKey());
+            }
+        } finally {
+            range.close();
+        }
+        return keys.toString();
+    }
+}
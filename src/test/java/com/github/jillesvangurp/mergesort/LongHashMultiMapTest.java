@@ -0,0 +1,52 @@
+package com.github.jillesvangurp.mergesort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.annotations.Test;
+
+@Test
+public class LongHashMultiMapTest {
+
+    public void shouldKeepValuesInOrder() {
+        LongHashMultiMap map = new LongHashMultiMap();
+        map.put(1, "one");
+        map.put(-1, "minus one");
+        map.put(1, "een");
+        map.put(Long.MIN_VALUE, "");
+        assertThat(map.get(1), is(Arrays.asList("one", "een")));
+        assertThat(map.get(-1), is(Arrays.asList("minus one")));
+        assertThat(map.get(Long.MIN_VALUE), is(Arrays.asList("")));
+        assertThat(map.get(2), is(Collections.<String> emptyList()));
+        assertThat(map.containsKey(1), is(true));
+        assertThat(map.containsKey(2), is(false));
+        assertThat(map.size(), is(4));
+    }
+
+    public void shouldGrow() {
+        LongHashMultiMap map = new LongHashMultiMap();
+        for (long key = 0; key < 100000; key++) {
+            map.put(key << 20, "caf\u00e9 " + key);
+        }
+        for (long key = 0; key < 100000; key++) {
+            assertThat(map.get(key << 20), is(Arrays.asList("caf\u00e9 " + key)));
+        }
+        assertThat(map.size(), is(100000));
+    }
+
+    public void shouldStoreValuesLargerThanAPage() {
+        char[] chars = new char[3 * 1024 * 1024];
+        Arrays.fill(chars, 'x');
+        String large = new String(chars);
+        LongHashMultiMap map = new LongHashMultiMap();
+        map.put(1, "small");
+        map.put(2, large);
+        map.put(3, "small again");
+        assertThat(map.get(2).get(0).length(), is(large.length()));
+        assertThat(map.get(3), is(Arrays.asList("small again")));
+        assertThat(map.bytes() > large.length(), is(true));
+    }
+}
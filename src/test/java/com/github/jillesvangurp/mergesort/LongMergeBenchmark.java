@@ -0,0 +1,109 @@
+package com.github.jillesvangurp.mergesort;
+
+import static com.jillesvangurp.iterables.Iterables.map;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import com.jillesvangurp.iterables.PeekableIterator;
+
+/**
+ * Compares the tournament tree in {@link LongMergingEntryIterable} with the priority queue merge it replaced, for 16,
+ * 128 and 1024 runs. Not a test, run the main method with an optional total number of entries. Each configuration is
+ * run a few times to warm up before it is measured.
+ */
+public class LongMergeBenchmark {
+    private static final int[] RUNS = { 16, 128, 1024 };
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        System.out.println("runs\tmerge\tms/op\tentries/s");
+        for (int k : RUNS) {
+            List<List<String>> runs = runs(k, entries);
+            for (int i = 0; i < ITERATIONS; i++) {
+                // warm up
+                loserTree(runs);
+                priorityQueue(runs);
+            }
+            long loserTree = 0;
+            long priorityQueue = 0;
+            long checksum = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                checksum += loserTree(runs);
+                loserTree += System.nanoTime() - start;
+                start = System.nanoTime();
+                checksum -= priorityQueue(runs);
+                priorityQueue += System.nanoTime() - start;
+            }
+            if (checksum != 0) {
+                throw new IllegalStateException("merges produced different results");
+            }
+            report(k, "loser tree", loserTree, entries);
+            report(k, "priority queue", priorityQueue, entries);
+        }
+    }
+
+    private static void report(int k, String name, long nanos, int entries) {
+        double millis = nanos / 1e6 / ITERATIONS;
+        System.out.println(k + "\t" + name + "\t" + (long) millis + "\t" + (long) (entries / (millis / 1000)));
+    }
+
+    private static List<List<String>> runs(int k, int entries) {
+        Random random = new Random(42);
+        List<List<String>> runs = new ArrayList<>();
+        for (int i = 0; i < k; i++) {
+            List<String> run = new ArrayList<>();
+            long key = 0;
+            for (int j = 0; j < entries / k; j++) {
+                key += 1 + random.nextInt(1000);
+                run.add(key + ";v");
+            }
+            runs.add(run);
+        }
+        return runs;
+    }
+
+    private static long loserTree(List<List<String>> runs) {
+        long sum = 0;
+        long i = 0;
+        for (LongEntry entry : new LongMergingEntryIterable(runs)) {
+            sum += entry.getKey() * i++;
+        }
+        return sum;
+    }
+
+    /**
+     * The merge as it was done before, with a priority queue of peekable iterators.
+     */
+    private static long priorityQueue(List<List<String>> runs) {
+        PriorityQueue<PeekableIterator<LongEntry>> iterators = new PriorityQueue<>(runs.size(),
+                new Comparator<PeekableIterator<LongEntry>>() {
+                    @Override
+                    public int compare(PeekableIterator<LongEntry> o1, PeekableIterator<LongEntry> o2) {
+                        int c = Long.compare(o1.peek().getKey(), o2.peek().getKey());
+                        return c != 0 ? c : o1.peek().getValue().compareTo(o2.peek().getValue());
+                    }
+                });
+        for (List<String> run : runs) {
+            PeekableIterator<LongEntry> it = new PeekableIterator<LongEntry>(map(run, new LongEntryParsingProcessor()));
+            if (it.hasNext()) {
+                iterators.add(it);
+            }
+        }
+        long sum = 0;
+        long i = 0;
+        while (!iterators.isEmpty()) {
+            PeekableIterator<LongEntry> it = iterators.poll();
+            sum += it.next().getKey() * i++;
+            if (it.hasNext()) {
+                iterators.offer(it);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.jillesvangurp.mergesort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+@Test
+public class LongMergingEntryIterableTest {
+
+    public void shouldMergeNothing() {
+        assertThat(new LongMergingEntryIterable(new ArrayList<List<String>>()).iterator().hasNext(), is(false));
+    }
+
+    public void shouldMergeOnKeyAndThenValue() {
+        List<List<String>> runs = new ArrayList<>();
+        runs.add(Arrays.asList("-3;x", "1;b", "10;a"));
+        runs.add(new ArrayList<String>());
+        runs.add(Arrays.asList("1;a", "2;c", "10;a"));
+        List<String> merged = new ArrayList<>();
+        for (LongEntry entry : new LongMergingEntryIterable(runs)) {
+            merged.add(entry.toString());
+        }
+        assertThat(merged, is(Arrays.asList("-3;x", "1;a", "1;b", "2;c", "10;a", "10;a")));
+    }
+
+    public void shouldMergeAnyNumberOfRuns() {
+        Random random = new Random(42);
+        for (int k : new int[] { 1, 2, 3, 7, 16, 33 }) {
+            List<List<String>> runs = new ArrayList<>();
+            List<LongEntry> expected = new ArrayList<>();
+            for (int i = 0; i < k; i++) {
+                List<LongEntry> run = new ArrayList<>();
+                int length = random.nextInt(50);
+                for (int j = 0; j < length; j++) {
+                    run.add(new LongEntry(random.nextInt(100) - 50, "" + random.nextInt(3)));
+                }
+                sort(run);
+                expected.addAll(run);
+                List<String> lines = new ArrayList<>();
+                for (LongEntry entry : run) {
+                    lines.add(entry.toString());
+                }
+                runs.add(lines);
+            }
+            sort(expected);
+            List<LongEntry> merged = new ArrayList<>();
+            for (LongEntry entry : new LongMergingEntryIterable(runs)) {
+                merged.add(entry);
+            }
+            assertThat(merged, is(expected));
+        }
+    }
+
+    private static void sort(List<LongEntry> entries) {
+        Collections.sort(entries, new Comparator<LongEntry>() {
+            @Override
+            public int compare(LongEntry o1, LongEntry o2) {
+                int c = Long.compare(o1.getKey(), o2.getKey());
+                return c != 0 ? c : o1.getValue().compareTo(o2.getValue());
+            }
+        });
+    }
+}
@@ -0,0 +1,181 @@
+package com.github.jillesvangurp.mergesort;
+
+import static com.jillesvangurp.iterables.Iterables.consume;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+import com.jillesvangurp.iterables.ConcurrentProcessingIterable;
+import com.jillesvangurp.iterables.Iterables;
+import com.jillesvangurp.iterables.Processor;
+
+@Test
+public class LongSortingWriterTest {
+
+    private String tempDir;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        tempDir = Files.createTempDir().getAbsolutePath();
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.forceDelete(new File(tempDir));
+    }
+
+    public void shouldSortNumerically() throws IOException {
+        String outputFile = new File(tempDir, "out.gz").getAbsolutePath();
+        try (LongSortingWriter sortingWriter = new LongSortingWriter(tempDir + "/work", outputFile, 64)) {
+            for (long key : new long[] { 10, 9, 100, 1, 2, -5, 10 }) {
+                sortingWriter.put(key, "v" + key % 3);
+            }
+            sortingWriter.put(10, "a");
+        }
+        // three entries fill a bucket, same key and value are only kept once per bucket
+        assertThat(readItems(outputFile).get(0), is("-5;v-2"));
+        assertThat(keys(readItems(outputFile)), is(longs(-5, 1, 2, 9, 10, 10, 10, 100)));
+    }
+
+    public void shouldSortLargeBucketsOnKeyAndValue() throws IOException {
+        String outputFile = new File(tempDir, "out.gz").getAbsolutePath();
+        Random random = new Random(42);
+        TreeSet<LongEntry> expected = new TreeSet<>(new Comparator<LongEntry>() {
+            @Override
+            public int compare(LongEntry o1, LongEntry o2) {
+                int c = Long.compare(o1.getKey(), o2.getKey());
+                return c != 0 ? c : o1.getValue().compareTo(o2.getValue());
+            }
+        });
+        // a single bucket, so duplicates are all dropped
+        try (LongSortingWriter sortingWriter = new LongSortingWriter(tempDir + "/work", outputFile, 64 * 1024 * 1024)) {
+            for (int i = 0; i < 50000; i++) {
+                long key = random.nextInt(5000) * 1000000L;
+                String value = "" + random.nextInt(20);
+                sortingWriter.put(key, value);
+                expected.add(new LongEntry(key, value));
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        for (LongEntry e : expected) {
+            lines.add(e.toString());
+        }
+        assertThat(readItems(outputFile), is(lines));
+    }
+
+    public void shouldSortConcurrently() throws IOException {
+        shouldSortConcurrently(false);
+    }
+
+    public void shouldSortConcurrentlyWithPerThreadBuckets() throws IOException {
+        shouldSortConcurrently(true);
+    }
+
+    public void shouldMergeInSeveralPasses() throws IOException {
+        String outputFile = new File(tempDir, "out.gz").getAbsolutePath();
+        List<Long> expected = new ArrayList<>();
+        try (LongSortingWriter sortingWriter = new LongSortingWriter(tempDir + "/work", outputFile, 64)
+                .setMaxMergeFanIn(3)) {
+            // three entries per bucket, so 34 buckets
+            for (long key = 100; key > 0; key--) {
+                sortingWriter.put(key, "v");
+                expected.add(101 - key);
+            }
+        }
+        assertThat(keys(readItems(outputFile)), is(expected));
+    }
+
+    private void shouldSortConcurrently(boolean perThreadBuckets) throws IOException {
+        String outputFile = new File(tempDir, "out2.gz").getAbsolutePath();
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < 30000; i++) {
+            numbers.add(i);
+        }
+        Collections.shuffle(numbers, new Random(42));
+        try (final LongSortingWriter sortingWriter = new LongSortingWriter(tempDir + "/work", outputFile, 1000,
+                perThreadBuckets)) {
+            Processor<Integer, Integer> processor = new Processor<Integer, Integer>() {
+
+                @Override
+                public Integer process(Integer i) {
+                    sortingWriter.put(i, "" + i);
+                    return i;
+                }
+            };
+            try (ConcurrentProcessingIterable<Integer, Integer> processConcurrently = Iterables.processConcurrently(
+                    numbers, processor, 2, 50, 4)) {
+                consume(processConcurrently);
+            }
+        }
+        List<Long> expected = new ArrayList<>();
+        for (long i = 0; i < 30000; i++) {
+            expected.add(i);
+        }
+        assertThat(keys(readItems(outputFile)), is(expected));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldFailWhenBucketCannotBeWritten() throws IOException {
+        String outputFile = new File(tempDir, "out.gz").getAbsolutePath();
+        File work = new File(tempDir, "work");
+        try (LongSortingWriter sortingWriter = new LongSortingWriter(work.getAbsolutePath(), outputFile, 64)
+                .setMaxBucketsInFlight(1)) {
+            // the background writer cannot create bucket files in a regular file
+            FileUtils.forceDelete(work);
+            FileUtils.touch(work);
+            for (long key = 0; key < 100; key++) {
+                sortingWriter.put(key, "v");
+            }
+        }
+    }
+
+    public void shouldParseKeys() {
+        assertThat(new LongEntryParsingProcessor().process("-42;a;b"), is(new LongEntry(-42, "a;b")));
+        assertThat(LongEntryParsingProcessor.parseLong("x1234567890123x", 1, 14), is(1234567890123L));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldRejectNonNumericKeys() {
+        new LongEntryParsingProcessor().process("1a;b");
+    }
+
+    private static List<Long> longs(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static List<Long> keys(List<String> lines) {
+        List<Long> keys = new ArrayList<>();
+        for (String line : lines) {
+            keys.add(Long.valueOf(line.substring(0, line.indexOf(';'))));
+        }
+        return keys;
+    }
+
+    private static List<String> readItems(String outputFile) throws IOException {
+        List<String> read = new ArrayList<>();
+        try (LongEntryReader reader = RecordFormat.read(outputFile)) {
+            for (LongEntry entry : reader) {
+                read.add(entry.toString());
+            }
+        }
+        return read;
+    }
+}
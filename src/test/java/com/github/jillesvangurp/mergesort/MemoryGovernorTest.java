@@ -0,0 +1,70 @@
+package com.github.jillesvangurp.mergesort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+
+@Test
+public class MemoryGovernorTest {
+    private static final byte[] VALUE = new byte[1000];
+
+    public void shouldFlushBucketsWithTheirShareWhenExhausted() {
+        MemoryGovernor governor = new MemoryGovernor(1536 * 1024);
+        OffHeapBucket big = new OffHeapBucket(Long.MAX_VALUE, governor);
+        OffHeapBucket small = new OffHeapBucket(Long.MAX_VALUE, governor);
+        fill(big, 1200 * 1024);
+        assertThat(big.isFull(), is(false));
+        fill(small, 600 * 1024);
+        assertThat(governor.isExhausted(), is(true));
+        // the big bucket holds more than half of the budget, the small one less
+        assertThat(big.isFull(), is(true));
+        assertThat(small.isFull(), is(false));
+        big.clear();
+        assertThat(governor.isExhausted(), is(false));
+        big.release();
+        small.release();
+        assertThat(governor.getUsed(), is(0l));
+        assertThat(governor.fairShare(), is(governor.getBudget()));
+    }
+
+    public void shouldReleaseEverythingOnClose() throws IOException {
+        File dir = Files.createTempDir();
+        try {
+            MemoryGovernor governor = new MemoryGovernor(1024 * 1024);
+            String output = new File(dir, "out.gz").getAbsolutePath();
+            try (LongSortingWriter writer = new LongSortingWriter(new File(dir, "work").getAbsolutePath(), output,
+                    Long.MAX_VALUE, false, governor)) {
+                for (long i = 0; i < 20000; i++) {
+                    writer.put(i, "0123456789012345678901234567890123456789");
+                    assertThat(governor.getUsed(), lessThan(4L * 1024 * 1024));
+                }
+            }
+            assertThat(governor.getUsed(), is(0l));
+            assertThat(governor.fairShare(), is(governor.getBudget()));
+            long lines = 0;
+            try (LongEntryReader reader = RecordFormat.read(output)) {
+                for (@SuppressWarnings("unused")
+                LongEntry entry : reader) {
+                    lines++;
+                }
+            }
+            assertThat(lines, is(20000l));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static void fill(OffHeapBucket bucket, long bytes) {
+        for (long i = 0; i < bytes / (VALUE.length + 20); i++) {
+            bucket.add(i, VALUE);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.jillesvangurp.mergesort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.mergesort.MergePlanner.Merge;
+import com.github.jillesvangurp.mergesort.MergePlanner.Run;
+
+@Test
+public class MergePlannerTest {
+
+    public void shouldMergeAtOnceWhenFanInAllows() {
+        List<Merge> merges = MergePlanner.plan(runs(1, 2, 3), 3, "/tmp");
+        assertThat(merges.size(), is(1));
+        assertThat(merges.get(0).isFinal(), is(true));
+        assertThat(merges.get(0).output.pass, is(1));
+        assertThat(MergePlanner.rewrittenBytes(merges), is(0l));
+    }
+
+    public void shouldPlanMergeWithoutRuns() {
+        List<Merge> merges = MergePlanner.plan(new ArrayList<Run>(), 3, "/tmp");
+        assertThat(merges.size(), is(1));
+        assertThat(merges.get(0).inputs.size(), is(0));
+    }
+
+    public void shouldRewriteLeastBytes() {
+        List<Merge> merges = MergePlanner.plan(runs(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), 3, "/tmp");
+        // merging 1 and 2 first lets all later merges take three runs, always merging three would rewrite 76
+        assertThat(MergePlanner.rewrittenBytes(merges), is(58l));
+        assertThat(merges.get(0).inputs.size(), is(2));
+        Merge last = merges.get(merges.size() - 1);
+        assertThat(last.isFinal(), is(true));
+        assertThat(last.inputs.size(), is(3));
+        assertThat(last.output.bytes, is(55l));
+        assertThat(last.output.pass, is(3));
+    }
+
+    public void shouldOnlyMergeExistingRuns() {
+        List<Merge> merges = MergePlanner.plan(runs(new long[100]), 7, "/tmp");
+        Set<String> available = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            available.add("bucket-" + i);
+        }
+        for (Merge merge : merges) {
+            assertThat(merge.inputs.size(), lessThanOrEqualTo(7));
+            for (Run input : merge.inputs) {
+                assertThat(available.remove(input.file), is(true));
+            }
+            if (!merge.isFinal()) {
+                available.add(merge.output.file);
+            }
+        }
+        assertThat(available.size(), is(0));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectFanInBelowTwo() {
+        MergePlanner.plan(runs(1, 2), 1, "/tmp");
+    }
+
+    private static List<Run> runs(long... sizes) {
+        List<Run> runs = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            runs.add(new Run("bucket-" + i, sizes[i], 0));
+        }
+        return runs;
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.jillesvangurp.mergesort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringUtils;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+
+@Test
+public class OffHeapBucketTest {
+
+    public void shouldSortValuesLikeStrings() throws IOException {
+        OffHeapBucket bucket = new OffHeapBucket(1024 * 1024);
+        // a character above U+FFFF sorts before U+FFFD as a String
+        for (String value : new String[] { "\uFFFD", "b", "\uD83D\uDE00", "a", "ab", "a" }) {
+            bucket.add(1, value.getBytes(ResourceUtil.UTF8));
+        }
+        bucket.add(-1, "z".getBytes(ResourceUtil.UTF8));
+        assertThat(write(bucket), is("-1;z\n1;a\n1;ab\n1;b\n1;\uD83D\uDE00\n1;\uFFFD\n"));
+    }
+
+    public void shouldKeepValuesThatOnlyDifferInACharacterAboveFFFF() throws IOException {
+        OffHeapBucket bucket = new OffHeapBucket(1024 * 1024);
+        // lead bytes 0xF0, 0xF1 and 0xF4
+        for (String value : new String[] { "x\uDBC0\uDC00", "x\uD8C0\uDC00", "x\uD83D\uDE00" }) {
+            bucket.add(1, value.getBytes(ResourceUtil.UTF8));
+        }
+        assertThat(write(bucket), is("1;x\uD83D\uDE00\n1;x\uD8C0\uDC00\n1;x\uDBC0\uDC00\n"));
+    }
+
+    public void shouldSortInStringOrder() throws IOException {
+        // one, two, three and four byte characters
+        int[] codePoints = { 'a', 'z', 0xe4, 0x7ff, 0x800, 0xd7ff, 0xe000, 0xfffd, 0x10000, 0x1f600, 0x40000,
+                0x10ffff };
+        Random random = new Random(42);
+        TreeSet<String> expected = new TreeSet<>();
+        OffHeapBucket bucket = new OffHeapBucket(1024 * 1024);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder value = new StringBuilder();
+            int length = 1 + random.nextInt(3);
+            for (int j = 0; j < length; j++) {
+                value.appendCodePoint(codePoints[random.nextInt(codePoints.length)]);
+            }
+            expected.add(value.toString());
+            bucket.add(7, value.toString().getBytes(ResourceUtil.UTF8));
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String value : expected) {
+            lines.append("7;").append(value).append('\n');
+        }
+        assertThat(write(bucket), is(lines.toString()));
+    }
+
+    public void shouldReuseBucketAfterClear() throws IOException {
+        OffHeapBucket bucket = new OffHeapBucket(100);
+        while (!bucket.isFull()) {
+            bucket.add(bucket.size(), "x".getBytes(ResourceUtil.UTF8));
+        }
+        bucket.clear();
+        assertThat(bucket.size(), is(0));
+        assertThat(bucket.isFull(), is(false));
+        bucket.add(42, "y".getBytes(ResourceUtil.UTF8));
+        assertThat(write(bucket), is("42;y\n"));
+    }
+
+    public void shouldStoreRecordsLargerThanAChunk() throws IOException {
+        OffHeapBucket bucket = new OffHeapBucket(100);
+        String large = StringUtils.repeat("large", 10000);
+        bucket.add(2, "small".getBytes(ResourceUtil.UTF8));
+        bucket.add(1, large.getBytes(ResourceUtil.UTF8));
+        assertThat(bucket.isFull(), is(true));
+        assertThat(write(bucket), is("1;" + large + "\n2;small\n"));
+        bucket.clear();
+        bucket.add(Long.MIN_VALUE, "min".getBytes(ResourceUtil.UTF8));
+        assertThat(write(bucket), is(Long.MIN_VALUE + ";min\n"));
+    }
+
+    private static String write(OffHeapBucket bucket) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (LongEntryWriter writer = RecordFormat.TEXT.writer(out)) {
+            bucket.writeSorted(writer);
+        }
+        return new String(out.toByteArray(), ResourceUtil.UTF8);
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.jillesvangurp.mergesort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.Codec;
+import com.google.common.io.Files;
+
+@Test
+public class RecordFormatTest {
+    private static final List<LongEntry> ENTRIES = Arrays.asList(new LongEntry(Long.MIN_VALUE, "min"), new LongEntry(
+            -1, ""), new LongEntry(0, "zero"), new LongEntry(300, "caf\u00e9"), new LongEntry(Long.MAX_VALUE, "max"));
+
+    private File tempDir;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        tempDir = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    public void shouldRoundTripBothFormatsWithAnyCodec() throws IOException {
+        for (RecordFormat format : RecordFormat.values()) {
+            for (Codec codec : new Codec[] { Codec.NONE, Codec.FAST }) {
+                String file = new File(tempDir, format + "-" + codec).getPath();
+                try (LongEntryWriter out = format.writer(file, codec)) {
+                    for (LongEntry entry : ENTRIES) {
+                        out.write(entry);
+                    }
+                }
+                try (LongEntryReader reader = RecordFormat.read(file)) {
+                    assertThat(reader.isBinary(), is(format == RecordFormat.BINARY));
+                    assertThat(format + " " + codec, read(reader), is(ENTRIES.toString()));
+                }
+            }
+        }
+    }
+
+    public void shouldKeepNewLinesInBinaryValues() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (LongEntryWriter out = RecordFormat.BINARY.writer(bytes)) {
+            out.write(1, "a\nb");
+            out.write(2, "c;d");
+        }
+        try (LongEntryReader reader = RecordFormat.read(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertThat(read(reader), is("[1;a\nb, 2;c;d]"));
+        }
+    }
+
+    public void shouldReadEmptyFiles() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordFormat.BINARY.writer(bytes).close();
+        try (LongEntryReader reader = RecordFormat.read(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertThat(read(reader), is("[]"));
+        }
+        try (LongEntryReader reader = RecordFormat.read(new ByteArrayInputStream(new byte[0]))) {
+            assertThat(reader.isBinary(), is(false));
+            assertThat(read(reader), is("[]"));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldFailOnTruncatedRecords() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (LongEntryWriter out = RecordFormat.BINARY.writer(bytes)) {
+            out.write(1, "value");
+        }
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 2);
+        try (LongEntryReader reader = RecordFormat.read(new ByteArrayInputStream(truncated))) {
+            read(reader);
+        }
+    }
+
+    private static String read(LongEntryReader reader) {
+        List<LongEntry> entries = new ArrayList<>();
+        for (LongEntry entry : reader) {
+            entries.add(entry);
+        }
+        return entries.toString();
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.jillesvangurp.mergesort;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.io.Files;
+
+/**
+ * Measures put throughput of the sorting writers when many threads fill the same writer, like the split step does.
+ * Not a test, run the main method with an optional number of entries per run.
+ */
+public class SortingWriterContentionBenchmark {
+    private static final int[] THREADS = { 1, 4, 8, 16 };
+
+    interface Writer extends Closeable {
+        void put(long key, String value);
+    }
+
+    interface WriterFactory {
+        Writer create(String tempDir, String output) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        final long bucketBytes = 64L * 1024 * 1024;
+        final int bucketSize = 500000;
+
+        WriterFactory sortingWriter = new WriterFactory() {
+            @Override
+            public Writer create(String tempDir, String output) throws IOException {
+                final SortingWriter writer = new SortingWriter(tempDir, output, bucketSize);
+                return new Writer() {
+                    @Override
+                    public void put(long key, String value) {
+                        writer.put(Long.toString(key), value);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        writer.close();
+                    }
+                };
+            }
+        };
+        WriterFactory sharedBucket = longSortingWriter(bucketBytes, false);
+        WriterFactory perThreadBuckets = longSortingWriter(bucketBytes, true);
+
+        System.out.println("threads\twriter\tput ms\tclose ms\tputs/s");
+        for (int threads : THREADS) {
+            run("SortingWriter", sortingWriter, threads, entries);
+            run("LongSortingWriter shared", sharedBucket, threads, entries);
+            run("LongSortingWriter per thread", perThreadBuckets, threads, entries);
+        }
+    }
+
+    private static WriterFactory longSortingWriter(final long bucketBytes, final boolean perThread) {
+        return new WriterFactory() {
+            @Override
+            public Writer create(String tempDir, String output) throws IOException {
+                final LongSortingWriter writer = new LongSortingWriter(tempDir, output, bucketBytes, perThread);
+                return new Writer() {
+                    @Override
+                    public void put(long key, String value) {
+                        writer.put(key, value);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        writer.close();
+                    }
+                };
+            }
+        };
+    }
+
+    private static void run(String name, WriterFactory factory, int threads, final int entries) throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            final Writer writer = factory.create(new File(dir, "work").getAbsolutePath(),
+                    new File(dir, "out.gz").getAbsolutePath());
+            List<Thread> producers = new ArrayList<>();
+            final int perThread = entries / threads;
+            for (int t = 0; t < threads; t++) {
+                final long seed = t;
+                producers.add(new Thread() {
+                    @Override
+                    public void run() {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < perThread; i++) {
+                            long key = random.nextInt(Integer.MAX_VALUE);
+                            writer.put(key, "{\"id\":" + key + ",\"l\":[52.5,13.4]}");
+                        }
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread producer : producers) {
+                producer.start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            long put = System.nanoTime() - start;
+            writer.close();
+            long close = System.nanoTime() - start - put;
+            System.out.println(threads + "\t" + name + "\t" + put / 1000000 + "\t" + close / 1000000 + "\t"
+                    + (long) (perThread * threads / (put / 1e9)));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
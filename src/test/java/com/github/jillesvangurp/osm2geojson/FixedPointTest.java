@@ -0,0 +1,51 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@Test
+public class FixedPointTest {
+
+    @DataProvider
+    public Object[][] coordinates() {
+        return new Object[][] {
+                { "51.5121071", 515121071l, "51.5121071" },
+                { "-0.1130375", -1130375l, "-0.1130375" },
+                { "0.0000001", 1l, "0.0000001" },
+                { "-0.0000001", -1l, "-0.0000001" },
+                { "1.6", 16000000l, "1.6" },
+                { "-180", -1800000000l, "-180" },
+                { "0", 0l, "0" },
+                { "13.38885999", 133888600l, "13.38886" },
+                { "0.99999999", 10000000l, "1" } };
+    }
+
+    @Test(dataProvider = "coordinates")
+    public void shouldParseAndFormat(String input, long fixedPoint, String formatted) {
+        assertThat(FixedPoint.parse(input), is(fixedPoint));
+        assertThat(FixedPoint.format(fixedPoint), is(formatted));
+    }
+
+    @DataProvider
+    public Object[][] malformed() {
+        return new Object[][] { { "" }, { "-" }, { "1." }, { ".5" }, { "1.5e3" }, { "abc" } };
+    }
+
+    @Test(dataProvider = "malformed")
+    public void shouldRejectMalformedNumbers(String input) {
+        try {
+            FixedPoint.parse(input);
+            throw new AssertionError("should not parse " + input);
+        } catch (NumberFormatException e) {
+            // expected
+        }
+    }
+
+    public void shouldConvertNanoDegrees() {
+        assertThat(FixedPoint.fromNanoDegrees(5251703650l), is(52517037l));
+        assertThat(FixedPoint.fromNanoDegrees(-5251703640l), is(-52517036l));
+    }
+}
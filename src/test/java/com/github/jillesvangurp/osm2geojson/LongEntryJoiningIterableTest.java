@@ -0,0 +1,157 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static com.jillesvangurp.iterables.Iterables.count;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.Codec;
+import com.github.jillesvangurp.mergesort.LongEntry;
+import com.github.jillesvangurp.mergesort.LongEntryWriter;
+import com.github.jillesvangurp.mergesort.LongHashMultiMap;
+import com.github.jillesvangurp.mergesort.RecordFormat;
+import com.github.jillesvangurp.osm2geojson.LongEntryJoiningIterable.HashJoiningIterable;
+import com.github.jillesvangurp.osm2geojson.LongEntryJoiningIterable.JoinedEntries;
+import com.google.common.io.Files;
+import com.jillesvangurp.iterables.Processor;
+
+@Test
+public class LongEntryJoiningIterableTest {
+
+    // numeric order, as written by LongSortingWriter
+    List<String> left = Arrays.asList(
+            "2;two",
+            "9;nine",
+            "9;negen",
+            "10;ten",
+            "11;eleven",
+            "100;hundred");
+
+    List<String> right = Arrays.asList(
+            "1;1",
+            "9;99",
+            "10;1010",
+            "10;10",
+            "100;100",
+            "1000;1000");
+
+    private LongEntryJoiningIterable it;
+    private File tempDir;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        it = new LongEntryJoiningIterable(left, right);
+        tempDir = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    public void shouldJoinTwoSortedMultiMapsAndProduceRightNumberOfEntries() {
+        assertThat(count(it), is(3l));
+    }
+
+    public void shouldProduceCorrectJoinedElements() {
+        Iterator<JoinedEntries> iterator = it.iterator();
+        JoinedEntries next = iterator.next();
+        assertThat(next.left.get(0).getKey(), is(9l));
+        assertThat(next.left.size(), is(2));
+        assertThat(next.right.size(), is(1));
+        next = iterator.next();
+        assertThat(next.left.get(0).getKey(), is(10l));
+        assertThat(next.left.size(), is(1));
+        assertThat(next.right.size(), is(2));
+        next = iterator.next();
+        assertThat(next.left.get(0).getKey(), is(100l));
+        assertThat(next.right.get(0).getValue(), is("100"));
+        assertThat(iterator.hasNext(), is(false));
+    }
+
+    public void shouldHashJoinLikeMergeJoin() {
+        LongHashMultiMap build = new LongHashMultiMap();
+        for (LongEntry entry : entries(left)) {
+            build.put(entry.getKey(), entry.getValue());
+        }
+        List<String> joined = new ArrayList<>();
+        for (JoinedEntries entries : new HashJoiningIterable(build, entries(right), true)) {
+            joined.add(entries.toString());
+        }
+        List<String> merged = new ArrayList<>();
+        for (JoinedEntries entries : it) {
+            merged.add(entries.toString());
+        }
+        assertThat(joined, is(merged));
+    }
+
+    public void shouldHashJoinFilesOnEitherSideAndInPartitions() throws IOException {
+        String leftFile = write("left.gz", 0, 3, 20000);
+        String rightFile = write("right.gz", 1, 7, 2000);
+        List<String> expected = joinedKeys(leftFile, rightFile, false, -1);
+        assertThat(expected.size(), is(666));
+        assertThat(joinedKeys(leftFile, rightFile, true, Long.MAX_VALUE), is(expected));
+        assertThat(joinedKeys(leftFile, rightFile, false, Long.MAX_VALUE), is(expected));
+        // too small for the build side, so it is partitioned
+        assertThat(joinedKeys(leftFile, rightFile, false, 10000), is(expected));
+        assertThat(new File(tempDir, "partitions").list().length, is(0));
+    }
+
+    private static List<LongEntry> entries(List<String> lines) {
+        List<LongEntry> entries = new ArrayList<>();
+        for (String line : lines) {
+            int split = line.indexOf(';');
+            entries.add(new LongEntry(Long.parseLong(line.substring(0, split)), line.substring(split + 1)));
+        }
+        return entries;
+    }
+
+    private String write(String name, long first, long step, int count) throws IOException {
+        String file = new File(tempDir, name).getPath();
+        try (LongEntryWriter out = RecordFormat.BINARY.writer(file, Codec.FAST)) {
+            for (int i = 0; i < count; i++) {
+                long key = first + i * step;
+                out.write(key, name + key);
+                if (key % 2 == 0) {
+                    out.write(key, name + key + "again");
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @param memoryBytes memory for a hash join, -1 to merge
+     * @return the joined entries as key=number of left entries:number of right entries, sorted
+     */
+    private List<String> joinedKeys(String leftFile, String rightFile, boolean buildLeft, long memoryBytes) {
+        final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+        Processor<JoinedEntries, Boolean> processor = new Processor<JoinedEntries, Boolean>() {
+            @Override
+            public Boolean process(JoinedEntries joined) {
+                keys.add(joined.left.get(0).getKey() + "=" + joined.left.size() + ":" + joined.right.size());
+                return true;
+            }
+        };
+        if (memoryBytes < 0) {
+            LongEntryJoiningIterable.join(leftFile, rightFile, processor, 100, 2, 1000);
+        } else {
+            LongEntryJoiningIterable.hashJoin(leftFile, rightFile, buildLeft, memoryBytes, new File(tempDir,
+                    "partitions").getPath(), processor, 100, 2, 1000);
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+}
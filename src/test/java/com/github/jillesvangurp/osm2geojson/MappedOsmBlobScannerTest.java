@@ -0,0 +1,82 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.google.common.io.Files;
+import com.jillesvangurp.iterables.LineIterable;
+import com.jillesvangurp.iterables.Processor;
+
+@Test
+public class MappedOsmBlobScannerTest {
+    private File tempDir;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        tempDir = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    public void shouldFindSameBlobsAsOsmBlobIterable() throws IOException {
+        File osm = new File(tempDir, "test.osm");
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+        for (int i = 0; i < 500; i++) {
+            xml.append(" <node id=\"").append(i).append("\" lat=\"52.1\" lon=\"13.").append(i).append("\"/>\n");
+            xml.append(" <node id=\"").append(i + 1000).append("\" lat=\"52.1\" lon=\"13.1\">\n");
+            xml.append("  <tag k=\"name\" v=\"a &gt; b ").append(i).append("\"/>\n");
+            xml.append(" </node>\n");
+        }
+        for (int i = 0; i < 100; i++) {
+            xml.append(" <way id=\"").append(i).append("\">\n  <nd ref=\"1\"/>\n  <nd ref=\"2\"/>\n");
+            xml.append("  <tag k=\"highway\" v=\"residential\"/>\n </way>\n");
+        }
+        xml.append(" <relation id=\"1\">\n  <member type=\"way\" ref=\"1\" role=\"outer\"/>\n </relation>\n");
+        xml.append("</osm>\n");
+        try (BufferedWriter writer = ResourceUtil.fileWriter(osm)) {
+            writer.write(xml.toString());
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (String blob : new OsmBlobIterable(new LineIterable(new StringReader(xml.toString())))) {
+            expected.add(normalize(blob));
+        }
+        final List<String> scanned = new CopyOnWriteArrayList<>();
+        long count = new MappedOsmBlobScanner(osm.getAbsolutePath()).scan(new Processor<String, Boolean>() {
+            @Override
+            public Boolean process(String blob) {
+                scanned.add(normalize(blob));
+                return true;
+            }
+        }, 7);
+
+        assertThat(count, is(1101l));
+        List<String> actual = new ArrayList<>(scanned);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertThat(actual, is(expected));
+    }
+
+    private static String normalize(String blob) {
+        return blob.replaceAll(">\\s+<", "><").trim();
+    }
+}
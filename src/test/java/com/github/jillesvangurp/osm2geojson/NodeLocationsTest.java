@@ -0,0 +1,160 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+
+@Test
+public class NodeLocationsTest {
+    private File tempDir;
+    private File file;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        tempDir = Files.createTempDir();
+        file = new File(tempDir, "locations.bin");
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    public void shouldPackLocations() {
+        long location = NodeLocations.location(-1800000000, 900000000);
+        assertThat(NodeLocations.longitude(location), is(-1800000000L));
+        assertThat(NodeLocations.latitude(location), is(900000000L));
+        location = NodeLocations.location(1800000000, -900000000);
+        assertThat(NodeLocations.longitude(location), is(1800000000L));
+        assertThat(NodeLocations.latitude(location), is(-900000000L));
+    }
+
+    public void shouldLookUpSparseLocations() throws IOException {
+        try (NodeLocations locations = new NodeLocations(file)) {
+            locations.put(42, 1, 2);
+            locations.put(7, 3, 4);
+            locations.put(-5, 5, 6);
+            locations.put(Long.MAX_VALUE, 0, 0);
+            locations.seal();
+            assertThat(locations.isDense(), is(false));
+            assertThat(locations.size(), is(4L));
+            assertThat(locations.get(7), is(NodeLocations.location(3, 4)));
+            assertThat(locations.get(42), is(NodeLocations.location(1, 2)));
+            assertThat(locations.get(-5), is(NodeLocations.location(5, 6)));
+            assertThat(locations.get(Long.MAX_VALUE), is(NodeLocations.location(0, 0)));
+            assertThat(locations.get(8), is(NodeLocations.MISSING));
+            assertThat(file.exists(), is(false));
+        }
+    }
+
+    public void shouldSwitchToDenseStore() throws IOException {
+        try (NodeLocations locations = new NodeLocations(file, 16 * 100)) {
+            locations.put(-1, -10, -20);
+            for (int id = 1000; id > 0; id -= 2) {
+                locations.put(id, id, -id);
+            }
+            // zero coordinates must not read as missing
+            locations.put(1001, 0, 0);
+            locations.put(1L << 28, 7, 8);
+            locations.seal();
+            assertThat(locations.isDense(), is(true));
+            assertThat(file.exists(), is(true));
+            for (int id = 1000; id > 0; id -= 2) {
+                assertThat(locations.get(id), is(NodeLocations.location(id, -id)));
+                assertThat(locations.get(id - 1), is(NodeLocations.MISSING));
+            }
+            assertThat(locations.get(1001), is(NodeLocations.location(0, 0)));
+            assertThat(locations.get(1L << 28), is(NodeLocations.location(7, 8)));
+            assertThat(locations.get(-1), is(NodeLocations.location(-10, -20)));
+            assertThat(locations.get(1L << 40), is(NodeLocations.MISSING));
+        }
+        assertThat(file.exists(), is(false));
+    }
+
+    public void shouldSwitchToDenseStoreForScatteredIds() throws IOException {
+        try (NodeLocations locations = new NodeLocations(file, 16 * 10)) {
+            for (int i = 0; i < 100; i++) {
+                locations.put(i * 100000L, i, i);
+            }
+            locations.put(-3, 1, 2);
+            locations.seal();
+            // a country extract uses few of the ids, the budget decides
+            assertThat(locations.isDense(), is(true));
+            for (int i = 0; i < 100; i++) {
+                assertThat(locations.get(i * 100000L), is(NodeLocations.location(i, i)));
+            }
+            assertThat(locations.get(-3), is(NodeLocations.location(1, 2)));
+            assertThat(locations.get(1), is(NodeLocations.MISSING));
+        }
+    }
+
+    public void shouldStaySparseWithinTheBudget() throws IOException {
+        try (NodeLocations locations = new NodeLocations(file, 16 * 100)) {
+            // grows from 33 to 66 entries, which is 99 entries while copying
+            for (int i = 0; i < 64; i++) {
+                locations.put(i * 100000L, i, i);
+            }
+            locations.seal();
+            assertThat(locations.isDense(), is(false));
+            assertThat(locations.get(6300000), is(NodeLocations.location(63, 63)));
+        }
+    }
+
+    public void shouldAcceptConcurrentPuts() throws Exception {
+        final int threads = 4;
+        final int perThread = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (final NodeLocations locations = new NodeLocations(file, 16 * 1000)) {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < perThread; i++) {
+                            long id = (long) i * threads + offset;
+                            locations.put(id, i, offset);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            locations.seal();
+            assertThat(locations.size(), is((long) threads * perThread));
+            assertThat(locations.isDense(), is(true));
+            for (int i = 0; i < perThread; i++) {
+                for (int t = 0; t < threads; t++) {
+                    assertThat(locations.get((long) i * threads + t), is(NodeLocations.location(i, t)));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldNotReadBeforeSeal() throws IOException {
+        try (NodeLocations locations = new NodeLocations(file)) {
+            locations.put(1, 1, 1);
+            locations.get(1);
+        }
+    }
+}
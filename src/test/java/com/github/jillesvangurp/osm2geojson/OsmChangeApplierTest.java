@@ -0,0 +1,121 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.mergesort.LongEntry;
+import com.github.jillesvangurp.mergesort.LongEntryReader;
+import com.github.jillesvangurp.mergesort.RecordFormat;
+import com.github.jsonj.tools.JsonParser;
+import com.google.common.io.Files;
+import com.jillesvangurp.iterables.LineIterable;
+
+@Test
+public class OsmChangeApplierTest {
+    private final JsonParser parser = new JsonParser();
+    private File tempDir;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        tempDir = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    public void shouldProduceSameOutputAsFullRun() throws IOException {
+        File updated = run("updated", "incremental-updated.osm", new OsmFilter());
+        File patched = run("patched", "incremental-base.osm", new OsmFilter());
+        List<String> before = entries(new File(patched, OsmJoin.WAY_ID_COMPLETE_JSON));
+        new OsmChangeApplier(patched.getPath(), parser).apply(copy("incremental-change.osc").getPath());
+        assertThat(entries(new File(patched, OsmJoin.WAY_ID_COMPLETE_JSON)), not(before));
+        for (String file : new String[] { "osm-pois.gz", "osm-ways.gz", "osm-relations.gz" }) {
+            assertThat(file, lines(new File(updated, file), false).size() > 0, is(true));
+        }
+        assertSameOutput(updated, patched);
+    }
+
+    public void shouldApplyTheFilterOfTheJoin() throws IOException {
+        OsmFilter filter = OsmFilter.parse("types=poi,way;tags=amenity");
+        File updated = run("updated", "incremental-updated.osm", filter);
+        File patched = run("patched", "incremental-base.osm", filter);
+        new OsmChangeApplier(patched.getPath(), parser).apply(copy("incremental-change.osc").getPath());
+        // the new bakery and the street it is on are not part of the filtered output
+        for (String entry : entries(new File(patched, OsmJoin.NODE_ID_NODEJSON_MAP))) {
+            assertThat(entry, entry.contains("Bakery"), is(false));
+        }
+        assertThat(lines(new File(patched, "osm-pois.gz"), false).toString().contains("Pub"), is(true));
+        assertSameOutput(updated, patched);
+    }
+
+    private void assertSameOutput(File updated, File patched) throws IOException {
+        for (String file : new String[] { OsmJoin.NODE_ID_NODEJSON_MAP, OsmJoin.WAY_ID_WAYJSON_MAP,
+                OsmJoin.REL_ID_RELJSON_MAP, OsmJoin.NODE_ID_WAY_ID_MAP, OsmJoin.NODE_ID_REL_ID_MAP,
+                OsmJoin.WAY_ID_REL_ID_MAP, OsmJoin.WAY_ID_COMPLETE_JSON, OsmJoin.REL_ID_COMPLETE_JSON }) {
+            assertThat(file, entries(new File(patched, file)), is(entries(new File(updated, file))));
+        }
+        for (String file : new String[] { "osm-pois.gz", "osm-ways.gz", "osm-relations.gz" }) {
+            assertThat(file, lines(new File(patched, file), true), is(lines(new File(updated, file), true)));
+        }
+    }
+
+    private File run(String name, String osmFile, OsmFilter filter) {
+        File dir = new File(tempDir, name);
+        OsmJoin join = new OsmJoin(new File(tempDir, name + "-buckets").getPath(), parser).setFilter(filter);
+        join.setOutputDirectory(dir.getPath());
+        join.processAll(copy(osmFile).getPath());
+        OsmPostProcessor postProcessor = new OsmPostProcessor(parser).setDirectory(dir.getPath()).setFilter(filter);
+        postProcessor.processNodes();
+        postProcessor.processWays();
+        postProcessor.processRelations();
+        return dir;
+    }
+
+    private File copy(String resource) {
+        File file = new File(tempDir, resource);
+        try {
+            FileUtils.copyInputStreamToFile(getClass().getResourceAsStream(resource), file);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return file;
+    }
+
+    private static List<String> entries(File file) throws IOException {
+        List<String> entries = new ArrayList<>();
+        try (LongEntryReader reader = RecordFormat.read(file.getPath())) {
+            for (LongEntry entry : reader) {
+                entries.add(entry.toString());
+            }
+        }
+        return entries;
+    }
+
+    private static List<String> lines(File file, boolean sort) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (LineIterable it = LineIterable.openGzipFile(file.getPath())) {
+            for (String line : it) {
+                lines.add(line);
+            }
+        }
+        if (sort) {
+            // the post processor output order depends on the concurrent processing
+            Collections.sort(lines);
+        }
+        return lines;
+    }
+}
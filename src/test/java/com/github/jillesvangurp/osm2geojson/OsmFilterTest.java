@@ -0,0 +1,147 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.mergesort.LongEntry;
+import com.github.jillesvangurp.mergesort.LongEntryReader;
+import com.github.jillesvangurp.mergesort.RecordFormat;
+import com.github.jillesvangurp.osm2geojson.OsmPostProcessor.OsmType;
+import com.github.jsonj.tools.JsonParser;
+import com.google.common.io.Files;
+import com.jillesvangurp.iterables.LineIterable;
+
+@Test
+public class OsmFilterTest {
+    private File tempDir;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        tempDir = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    public void shouldMatchRequiredTags() {
+        OsmFilter filter = new OsmFilter().requireTag("name").requireTag("amenity", "cafe");
+        assertThat(filter.acceptsTags("\"name\":\"Eins\",\"amenity\":\"cafe\""), is(true));
+        assertThat(filter.acceptsTags("\"amenity\":\"cafe\",\"name\":\"Eins\""), is(true));
+        assertThat(filter.acceptsTags("\"name\":\"Eins\",\"amenity\":\"cafeteria\""), is(false));
+        assertThat(filter.acceptsTags("\"name:en\":\"One\",\"amenity\":\"cafe\""), is(false));
+        // tag like text inside a value is not a tag
+        assertThat(filter.acceptsTags("\"note\":\"\\\"name\\\":x,\\\"amenity\\\":\\\"cafe\\\"\""), is(false));
+        assertThat(filter.acceptsTags(""), is(false));
+        assertThat(new OsmFilter().acceptsTags(""), is(true));
+    }
+
+    public void shouldMatchEscapedTags() {
+        OsmFilter filter = new OsmFilter().requireTag("name", "\"A\" & B");
+        assertThat(filter.acceptsTags("\"name\":\"\\\"A\\\" & B\""), is(true));
+    }
+
+    public void shouldFilterLocations() {
+        OsmFilter bbox = OsmFilter.parse("bbox=13.0,52.0,14.0,53.0");
+        assertThat(bbox.acceptsLocation(FixedPoint.parse("13.5"), FixedPoint.parse("52.5")), is(true));
+        assertThat(bbox.acceptsLocation(FixedPoint.parse("13.0"), FixedPoint.parse("52.0")), is(true));
+        assertThat(bbox.acceptsLocation(FixedPoint.parse("12.9999999"), FixedPoint.parse("52.5")), is(false));
+
+        OsmFilter triangle = new OsmFilter().polygon(0, 0, 10, 0, 0, 10);
+        assertThat(triangle.acceptsLocation(FixedPoint.parse("1"), FixedPoint.parse("1")), is(true));
+        assertThat(triangle.acceptsLocation(FixedPoint.parse("6"), FixedPoint.parse("6")), is(false));
+        assertThat(triangle.acceptsLocation(FixedPoint.parse("-1"), FixedPoint.parse("1")), is(false));
+    }
+
+    public void shouldFormatAsSpec() {
+        String spec = "types=poi,way;tags=name,amenity=cafe;bbox=13,52.3,13.8,52.7";
+        assertThat(OsmFilter.parse(spec).toString(), is(spec));
+        assertThat(new OsmFilter().toString(), is("types=poi,way,relation"));
+        String polygon = "types=relation;polygon=0,0,1,0,0.5,1";
+        assertThat(OsmFilter.parse(polygon).toString(), is(polygon));
+    }
+
+    public void shouldExtractTags() {
+        assertThat(OsmFilter.tagsFragment("{\"id\":1,\"l\":[1,2]}"), is(""));
+        assertThat(OsmFilter.tagsFragment("{\"id\":1,\"tags\":{\"a\":\"}\\\"\"},\"ns\":[1]}"), is("\"a\":\"}\\\"\""));
+    }
+
+    @DataProvider
+    public Object[][] filters() {
+        return new Object[][] {
+                { "types=way;tags=highway", ids(), ids("101", "102"), ids("4", "6", "7"), ids() },
+                { "types=relation;tags=boundary", ids(), ids("100", "102"), ids("1", "2", "3", "4", "6", "7", "10"),
+                        ids("1000", "1002") },
+                { "types=poi;tags=name;bbox=12.9,51.9,13.15,52.25", ids("1", "5", "10"), ids(), ids("1", "5", "10"),
+                        ids() },
+                // ways and relations that cross the edge of the area keep their nodes outside it
+                { "types=way;bbox=13.25,52.25,13.35,52.35", ids(), ids("101", "102"), ids("4", "6", "7"), ids() },
+                { "types=relation;tags=boundary;bbox=13.25,52.25,13.35,52.35", ids(), ids("102"), ids("6", "7"),
+                        ids("1002") },
+                { "types=poi,way;tags=name;bbox=13.15,52.05,13.25,52.15", ids(), ids("100"),
+                        ids("1", "2", "3", "4"), ids() },
+                { "", ids("1", "5", "9", "10"), ids("100", "101", "102", "103"),
+                        ids("1", "2", "3", "4", "5", "6", "7", "9", "10"), ids("1000", "1001", "1002") } };
+    }
+
+    @Test(dataProvider = "filters")
+    public void shouldOnlyJoinWhatIsNeeded(String spec, List<String> pois, List<String> ways, List<String> nodes,
+            List<String> relations) throws IOException {
+        File osm = new File(tempDir, "test.osm");
+        FileUtils.copyInputStreamToFile(getClass().getResourceAsStream("incremental-base.osm"), osm);
+        JsonParser parser = new JsonParser();
+        OsmFilter filter = OsmFilter.parse(spec);
+        OsmJoin join = new OsmJoin(new File(tempDir, "buckets").getPath(), parser).setOutputDirectory(
+                tempDir.getPath()).setFilter(filter);
+        join.processAll(osm.getPath());
+        OsmPostProcessor postProcessor = new OsmPostProcessor(parser).setDirectory(tempDir.getPath()).setFilter(
+                filter);
+        postProcessor.processNodes();
+
+        assertThat(keys(join.file(OsmJoin.NODE_ID_NODEJSON_MAP)), is(nodes));
+        assertThat(keys(join.file(OsmJoin.WAY_ID_COMPLETE_JSON)), is(ways));
+        assertThat(keys(join.file(OsmJoin.REL_ID_COMPLETE_JSON)), is(relations));
+        List<String> poiIds = new ArrayList<>();
+        for (String line : lines(postProcessor.outputFile(OsmType.POI))) {
+            poiIds.add(parser.parse(line).asObject().getString("id").substring("osmnode/".length()));
+        }
+        assertThat(poiIds, is(pois));
+    }
+
+    private static List<String> ids(String... ids) {
+        return Arrays.asList(ids);
+    }
+
+    private static List<String> keys(String file) throws IOException {
+        List<String> keys = new ArrayList<>();
+        try (LongEntryReader entries = RecordFormat.read(file)) {
+            for (LongEntry entry : entries) {
+                keys.add(Long.toString(entry.getKey()));
+            }
+        }
+        return keys;
+    }
+
+    private static List<String> lines(String file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (LineIterable it = LineIterable.openGzipFile(file)) {
+            for (String line : it) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
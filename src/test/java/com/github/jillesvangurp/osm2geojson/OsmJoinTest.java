@@ -1,16 +1,15 @@
 package com.github.jillesvangurp.osm2geojson;
 
 import com.github.jillesvangurp.common.ResourceUtil;
-import com.github.jillesvangurp.mergesort.SortingWriter;
+import com.github.jillesvangurp.mergesort.LongSortingWriter;
+import com.github.jsonj.JsonArray;
 import com.github.jsonj.tools.JsonParser;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import static org.testng.Assert.assertTrue;
-
-import java.util.regex.Matcher;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 import org.testng.annotations.DataProvider;
@@ -29,13 +28,19 @@ public class OsmJoinTest {
     }
 
     @Test(dataProvider="sampleNodes")
-    public void shouldFindCoordinate(String nodexml, double latitude, double longitude) {
-        Matcher latMatcher = OsmJoin.latPattern.matcher(nodexml);
-        assertTrue(latMatcher.find());
-        assertThat(latMatcher.group(1), is(""+latitude));
-        Matcher lonMatcher = OsmJoin.lonPattern.matcher(nodexml);
-        assertTrue(lonMatcher.find());
-        assertThat(lonMatcher.group(1), is(""+longitude));
+    public void shouldFindCoordinate(String nodexml, double latitude, double longitude) throws IOException {
+        OsmJoin join = new OsmJoin(null, new JsonParser());
+        final Map<String, String> nodeMap = new HashMap<>();
+        LongSortingWriter nodeWriter = new LongSortingWriter(null, null, 0) {
+            @Override public void put(long key, String value) {
+                nodeMap.put("" + key, value);
+            }
+        };
+        join.parseNode(nodeWriter, new BufferedWriter(new StringWriter()), nodexml);
+        JsonArray l = new JsonParser().parse(nodeMap.get("25737250")).asObject().getArray("l");
+        // coordinates are stored as fixed point
+        assertThat(new FixedPoint(l.get(0).asLong()).doubleValue(), is(longitude));
+        assertThat(new FixedPoint(l.get(1).asLong()).doubleValue(), is(latitude));
     }
     
     @Test 
@@ -46,19 +51,19 @@ public class OsmJoinTest {
         final Map<String, String> nodeId2wayMap = new HashMap<>();
         final Map<String, String> wayId2relMap = new HashMap<>();
                 
-        SortingWriter relationsWriter = new SortingWriter(null, null, 0) {
-            @Override public void put(String key, String value) {
-                relMap.put(key, value);
+        LongSortingWriter relationsWriter = new LongSortingWriter(null, null, 0) {
+            @Override public void put(long key, String value) {
+                relMap.put("" + key, value);
             }
         };
-        SortingWriter nodeId2wayWriter = new SortingWriter(null, null, 0) {
-            @Override public void put(String key, String value) {
-                nodeId2wayMap.put(key, value);
+        LongSortingWriter nodeId2wayWriter = new LongSortingWriter(null, null, 0) {
+            @Override public void put(long key, String value) {
+                nodeId2wayMap.put("" + key, value);
             }
         };
-        SortingWriter wayId2RelWriter = new SortingWriter(null, null, 0) {
-            @Override public void put(String key, String value) {
-                wayId2relMap.put(key, value);
+        LongSortingWriter wayId2RelWriter = new LongSortingWriter(null, null, 0) {
+            @Override public void put(long key, String value) {
+                wayId2relMap.put("" + key, value);
             }
         };
         String input = ResourceUtil.string(getClass().getResourceAsStream("relation1.xml"));
@@ -67,4 +72,17 @@ public class OsmJoinTest {
         assertThat(relMap.size(), equalTo(1));
         assertThat(wayId2relMap.size(), equalTo(4));
     }
+
+    public void shouldOnlyKeepLocationOfWayNodes() {
+        assertThat(OsmJoin.location("{\"id\":1,\"l\":[2,3],\"tags\":{\"name\":\"a]\"}}"),
+                is("{\"id\":1,\"l\":[2,3]}"));
+        assertThat(OsmJoin.location("{\"id\":1,\"l\":[2,3]}"), is("{\"id\":1,\"l\":[2,3]}"));
+
+        OsmJoin join = new OsmJoin(null, new JsonParser());
+        String way = join.completeWay("{\"id\":7,\"ns\":[1,4]}",
+                Arrays.asList("{\"id\":1,\"l\":[2,3],\"tags\":{\"amenity\":\"bench\"}}")).toString();
+        assertThat(way, containsString("\"nodes\":[{\"id\":1,\"l\":[2,3]}]"));
+        assertThat(way, not(containsString("bench")));
+        assertThat(way, containsString("\"missingNodeRefs\":[4]"));
+    }
 }
@@ -0,0 +1,195 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.mergesort.LongSortingWriter;
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.tools.JsonParser;
+
+@Test
+public class OsmPbfParserTest {
+
+    public void shouldDecodePbfBlobs() throws IOException {
+        Map<String, String> nodes = new LinkedHashMap<>();
+        Map<String, String> nodeId2WayId = new LinkedHashMap<>();
+        Map<String, String> ways = new LinkedHashMap<>();
+        Map<String, String> relations = new LinkedHashMap<>();
+        Map<String, String> nodeId2RelId = new LinkedHashMap<>();
+        Map<String, String> wayId2RelId = new LinkedHashMap<>();
+        OsmPbfParser parser = new OsmPbfParser(mapWriter(nodes), mapWriter(nodeId2WayId), mapWriter(ways),
+                mapWriter(relations), mapWriter(nodeId2RelId), mapWriter(wayId2RelId));
+
+        int blobs = 0;
+        try (OsmPbfBlobIterable it = new OsmPbfBlobIterable(getClass().getResourceAsStream("sample.osm.pbf"))) {
+            for (byte[] blob : it) {
+                assertThat(parser.process(blob), is(true));
+                blobs++;
+            }
+        }
+        assertThat(blobs, is(1));
+
+        JsonParser jsonParser = new JsonParser();
+        assertThat(nodes.size(), is(3));
+        assertThat(nodes.get("240109189"),
+                is("{\"id\":240109189,\"l\":[133888599,525170365],\"tags\":{\"name\":\"Berlin\",\"place\":\"city\",\"note\":\"\\\"a\\\" & b\"}}"));
+        assertThat(nodes.get("240109190"), is("{\"id\":240109190,\"l\":[-1130375,-515121071]}"));
+        assertThat(nodes.get("240109191"), is("{\"id\":240109191,\"l\":[1,0]}"));
+
+        JsonObject way = jsonParser.parse(ways.get("4711")).asObject();
+        assertThat(way.getString("tags", "building"), is("yes"));
+        assertThat(way.getArray("ns").size(), is(4));
+        assertThat(nodeId2WayId.get("240109190"), is("4711"));
+
+        JsonObject relation = jsonParser.parse(relations.get("2186943")).asObject();
+        // relation members are not supported yet
+        assertThat(relation.getArray("members").size(), is(2));
+        assertThat(relation.getArray("members").get(1).asObject().getString("role"), is("admin_centre"));
+        assertThat(wayId2RelId.get("4711"), is("2186943"));
+        assertThat(nodeId2RelId.get("240109189"), is("2186943"));
+    }
+
+    public void shouldWriteNegativeIdsToProblemsAndLeaveOutNegativeRefs() throws IOException {
+        Map<String, String> nodes = new LinkedHashMap<>();
+        Map<String, String> nodeId2WayId = new LinkedHashMap<>();
+        Map<String, String> ways = new LinkedHashMap<>();
+        Map<String, String> relations = new LinkedHashMap<>();
+        Map<String, String> nodeId2RelId = new LinkedHashMap<>();
+        Map<String, String> wayId2RelId = new LinkedHashMap<>();
+        StringWriter problemNodes = new StringWriter();
+        StringWriter problemWays = new StringWriter();
+        StringWriter problemRelations = new StringWriter();
+        try (BufferedWriter nodeProblems = new BufferedWriter(problemNodes);
+                BufferedWriter wayProblems = new BufferedWriter(problemWays);
+                BufferedWriter relationProblems = new BufferedWriter(problemRelations)) {
+            OsmPbfParser parser = new OsmPbfParser(mapWriter(nodes), mapWriter(nodeId2WayId), mapWriter(ways),
+                    mapWriter(relations), mapWriter(nodeId2RelId), mapWriter(wayId2RelId)).setProblemWriters(
+                    nodeProblems, wayProblems, relationProblems);
+
+            ByteArrayOutputStream group = new ByteArrayOutputStream();
+            // a node with a negative id and dense nodes 10 and -3
+            message(group, 1, concat(sint(1, -5), sint(8, 1), sint(9, 2)));
+            message(group, 2, concat(packed(1, 10, -13), packed(8, 1, 1), packed(9, 2, 2)));
+            // ways 8 and -7 with references to nodes 10, -3 and 10
+            message(group, 3, concat(varint(1, 8), packed(8, 10, -13, 13)));
+            message(group, 3, concat(varint(1, -7), packed(8, 10)));
+            // relations 9 and -9 with members node -3, way 8 and node 10
+            byte[] members = concat(unsigned(8, 1, 1, 1), packed(9, -3, 11, 2), unsigned(10, 0, 1, 0));
+            message(group, 4, concat(varint(1, 9), members));
+            message(group, 4, concat(varint(1, -9), members));
+            ByteArrayOutputStream strings = new ByteArrayOutputStream();
+            message(strings, 1, new byte[0]);
+            message(strings, 1, "outer".getBytes(ResourceUtil.UTF8));
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            message(block, 1, strings.toByteArray());
+            message(block, 2, group.toByteArray());
+            ByteArrayOutputStream blob = new ByteArrayOutputStream();
+            message(blob, 1, block.toByteArray());
+
+            assertThat(parser.process(blob.toByteArray()), is(true));
+        }
+
+        assertThat(nodes.keySet().toString(), is("[10]"));
+        assertThat(problemNodes.toString().split("\n").length, is(2));
+        assertThat(problemNodes.toString(), containsString("{\"id\":-5,"));
+        assertThat(problemNodes.toString(), containsString("{\"id\":-3,"));
+
+        assertThat(ways.get("8"), is("{\"id\":8,\"ns\":[10,10]}"));
+        assertThat(ways.containsKey("-7"), is(false));
+        assertThat(problemWays.toString(), is("{\"id\":-7,\"ns\":[10]}\n"));
+        assertThat(nodeId2WayId.keySet().toString(), is("[10]"));
+
+        assertThat(relations.get("9"), is("{\"id\":9,\"members\":[{\"id\":8,\"type\":\"way\",\"role\":\"outer\"},"
+                + "{\"id\":10,\"type\":\"node\",\"role\":\"outer\"}]}"));
+        assertThat(relations.containsKey("-9"), is(false));
+        assertThat(problemRelations.toString(), containsString("{\"id\":-9,"));
+        assertThat(nodeId2RelId.keySet().toString(), is("[10]"));
+        assertThat(wayId2RelId.keySet().toString(), is("[8]"));
+        assertThat(nodeId2RelId.get("10"), is("9"));
+    }
+
+    private static LongSortingWriter mapWriter(final Map<String, String> map) throws IOException {
+        return new LongSortingWriter(null, null, 0) {
+            @Override
+            public void put(long key, String value) {
+                map.put("" + key, value);
+            }
+        };
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void message(ByteArrayOutputStream out, int field, byte[] bytes) {
+        writeVarint(out, field << 3 | 2);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return an int64 field, negative values take ten bytes
+     */
+    private static byte[] varint(int field, long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, field << 3);
+        writeVarint(out, value);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a zigzag encoded sint64 field
+     */
+    private static byte[] sint(int field, long value) {
+        return varint(field, value << 1 ^ value >> 63);
+    }
+
+    /**
+     * @return a packed repeated sint64 field
+     */
+    private static byte[] packed(int field, long... values) {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        for (long value : values) {
+            writeVarint(packed, value << 1 ^ value >> 63);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message(out, field, packed.toByteArray());
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a packed repeated int32 field
+     */
+    private static byte[] unsigned(int field, long... values) {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        for (long value : values) {
+            writeVarint(packed, value);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message(out, field, packed.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] field : fields) {
+            out.write(field, 0, field.length);
+        }
+        return out.toByteArray();
+    }
+}
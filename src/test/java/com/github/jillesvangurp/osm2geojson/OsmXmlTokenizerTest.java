@@ -0,0 +1,265 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static com.github.jsonj.tools.JsonBuilder.array;
+import static com.github.jsonj.tools.JsonBuilder.object;
+import static com.github.jsonj.tools.JsonBuilder.primitive;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.common.ResourceUtil;
+import com.github.jillesvangurp.mergesort.LongSortingWriter;
+import com.github.jillesvangurp.osm2geojson.OsmXmlTokenizer.Token;
+import com.github.jsonj.JsonArray;
+import com.github.jsonj.JsonElement;
+import com.github.jsonj.JsonObject;
+import com.github.jsonj.tools.JsonParser;
+
+@Test
+public class OsmXmlTokenizerTest {
+    // the regular expressions that OsmJoin used before the tokenizer; used as a reference implementation below
+    static final Pattern idPattern = Pattern.compile("id=\"([0-9]+)");
+    static final Pattern latPattern = Pattern.compile("lat=\"(-?[0-9]+(\\.[0-9]+)?)");
+    static final Pattern lonPattern = Pattern.compile("lon=\"(-?[0-9]+(\\.[0-9]+)?)");
+    static final Pattern kvPattern = Pattern.compile("k=\"(.*?)\"\\s+v=\"(.*?)\"");
+    static final Pattern ndPattern = Pattern.compile("nd ref=\"([0-9]+)");
+    static final Pattern memberPattern = Pattern.compile("member type=\"(.*?)\" ref=\"([0-9]+)\" role=\"(.*?)\"");
+
+    private final JsonParser parser = new JsonParser();
+
+    public void shouldTokenizeElementsAndAttributes() {
+        OsmXmlTokenizer tokenizer = new OsmXmlTokenizer("<nd ref=\"42\"/><tag k='name' v=\"a &amp; b\" />");
+        assertThat(tokenizer.next(), is(Token.ELEMENT));
+        assertThat(tokenizer.nameIs("nd"), is(true));
+        assertThat(tokenizer.next(), is(Token.ATTRIBUTE));
+        assertThat(tokenizer.nameIs("ref"), is(true));
+        assertThat(tokenizer.longValue(), is(42l));
+        assertThat(tokenizer.next(), is(Token.ELEMENT));
+        assertThat(tokenizer.nameIs("tag"), is(true));
+        assertThat(tokenizer.next(), is(Token.ATTRIBUTE));
+        assertThat(tokenizer.valueIs("name"), is(true));
+        assertThat(tokenizer.next(), is(Token.ATTRIBUTE));
+        StringBuilder buf = new StringBuilder();
+        tokenizer.appendJsonString(buf, tokenizer.valueStart(), tokenizer.valueEnd());
+        assertThat(buf.toString(), is("\"a & b\""));
+        assertThat(tokenizer.next(), is(Token.END));
+    }
+
+    public void shouldEscapeJsonAndDecodeEntities() {
+        String xml = "<tag v=\"&quot;q&quot; \\ &#228;&#x20AC;&lt;&gt;&apos; &unknown; &\"/>";
+        OsmXmlTokenizer tokenizer = new OsmXmlTokenizer(xml);
+        tokenizer.next();
+        tokenizer.next();
+        StringBuilder buf = new StringBuilder();
+        tokenizer.appendJsonString(buf, tokenizer.valueStart(), tokenizer.valueEnd());
+        assertThat(buf.toString(), is("\"\\\"q\\\" \\\\ \u00e4\u20ac<>' &unknown; &\""));
+    }
+
+    public void shouldParseSignedLongs() {
+        OsmXmlTokenizer tokenizer = new OsmXmlTokenizer("<node id=\"-42\" a=\"9223372036854775807\" "
+                + "b=\"-9223372036854775808\" c=\"9223372036854775808\" d=\"-\" e=\"1-2\" f=\"\"/>");
+        tokenizer.next();
+        tokenizer.next();
+        assertThat(tokenizer.longValue(), is(-42l));
+        tokenizer.next();
+        assertThat(tokenizer.longValue(), is(Long.MAX_VALUE));
+        tokenizer.next();
+        assertThat(tokenizer.longValue(), is(Long.MIN_VALUE));
+        for (int i = 0; i < 4; i++) {
+            tokenizer.next();
+            try {
+                tokenizer.longValue();
+                throw new AssertionError("expected NumberFormatException for attribute " + i);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    public void shouldWriteEntitiesWithNegativeOrOverlongIdsToProblems() throws IOException {
+        Map<String, String> parsed = new HashMap<>();
+        LongSortingWriter writer = mapWriter(parsed);
+        StringWriter problems = new StringWriter();
+        BufferedWriter problemWriter = new BufferedWriter(problems);
+        OsmJoin join = new OsmJoin(null, parser);
+        join.parseNode(writer, problemWriter, "<node id=\"-1\" lat=\"1.0\" lon=\"2.0\"/>");
+        join.parseNode(writer, problemWriter, "<node id=\"99999999999999999999\" lat=\"1.0\" lon=\"2.0\"/>");
+        join.parseWay(writer, problemWriter, writer, "<way id=\"-2\"><nd ref=\"1\"/></way>");
+        join.parseWay(writer, problemWriter, writer, "<way id=\"3\"><nd ref=\"99999999999999999999\"/></way>");
+        join.parseRelation(writer, problemWriter, writer, writer,
+                "<relation id=\"99999999999999999999\"><member type=\"node\" ref=\"1\" role=\"\"/></relation>");
+        problemWriter.flush();
+        assertThat(parsed.isEmpty(), is(true));
+        assertThat(problems.toString().split("\n").length, is(5));
+    }
+
+    public void shouldLeaveOutNegativeNodeReferences() throws IOException {
+        Map<String, String> parsed = new HashMap<>();
+        Map<String, String> refs = new HashMap<>();
+        OsmJoin join = new OsmJoin(null, parser);
+        join.parseWay(mapWriter(parsed), new BufferedWriter(new StringWriter()), mapWriter(refs),
+                "<way id=\"3\"><nd ref=\"-1\"/><nd ref=\"2\"/></way>");
+        assertThat(parsed.get("3"), is("{\"id\":3,\"ns\":[2]}"));
+        assertThat(refs.keySet().contains("-1"), is(false));
+    }
+
+    public void shouldWriteNodesWithMalformedCoordinatesToProblems() throws IOException {
+        Map<String, String> parsed = new HashMap<>();
+        StringWriter problems = new StringWriter();
+        BufferedWriter problemWriter = new BufferedWriter(problems);
+        String xml = "<node id=\"1\" lat=\"1.\" lon=\"-0.5\"/>";
+        new OsmJoin(null, parser).parseNode(mapWriter(parsed), problemWriter, xml);
+        problemWriter.flush();
+        assertThat(parsed.isEmpty(), is(true));
+        assertThat(problems.toString(), is(xml + '\n'));
+    }
+
+    @DataProvider
+    public Object[][] fixtures() {
+        return new Object[][] {
+                { "node1.xml" },
+                { "way1.xml" },
+                { "relation1.xml" } };
+    }
+
+    /**
+     * Checks that the tokenizer based parsing in OsmJoin produces the same json as the regular expression based
+     * parsing it replaced.
+     */
+    @Test(dataProvider = "fixtures")
+    public void shouldMatchRegexParser(String fixture) throws IOException {
+        String blob = ResourceUtil.string(getClass().getResourceAsStream(fixture));
+        blob = blob.substring(blob.indexOf("?>") + 2).trim();
+
+        Map<String, String> expected = new HashMap<>();
+        Map<String, String> expectedRefs = new HashMap<>();
+        Map<String, String> actual = new HashMap<>();
+        Map<String, String> actualRefs = new HashMap<>();
+        LongSortingWriter expectedWriter = mapWriter(expected);
+        LongSortingWriter expectedRefWriter = mapWriter(expectedRefs);
+        LongSortingWriter actualWriter = mapWriter(actual);
+        LongSortingWriter actualRefWriter = mapWriter(actualRefs);
+        BufferedWriter problems = new BufferedWriter(new StringWriter());
+
+        OsmJoin join = new OsmJoin(null, parser);
+        if (blob.startsWith("<node")) {
+            regexParseNode(expectedWriter, blob);
+            join.parseNode(actualWriter, problems, blob);
+        } else if (blob.startsWith("<way")) {
+            regexParseWay(expectedWriter, expectedRefWriter, blob);
+            join.parseWay(actualWriter, problems, actualRefWriter, blob);
+        } else {
+            regexParseRelation(expectedWriter, expectedRefWriter, blob);
+            join.parseRelation(actualWriter, problems, actualRefWriter, actualRefWriter, blob);
+        }
+        assertThat(actual.keySet(), is(expected.keySet()));
+        for (String key : expected.keySet()) {
+            JsonObject expectedObject = parser.parse(expected.get(key)).asObject();
+            JsonArray location = expectedObject.getArray("l");
+            if (location != null) {
+                // the regex parser kept degrees, OsmJoin now writes fixed point values
+                expectedObject.put("l", array(fixedPoint(location.get(0)), fixedPoint(location.get(1))));
+            }
+            assertThat(parser.parse(actual.get(key)), is((JsonElement) expectedObject));
+        }
+        assertThat(actualRefs, is(expectedRefs));
+    }
+
+    private static long fixedPoint(JsonElement degrees) {
+        return Math.round(degrees.asDouble() * FixedPoint.SCALE);
+    }
+
+    private static LongSortingWriter mapWriter(final Map<String, String> map) throws IOException {
+        return new LongSortingWriter(null, null, 0) {
+            @Override
+            public void put(long key, String value) {
+                map.put("" + key, value);
+            }
+        };
+    }
+
+    private static void regexParseNode(LongSortingWriter nodeWriter, String input) {
+        Matcher idm = idPattern.matcher(input);
+        Matcher latm = latPattern.matcher(input);
+        Matcher lonm = lonPattern.matcher(input);
+        Matcher kvm = kvPattern.matcher(input);
+        if (idm.find() && latm.find() && lonm.find()) {
+            long id = Long.valueOf(idm.group(1));
+            double latitude = Double.valueOf(latm.group(1));
+            double longitude = Double.valueOf(lonm.group(1));
+            JsonObject node = object().put("id", id).put("l", array(longitude, latitude)).get();
+            JsonObject tags = new JsonObject();
+            while (kvm.find()) {
+                tags.put(kvm.group(1), StringEscapeUtils.unescapeXml(kvm.group(2)));
+            }
+            if (tags.size() > 0) {
+                node.put("tags", tags);
+            }
+            nodeWriter.put(id, node.toString());
+        }
+    }
+
+    private static void regexParseWay(LongSortingWriter waysWriter, LongSortingWriter nodeid2WayidWriter, String input) {
+        Matcher idm = idPattern.matcher(input);
+        Matcher kvm = kvPattern.matcher(input);
+        Matcher ndm = ndPattern.matcher(input);
+        if (idm.find()) {
+            long wayId = Long.valueOf(idm.group(1));
+            JsonObject way = object().put("id", wayId).get();
+            JsonObject tags = new JsonObject();
+            while (kvm.find()) {
+                tags.put(kvm.group(1), kvm.group(2));
+            }
+            if (tags.size() > 0) {
+                way.put("tags", tags);
+            }
+            JsonArray nodeRefs = array();
+            while (ndm.find()) {
+                Long nodeId = Long.valueOf(ndm.group(1));
+                nodeid2WayidWriter.put(nodeId, "" + wayId);
+                nodeRefs.add(primitive(nodeId));
+            }
+            way.put("ns", nodeRefs);
+            waysWriter.put(wayId, way.toString());
+        }
+    }
+
+    private static void regexParseRelation(LongSortingWriter relationsWriter, LongSortingWriter id2RelIdWriter, String input) {
+        Matcher idm = idPattern.matcher(input);
+        Matcher kvm = kvPattern.matcher(input);
+        Matcher mm = memberPattern.matcher(input);
+        if (idm.find()) {
+            long relationId = Long.valueOf(idm.group(1));
+            JsonObject relation = object().put("id", relationId).get();
+            JsonObject tags = new JsonObject();
+            while (kvm.find()) {
+                tags.put(kvm.group(1), kvm.group(2));
+            }
+            if (tags.size() > 0) {
+                relation.put("tags", tags);
+            }
+            JsonArray members = array();
+            while (mm.find()) {
+                String type = mm.group(1);
+                Long ref = Long.valueOf(mm.group(2));
+                if ("way".equalsIgnoreCase(type) || "node".equalsIgnoreCase(type)) {
+                    members.add(object().put("id", ref).put("type", type).put("role", mm.group(3)).get());
+                    id2RelIdWriter.put(ref, "" + relationId);
+                }
+            }
+            relation.put("members", members);
+            relationsWriter.put(relationId, relation.toString());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.mergesort.IndexedMapWriter;
+import com.github.jillesvangurp.mergesort.LongEntry;
+import com.github.jillesvangurp.mergesort.LongEntryReader;
+import com.github.jillesvangurp.mergesort.RecordFormat;
+import com.github.jsonj.tools.JsonParser;
+import com.google.common.io.Files;
+
+@Test
+public class ShardedOsmJoinTest {
+    private File tempDir;
+    private File osm;
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        tempDir = Files.createTempDir();
+        osm = new File(tempDir, "test.osm");
+        FileUtils.copyInputStreamToFile(getClass().getResourceAsStream("incremental-base.osm"), osm);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    public void shouldWriteTheSameMapsAsASingleJoin() throws IOException {
+        OsmJoin single = join("single");
+        single.processAll(osm.getPath());
+        OsmJoin coordinator = join("sharded");
+        new ShardedOsmJoin(coordinator, 3).setWorkers(2).processAll(osm.getPath());
+
+        for (String map : new String[] { OsmJoin.WAY_ID_COMPLETE_JSON, OsmJoin.REL_ID_COMPLETE_JSON }) {
+            File expected = new File(single.file(map));
+            assertThat(map, expected.length() > 0, is(true));
+            assertThat(map, FileUtils.contentEquals(expected, new File(coordinator.file(map))), is(true));
+        }
+    }
+
+    public void shouldRunTheWorkersWithTheSettingsOfTheJoin() throws IOException {
+        OsmFilter filter = OsmFilter.parse("types=way,relation;tags=name");
+        OsmJoin single = join("single").setFilter(filter).setIndexedMaps(true).setRecordFormat(RecordFormat.TEXT);
+        single.processAll(osm.getPath());
+        OsmJoin coordinator = join("sharded").setFilter(filter).setIndexedMaps(true).setRecordFormat(
+                RecordFormat.TEXT);
+        ShardedOsmJoin sharded = new ShardedOsmJoin(coordinator, 2);
+        sharded.processAll(osm.getPath());
+
+        for (String map : new String[] { OsmJoin.WAY_ID_COMPLETE_JSON, OsmJoin.REL_ID_COMPLETE_JSON }) {
+            File expected = new File(single.file(map));
+            assertThat(map, read(expected.getPath()).isEmpty(), is(false));
+            assertThat(map, FileUtils.contentEquals(expected, new File(coordinator.file(map))), is(true));
+            assertThat(map, new File(IndexedMapWriter.indexFile(coordinator.file(map))).exists(), is(true));
+        }
+        for (int i = 0; i < 2; i++) {
+            // the workers split nothing themselves, but record the filter of the coordinator in their manifests
+            String manifest = FileUtils.readFileToString(new File(sharded.shardDirectory(i), "stage2.manifest"));
+            assertThat(manifest, containsString(filter.toString().replace("=", "\\=")));
+        }
+    }
+
+    public void shouldLeaveTheMemoryBudgetsToTheWorkerHeap() {
+        OsmJoin coordinator = join("sharded");
+        List<String> settings = new ShardedOsmJoin(coordinator, 4).setWorkers(4).workerSettings();
+        assertThat(settings, hasItem("threadPoolSize=2"));
+        for (String setting : settings) {
+            assertThat(setting, setting.startsWith("hashJoinBytes=") || setting.startsWith("stageMemoryBytes="),
+                    is(false));
+        }
+
+        coordinator.setHashJoinBytes(1000).setStageBudget(3, 2000);
+        settings = new ShardedOsmJoin(coordinator, 16).setWorkers(16).workerSettings();
+        for (String setting : new String[] { "threadPoolSize=1", "hashJoinBytes=1000", "stageThreads=3",
+                "stageMemoryBytes=2000" }) {
+            assertThat(settings, hasItem(setting));
+        }
+    }
+
+    public void shouldPutTheMembersInTheShardOfTheirRelation() throws IOException {
+        OsmJoin coordinator = join("sharded");
+        ShardedOsmJoin sharded = new ShardedOsmJoin(coordinator, 3).setWorkers(2);
+        sharded.processAll(osm.getPath());
+
+        int members = 0;
+        for (int i = 0; i < 3; i++) {
+            Set<Long> relations = new HashSet<>();
+            for (LongEntry entry : read(sharded, i, OsmJoin.REL_ID_RELJSON_MAP)) {
+                relations.add(entry.getKey());
+            }
+            for (String map : new String[] { OsmJoin.NODE_ID_REL_ID_MAP, OsmJoin.WAY_ID_REL_ID_MAP }) {
+                for (LongEntry entry : read(sharded, i, map)) {
+                    assertThat(map + " of shard " + i, relations.contains(Long.valueOf(entry.getValue())), is(true));
+                    members++;
+                }
+            }
+        }
+        assertThat(members > 0, is(true));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectZeroShards() {
+        new ShardedOsmJoin(join("sharded"), 0);
+    }
+
+    private static List<LongEntry> read(ShardedOsmJoin sharded, int shard, String map) throws IOException {
+        return read(new File(sharded.shardDirectory(shard), map).getPath());
+    }
+
+    private static List<LongEntry> read(String file) throws IOException {
+        List<LongEntry> entries = new ArrayList<>();
+        try (LongEntryReader reader = RecordFormat.read(file)) {
+            for (LongEntry entry : reader) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private OsmJoin join(String name) {
+        File dir = new File(tempDir, name);
+        dir.mkdirs();
+        return new OsmJoin(new File(dir, "buckets").getPath(), new JsonParser()).setOutputDirectory(dir.getPath());
+    }
+}
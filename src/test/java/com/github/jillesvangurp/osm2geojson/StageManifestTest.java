@@ -0,0 +1,112 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.github.jsonj.tools.JsonParser;
+import com.google.common.io.Files;
+
+@Test
+public class StageManifestTest {
+    private static final String[] MAPS = { OsmJoin.NODE_ID_NODEJSON_MAP, OsmJoin.WAY_ID_WAYJSON_MAP,
+            OsmJoin.WAY_ID_COMPLETE_JSON, OsmJoin.REL_ID_NODE_JSON_MAP, OsmJoin.REL_ID_JSON_WITH_NODES,
+            OsmJoin.REL_ID_WAY_JSON_MAP, OsmJoin.REL_ID_COMPLETE_JSON };
+
+    private File tempDir;
+    private File input;
+    private File output;
+    private StageManifest manifest;
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        tempDir = Files.createTempDir();
+        input = new File(tempDir, "input");
+        output = new File(tempDir, "output");
+        FileUtils.write(input, "input");
+        FileUtils.write(output, "output");
+        manifest = manifest("a");
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    public void shouldBeUpToDateOnceWritten() {
+        assertThat(manifest.isUpToDate(), is(false));
+        manifest.write();
+        assertThat(manifest.isUpToDate(), is(true));
+        manifest.delete();
+        assertThat(manifest.isUpToDate(), is(false));
+    }
+
+    public void shouldNotBeUpToDateWhenFilesOrParametersChange() throws IOException {
+        manifest.write();
+        assertThat(manifest("b").isUpToDate(), is(false));
+
+        input.setLastModified(input.lastModified() - 10000);
+        assertThat(manifest.isUpToDate(), is(false));
+        manifest.write();
+
+        FileUtils.write(output, "changed output");
+        assertThat(manifest.isUpToDate(), is(false));
+        manifest.write();
+
+        output.delete();
+        assertThat(manifest.isUpToDate(), is(false));
+    }
+
+    public void shouldOnlyRunStagesThatAreOutOfDate() throws IOException {
+        File osm = new File(tempDir, "test.osm");
+        FileUtils.copyInputStreamToFile(getClass().getResourceAsStream("incremental-base.osm"), osm);
+        OsmJoin join = new OsmJoin(new File(tempDir, "buckets").getPath(), new JsonParser()).setOutputDirectory(
+                tempDir.getPath());
+        join.processAll(osm.getPath());
+        Map<String, Long> modified = modified(join);
+        for (File file : tempDir.listFiles()) {
+            assertThat(file.getName(), file.getName().endsWith(".tmp"), is(false));
+        }
+
+        join.processAll(osm.getPath());
+        assertThat(modified(join), is(modified));
+
+        String relations = FileUtils.readFileToString(new File(join.file(OsmJoin.REL_ID_COMPLETE_JSON)));
+        new File(join.file(OsmJoin.REL_ID_COMPLETE_JSON)).delete();
+        join.processAll(osm.getPath());
+        Map<String, Long> rerun = modified(join);
+        assertThat(FileUtils.readFileToString(new File(join.file(OsmJoin.REL_ID_COMPLETE_JSON))).length(),
+                is(relations.length()));
+        rerun.remove(OsmJoin.REL_ID_COMPLETE_JSON);
+        modified.remove(OsmJoin.REL_ID_COMPLETE_JSON);
+        assertThat(rerun, is(modified));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectUnknownStage() {
+        new OsmJoin(null, new JsonParser()).processAll("test.osm", OsmJoin.STAGES + 1);
+    }
+
+    private StageManifest manifest(String parameters) {
+        return new StageManifest(new File(tempDir, "stage.manifest"), parameters, Arrays.asList(input.getPath()),
+                Arrays.asList(output.getPath()));
+    }
+
+    private static Map<String, Long> modified(OsmJoin join) {
+        Map<String, Long> modified = new HashMap<>();
+        for (String map : MAPS) {
+            modified.put(map, new File(join.file(map)).lastModified());
+        }
+        return modified;
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.jillesvangurp.osm2geojson;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.github.jillesvangurp.osm2geojson.StageScheduler.Stage;
+
+@Test
+public class StageSchedulerTest {
+    private final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+    public void shouldRunStagesAfterTheirInputsAreWritten() {
+        List<Stage> stages = Arrays.asList(stage("c", list("a", "b"), "c"), stage("b", list("a"), "b"), stage("a",
+                list("input"), "a"));
+        new StageScheduler(4, 0).run(stages);
+        assertThat(log, is(Arrays.asList("a", "b", "c")));
+    }
+
+    public void shouldRunIndependentStagesAtTheSameTime() {
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        List<Stage> stages = new ArrayList<>();
+        for (final String name : list("x", "y")) {
+            stages.add(new Stage(name, list("input"), name) {
+                @Override
+                public void run() {
+                    bothRunning.countDown();
+                    try {
+                        if (!bothRunning.await(10, TimeUnit.SECONDS)) {
+                            throw new IllegalStateException("ran one after the other");
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+        new StageScheduler(2, 0).run(stages);
+    }
+
+    public void shouldStayWithinBudget() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Stage> stages = new ArrayList<>();
+        for (final String name : list("p", "q", "r", "s")) {
+            // the last one needs more memory than the budget, so it runs on its own
+            long memory = "s".equals(name) ? 1000 : 40;
+            stages.add(new Stage(name, list("input"), list(name), 1, memory) {
+                @Override
+                public void run() {
+                    maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    running.decrementAndGet();
+                }
+            });
+        }
+        new StageScheduler(4, 100).run(stages);
+        assertThat(maxRunning.get(), is(2));
+    }
+
+    public void shouldStopAfterAFailure() {
+        List<Stage> stages = Arrays.asList(new Stage("fails", list("input"), "a") {
+            @Override
+            public void run() {
+                throw new IllegalArgumentException("boom");
+            }
+        }, stage("b", list("a"), "b"));
+        try {
+            new StageScheduler(1, 0).run(stages);
+            throw new AssertionError("expected the failure");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause().getMessage(), is("boom"));
+        }
+        assertThat(log.isEmpty(), is(true));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldDetectCycles() {
+        new StageScheduler(1, 0).run(Arrays.asList(stage("a", list("b"), "a"), stage("b", list("a"), "b")));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectOutputsWrittenTwice() {
+        new StageScheduler(1, 0).run(Arrays.asList(stage("a", list("input"), "out"), stage("b", list("input"),
+                "out")));
+    }
+
+    private Stage stage(final String name, List<String> inputs, String... outputs) {
+        return new Stage(name, inputs, outputs) {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    private static List<String> list(String... values) {
+        return Arrays.asList(values);
+    }
+}